@@ -0,0 +1,221 @@
+package fr.upem.net.tcp.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.nonblocking.MemoryConnection;
+import fr.upem.net.tcp.nonblocking.MemoryHarness;
+import fr.upem.net.tcp.nonblocking.Server;
+
+/**
+ * Measure the dispatch, fan-out and backpressure of the {@link Server} with
+ * simulated sessions in memory, without kernel cost. The sessions log in by
+ * batches, then a few of them send public messages by rounds: whole, split at
+ * every byte boundary, and finally while some sessions are slow consumers,
+ * which the server must drop once their queue is full without losing any
+ * message for the others. The latencies traced by the server are printed at
+ * the end. With the presence {@code watch}, each session only watches the
+ * presence of a few others instead of receiving every join and leave.
+ *
+ * <pre>
+ * java fr.upem.net.tcp.bench.MemoryBenchmark [sessions] [senders] [rounds] [slow %] [all|watch]
+ * </pre>
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class MemoryBenchmark {
+	private static final int NICKSIZ = 8;
+	private static final int MSGSIZ = 64;
+	private static final int LOGIN_BATCH = 50;
+	/** Size of a public message received with the protocol version 1. */
+	private static final int FRAMESIZ = Byte.BYTES + Integer.BYTES + NICKSIZ + Integer.BYTES + MSGSIZ;
+	/** Size of the notification of a client who left. */
+	private static final int LEFTSIZ = Byte.BYTES + Integer.BYTES + NICKSIZ;
+	/** Sessions whose presence a session watches, with the presence watch. */
+	private static final int WATCHED = 8;
+
+	private static byte[] nickname(int i) {
+		return String.format("s%07d", i).getBytes(Server.CHARSET_NICKNAME);
+	}
+
+	/**
+	 * Login with the protocol version 1, or with the version 2 and the
+	 * presence of the {@link #WATCHED} next sessions only.
+	 */
+	private static ByteBuffer login(int i, int nbSessions, boolean watch) {
+		byte[] nickname = nickname(i);
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + 2 * Integer.BYTES + NICKSIZ
+				+ (watch ? WATCHED * (Byte.BYTES + Integer.BYTES + NICKSIZ) : 0));
+		bb.put((byte) 0).putInt(nickname.length).put(nickname);
+		if (!watch) {
+			bb.putInt(0);
+			bb.flip();
+			return bb;
+		}
+		bb.putInt(2 << 24 | Server.FLAG_PRESENCE << 16);
+		for (int j = 1; j <= WATCHED; j++) {
+			byte[] watched = nickname((i + j) % nbSessions);
+			bb.put((byte) 40).putInt(watched.length).put(watched);
+		}
+		bb.flip();
+		return bb;
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Bytes of the notifications of the dropped sessions a session receives:
+	 * every one of them, or the ones it watches, which have the ID of their
+	 * login order.
+	 */
+	private static long leftNotifications(List<MemoryConnection> sessions, int i, boolean watch) {
+		if (!watch) {
+			return (long) (sessions.size() - countOpen(sessions)) * LEFTSIZ;
+		}
+		long size = 0;
+		for (int j = 1; j <= WATCHED; j++) {
+			int watched = (i + j) % sessions.size();
+			if (!sessions.get(watched).isOpen()) {
+				size += Byte.BYTES + varintSize(watched);
+			}
+		}
+		return size;
+	}
+
+	private static int countOpen(List<MemoryConnection> sessions) {
+		int open = 0;
+		for (MemoryConnection session : sessions) {
+			if (session.isOpen()) {
+				open++;
+			}
+		}
+		return open;
+	}
+
+	private static ByteBuffer message() {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + MSGSIZ);
+		bb.put((byte) 4).putInt(MSGSIZ);
+		while (bb.hasRemaining()) {
+			bb.put((byte) 'x');
+		}
+		bb.flip();
+		return bb;
+	}
+
+	private static long[] received(List<MemoryConnection> sessions) {
+		long[] received = new long[sessions.size()];
+		for (int i = 0; i < received.length; i++) {
+			received[i] = sessions.get(i).received();
+		}
+		return received;
+	}
+
+	/**
+	 * Let the senders send one message per round, and run the harness after
+	 * each round until idle, or only one step.
+	 */
+	private static void fanOut(String name, MemoryHarness harness, List<MemoryConnection> sessions,
+			int senders, int rounds, boolean untilIdle, boolean watch) {
+		ByteBuffer bbmsg = message();
+		long[] before = received(sessions);
+		long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < senders; i++) {
+				sessions.get(i).send(bbmsg.duplicate());
+			}
+			if (untilIdle) {
+				harness.run();
+			} else {
+				harness.step();
+			}
+		}
+		harness.run();
+		long elapsed = System.nanoTime() - start;
+		int complete = 0;
+		int open = 0;
+		for (int i = 0; i < sessions.size(); i++) {
+			if (sessions.get(i).isOpen()) {
+				open++;
+				long expected = (long) senders * rounds * FRAMESIZ
+						+ leftNotifications(sessions, i, watch);
+				if (sessions.get(i).received() - before[i] == expected) {
+					complete++;
+				}
+			}
+		}
+		long delivered = (long) open * senders * rounds;
+		System.out.printf("%-10s %.2f s, %.0f deliveries/s, %d/%d open sessions complete%n", name,
+				elapsed / 1e9, delivered / (elapsed / 1e9), complete, open);
+	}
+
+	/**
+	 * Heap used after a full collection, with the simulated clients.
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int nbSessions = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+		int senders = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int slowPercent = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		boolean watch = args.length > 4 && args[4].equals("watch");
+		Logger.getLogger("ServerLogger").setLevel(Level.WARNING);
+		MemoryHarness harness = MemoryHarness.create();
+		List<MemoryConnection> sessions = new ArrayList<>(nbSessions);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < nbSessions; i++) {
+			MemoryConnection session = harness.connect();
+			session.send(login(i, nbSessions, watch));
+			sessions.add(session);
+			if ((i + 1) % LOGIN_BATCH == 0) {
+				harness.step();
+			}
+		}
+		int steps = harness.run();
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%d sessions logged in: %.2f s (%d steps to drain the notifications)%n",
+				harness.getNumberConnected(), elapsed / 1e9, steps);
+		long heap = usedHeap();
+		System.out.printf("heap after login: %d MiB, %d bytes per session%n", heap >> 20,
+				heap / nbSessions);
+
+		fanOut("whole", harness, sessions, senders, rounds, true, watch);
+		for (int i = 0; i < senders; i++) {
+			sessions.get(i).setFragment(1);
+		}
+		fanOut("fragmented", harness, sessions, senders, rounds, true, watch);
+
+		for (int i = 0; i < senders; i++) {
+			sessions.get(i).setFragment(Integer.MAX_VALUE);
+		}
+		int nbSlow = 0;
+		for (int i = senders; i < sessions.size(); i++) {
+			if (i % 100 < slowPercent) {
+				sessions.get(i).setSlowConsumer(4096, 32);
+				nbSlow++;
+			}
+		}
+		fanOut("slow", harness, sessions, senders, rounds, false, watch);
+		System.out.printf("%d/%d slow consumers dropped%n",
+				nbSessions - harness.getNumberConnected(), nbSlow);
+		System.out.print(harness.getTracer().report());
+	}
+}
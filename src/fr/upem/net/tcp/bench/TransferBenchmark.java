@@ -0,0 +1,197 @@
+package fr.upem.net.tcp.bench;
+
+import static fr.upem.net.tcp.client.ScReaders.readByte;
+import static fr.upem.net.tcp.client.ScReaders.readInt;
+import static fr.upem.net.tcp.client.ScReaders.readLong;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import fr.upem.net.tcp.client.Client;
+import fr.upem.net.tcp.client.IncomingTransfer;
+import fr.upem.net.tcp.client.OutgoingTransfer;
+
+/**
+ * Measure the throughput of a file transfer over loopback with a simulated
+ * latency, for a growing number of streams. Each stream goes through a proxy
+ * which delays the data and only lets a bounded window of bytes in flight,
+ * like a TCP connection on a link with a high bandwidth-delay product.
+ *
+ * <pre>
+ * java fr.upem.net.tcp.bench.TransferBenchmark [size MB] [latency ms] [window KB] [max streams]
+ * </pre>
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class TransferBenchmark {
+	private static final int SEGMENTSIZ = 16 * 1024;
+	private static final Segment END = new Segment(null, 0);
+
+	private static class Segment {
+		private final ByteBuffer data;
+		private final long deliverAt;
+
+		private Segment(ByteBuffer data, long deliverAt) {
+			this.data = data;
+			this.deliverAt = deliverAt;
+		}
+	}
+
+	/**
+	 * Forward the data of a connection after a delay, with at most
+	 * {@code window} bytes in flight.
+	 */
+	private static void proxy(SocketChannel in, SocketChannel out, long latency, int window) {
+		BlockingQueue<Segment> queue = new ArrayBlockingQueue<>(Math.max(1, window / SEGMENTSIZ));
+		Thread writer = new Thread(() -> {
+			try {
+				for (Segment segment = queue.take(); segment != END; segment = queue.take()) {
+					long wait = segment.deliverAt - System.nanoTime();
+					if (wait > 0) {
+						Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+					}
+					while (segment.data.hasRemaining()) {
+						out.write(segment.data);
+					}
+				}
+				out.shutdownOutput();
+			} catch (IOException | InterruptedException e) {
+				// benchmark ends
+			}
+		});
+		writer.start();
+		try {
+			while (true) {
+				ByteBuffer bb = ByteBuffer.allocate(SEGMENTSIZ);
+				if (-1 == in.read(bb)) {
+					break;
+				}
+				bb.flip();
+				queue.put(new Segment(bb, System.nanoTime() + latency * 1_000_000));
+			}
+			queue.put(END);
+			writer.join();
+		} catch (IOException | InterruptedException e) {
+			writer.interrupt();
+		}
+	}
+
+	private static long run(Path src, long latency, int window, int nbStreams) throws Exception {
+		// files are always received in the working directory
+		Path dst = Paths.get("bench-" + nbStreams + ".dst");
+		OutgoingTransfer outgoing = OutgoingTransfer.create(1, "bench", src, dst.toString());
+		IncomingTransfer incoming = IncomingTransfer.create(1, "bench", dst.toString(),
+				outgoing.getFilesize());
+		try (ServerSocketChannel server = ServerSocketChannel.open();
+				ServerSocketChannel relay = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress("localhost", 0));
+			relay.bind(new InetSocketAddress("localhost", 0));
+			Thread[] threads = new Thread[3 * nbStreams];
+			long start = System.nanoTime();
+			for (int stripe = 0; stripe < nbStreams; stripe++) {
+				int s = stripe;
+				SocketChannel sender = SocketChannel.open(relay.getLocalAddress());
+				SocketChannel relayIn = relay.accept();
+				SocketChannel relayOut = SocketChannel.open(server.getLocalAddress());
+				SocketChannel receiver = server.accept();
+				threads[3 * s] = new Thread(() -> {
+					try (SocketChannel sc = sender) {
+						outgoing.writeStripe(sc, 0, s, nbStreams);
+					} catch (IOException ioe) {
+						throw new IllegalStateException(ioe);
+					}
+				});
+				threads[3 * s + 1] = new Thread(() -> {
+					try (SocketChannel a = relayIn; SocketChannel b = relayOut) {
+						proxy(a, b, latency, window);
+					} catch (IOException ioe) {
+						// Do nothing
+					}
+				});
+				threads[3 * s + 2] = new Thread(() -> receive(receiver, incoming));
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (!incoming.isComplete()) {
+				throw new IllegalStateException("transfer incomplete with " + nbStreams + " streams");
+			}
+			incoming.complete();
+			return elapsed;
+		} finally {
+			Files.deleteIfExists(dst);
+		}
+	}
+
+	private static void receive(SocketChannel sc, IncomingTransfer incoming) {
+		ByteBuffer bb = ByteBuffer.allocate(Client.BUFSIZ);
+		ByteBuffer bbChunk = ByteBuffer.allocateDirect(Client.CHUNKSIZ);
+		try (sc) {
+			while (true) {
+				byte opcode;
+				try {
+					opcode = readByte(sc, bb);
+				} catch (IOException ioe) {
+					return; // stripe sent
+				}
+				if (opcode != 16) {
+					throw new IOException("Unexpected opcode: " + opcode);
+				}
+				readLong(sc, bb);
+				long offset = readLong(sc, bb);
+				int length = readInt(sc, bb);
+				int checksum = readInt(sc, bb);
+				if (!incoming.receiveChunk(sc, bbChunk, offset, length, checksum)) {
+					throw new IOException("Wrong checksum for chunk " + offset);
+				}
+			}
+		} catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		int window = (args.length > 2 ? Integer.parseInt(args[2]) : 256) * 1024;
+		int maxStreams = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		Path src = Files.createTempFile("bench", ".src");
+		try {
+			ByteBuffer bb = ByteBuffer.allocate(1024 * 1024);
+			try (FileChannel fc = FileChannel.open(src, StandardOpenOption.WRITE)) {
+				for (int i = 0; i < sizeMB; i++) {
+					bb.clear();
+					while (bb.hasRemaining()) {
+						bb.putLong(i * 31L + bb.position());
+					}
+					bb.flip();
+					fc.write(bb);
+				}
+			}
+			System.out.println("File of " + sizeMB + " MB, latency " + latency + " ms, window "
+					+ window / 1024 + " KB");
+			for (int nbStreams = 1; nbStreams <= maxStreams; nbStreams++) {
+				long elapsed = run(src, latency, window, nbStreams);
+				System.out.printf("%d stream(s): %.2f s, %.1f MB/s%n", nbStreams, elapsed / 1e9,
+						sizeMB / (elapsed / 1e9));
+			}
+		} finally {
+			Files.deleteIfExists(src);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package fr.upem.net.tcp.bench;
+
+import static fr.upem.net.tcp.client.ScReaders.readByte;
+import static fr.upem.net.tcp.client.ScReaders.readFully;
+import static fr.upem.net.tcp.client.ScReaders.readInt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.client.Client;
+import fr.upem.net.tcp.nonblocking.Server;
+import fr.upem.net.tcp.nonblocking.ServerConfig;
+
+/**
+ * Compare loopback TCP with the Unix domain socket of the {@link Server}. A
+ * client of each transport measures the round trip of a public message
+ * through the server, then the throughput of public messages with a bounded
+ * window of messages in flight, so that the server never drops it for a full
+ * queue.
+ *
+ * <pre>
+ * java fr.upem.net.tcp.bench.TransportBenchmark [port] [round trips] [messages] [message size]
+ * </pre>
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class TransportBenchmark {
+	private static final int WINDOW = 32;
+
+	/**
+	 * Log in with the protocol version 1 and skip the confirmation.
+	 */
+	private static SocketChannel login(SocketAddress address, String nickname)
+			throws IOException {
+		SocketChannel sc = SocketChannel.open(address);
+		byte[] bytes = nickname.getBytes(Server.CHARSET_NICKNAME);
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + 2 * Integer.BYTES + bytes.length);
+		bb.put((byte) 0).putInt(bytes.length).put(bytes).putInt(0);
+		bb.flip();
+		write(sc, bb);
+		return sc;
+	}
+
+	private static void write(SocketChannel sc, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			sc.write(bb);
+		}
+	}
+
+	/**
+	 * Public message packet, in read mode.
+	 */
+	private static ByteBuffer message(int size) {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + size);
+		bb.put((byte) 4).putInt(size);
+		while (bb.hasRemaining()) {
+			bb.put((byte) 'x');
+		}
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Read packets until a public message, which is the one sent by this
+	 * client since it is alone on its transport.
+	 */
+	private static void awaitMessage(SocketChannel sc, ByteBuffer bb, ByteBuffer bbSkip)
+			throws IOException {
+		while (true) {
+			byte opcode = readByte(sc, bb);
+			switch (opcode) {
+			case 1: // confirmation
+				readByte(sc, bb);
+				readInt(sc, bb);
+				break;
+			case 3: // connected clients
+				for (int nb = readInt(sc, bb); nb > 0; nb--) {
+					skip(sc, bbSkip, readInt(sc, bb));
+				}
+				break;
+			case 2: // joined
+			case 19: // left
+				skip(sc, bbSkip, readInt(sc, bb));
+				break;
+			case 5:
+				skip(sc, bbSkip, readInt(sc, bb));
+				skip(sc, bbSkip, readInt(sc, bb));
+				return;
+			default:
+				throw new IOException("Unexpected opcode: " + opcode);
+			}
+		}
+	}
+
+	private static void skip(SocketChannel sc, ByteBuffer bbSkip, int size) throws IOException {
+		bbSkip.clear();
+		bbSkip.limit(size);
+		if (!readFully(sc, bbSkip)) {
+			throw new IOException("Connection closed");
+		}
+	}
+
+	private static void roundTrips(String name, SocketAddress address, int count, int size)
+			throws IOException {
+		try (SocketChannel sc = login(address, name + "-rtt")) {
+			ByteBuffer bb = ByteBuffer.allocate(Client.BUFSIZ);
+			ByteBuffer bbSkip = ByteBuffer.allocate(Server.MAX_MSGSIZ);
+			ByteBuffer bbmsg = message(size);
+			long[] times = new long[count];
+			for (int i = 0; i < count; i++) {
+				long start = System.nanoTime();
+				write(sc, bbmsg.duplicate());
+				awaitMessage(sc, bb, bbSkip);
+				times[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(times);
+			System.out.printf("%-4s round trip: median %.1f us, p99 %.1f us%n", name,
+					times[count / 2] / 1e3, times[count * 99 / 100] / 1e3);
+		}
+	}
+
+	private static void throughput(String name, SocketAddress address, int count, int size)
+			throws Exception {
+		try (SocketChannel sc = login(address, name + "-tput")) {
+			Semaphore window = new Semaphore(WINDOW);
+			Thread writer = new Thread(() -> {
+				ByteBuffer bbmsg = message(size);
+				try {
+					for (int i = 0; i < count; i++) {
+						window.acquire();
+						write(sc, bbmsg.duplicate());
+					}
+				} catch (IOException | InterruptedException e) {
+					// benchmark ends
+				}
+			});
+			ByteBuffer bb = ByteBuffer.allocate(Client.BUFSIZ);
+			ByteBuffer bbSkip = ByteBuffer.allocate(Server.MAX_MSGSIZ);
+			long start = System.nanoTime();
+			writer.start();
+			for (int i = 0; i < count; i++) {
+				awaitMessage(sc, bb, bbSkip);
+				window.release();
+			}
+			long elapsed = System.nanoTime() - start;
+			writer.join();
+			System.out.printf("%-4s throughput: %.0f messages/s, %.1f MB/s%n", name,
+					count / (elapsed / 1e9), (double) count * size / (elapsed / 1e3));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 7999;
+		int roundTrips = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+		int size = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		Path path = Files.createTempFile("bench", ".sock");
+		Server server = new Server(ServerConfig.parse(
+				new String[] { Integer.toString(port), "--unix=" + path }));
+		Thread serverThread = new Thread(server::launch);
+		serverThread.start();
+		Thread.sleep(500);
+		// the fine logs of each iteration would cost more than the transports
+		Logger.getLogger("ServerLogger").setLevel(Level.WARNING);
+		try {
+			SocketAddress tcp = new InetSocketAddress("localhost", port);
+			SocketAddress unix = UnixDomainSocketAddress.of(path);
+			System.out.println("Messages of " + size + " bytes");
+			roundTrips("tcp", tcp, roundTrips, size);
+			roundTrips("unix", unix, roundTrips, size);
+			throughput("tcp", tcp, messages, size);
+			throughput("unix", unix, messages, size);
+		} finally {
+			serverThread.interrupt();
+			serverThread.join();
+		}
+	}
+}
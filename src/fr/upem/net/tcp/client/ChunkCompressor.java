@@ -0,0 +1,216 @@
+package fr.upem.net.tcp.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the chunks of a file on worker threads while the previous ones
+ * are being written, and inflates the compressed chunks received.
+ *
+ * <p>
+ * A compressed chunk is only sent if it saves at least an eighth of the
+ * chunk. Otherwise the next {@link #SKIPPED_CHUNKS} chunks of the transfer are
+ * sent raw without trying, so that archives or images cost almost nothing.
+ * </p>
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class ChunkCompressor {
+	/** Number of chunks compressed ahead of the one being written. */
+	private static final int DEPTH = 4;
+	/** Chunks sent raw after a chunk which did not compress. */
+	static final int SKIPPED_CHUNKS = 16;
+	private static final ExecutorService WORKERS = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread t = new Thread(r, "ChunkCompressor");
+				t.setDaemon(true);
+				return t;
+			});
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+	private static final ThreadLocal<byte[]> INPUTS = ThreadLocal
+			.withInitial(() -> new byte[Client.CHUNKSIZ]);
+	private static final ThreadLocal<byte[]> OUTPUTS = ThreadLocal
+			.withInitial(() -> new byte[Client.CHUNKSIZ]);
+
+	/**
+	 * Where the chunks of a file are written.
+	 */
+	interface Output {
+		/**
+		 * Write a chunk as it is in the file.
+		 */
+		void writeChunk(FileChannel fc, long offset) throws IOException;
+
+		/**
+		 * Write a packet already built.
+		 */
+		void writePacket(ByteBuffer bb) throws IOException;
+	}
+
+	private ChunkCompressor() {
+		// Utils class, no constructor
+	}
+
+	/**
+	 * Write the chunks of a file from {@code first}, every {@code step}
+	 * bytes. If the transfer is compressed, the next chunks are compressed by
+	 * the workers while a chunk is being written.
+	 *
+	 * @param transfer
+	 *            the file being sent
+	 * @param fc
+	 *            {@link FileChannel} given by {@link OutgoingTransfer#open()}
+	 * @param first
+	 *            offset of the first chunk
+	 * @param step
+	 *            between two chunks, multiple of {@link Client#CHUNKSIZ}
+	 * @param output
+	 *            where to write the chunks
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	static void send(OutgoingTransfer transfer, FileChannel fc, long first, long step,
+			Output output) throws IOException {
+		long filesize = transfer.getFilesize();
+		TransferProgress progress = transfer.getProgress();
+		if (!transfer.isCompressed()) {
+			for (long offset = first; offset < filesize; offset += step) {
+				output.writeChunk(fc, offset);
+				progress.advance(Math.min(Client.CHUNKSIZ, filesize - offset));
+			}
+			return;
+		}
+		ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+		long next = first;
+		try {
+			for (long offset = first; offset < filesize; offset += step) {
+				for (; next < filesize && pending.size() < DEPTH; next += step) {
+					long chunk = next;
+					pending.add(WORKERS.submit(() -> compress(transfer, fc, chunk)));
+				}
+				ByteBuffer bb = pending.remove().get();
+				if (null == bb) {
+					output.writeChunk(fc, offset);
+				} else {
+					output.writePacket(bb);
+				}
+				progress.advance(Math.min(Client.CHUNKSIZ, filesize - offset));
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compressing");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			throw new IllegalStateException(ee.getCause());
+		} finally {
+			for (Future<ByteBuffer> future : pending) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Compress a chunk of a file.
+	 *
+	 * <pre>
+	 * +--------+-------------+--------+--------+----------+-------------------+-------+
+	 * | opcode | transfer ID | offset | length | checksum | compressed length | data  |
+	 * +--------+-------------+--------+--------+----------+-------------------+-------+
+	 * |   23   |    long     |  long  |  int   |   int    |        int        | bytes |
+	 * +--------+-------------+--------+--------+----------+-------------------+-------+
+	 * </pre>
+	 *
+	 * The length and the checksum are the ones of the chunk before
+	 * compression.
+	 *
+	 * @return the packet, flipped, or {@code null} if the chunk has to be sent
+	 *         raw
+	 */
+	private static ByteBuffer compress(OutgoingTransfer transfer, FileChannel fc, long offset)
+			throws IOException {
+		if (transfer.skipCompression()) {
+			return null;
+		}
+		int length = (int) Math.min(Client.CHUNKSIZ, transfer.getFilesize() - offset);
+		byte[] input = INPUTS.get();
+		transfer.slice(fc, offset, length).get(input, 0, length);
+		byte[] output = OUTPUTS.get();
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		int compressedLength = 0;
+		int limit = length - length / 8;
+		while (!deflater.finished() && compressedLength < limit) {
+			compressedLength += deflater.deflate(output, compressedLength, limit - compressedLength);
+		}
+		if (!deflater.finished()) {
+			transfer.notCompressible(SKIPPED_CHUNKS);
+			return null;
+		}
+		CRC32C crc = new CRC32C();
+		crc.update(input, 0, length);
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES
+				+ Integer.BYTES + Integer.BYTES + compressedLength);
+		bb.put((byte) 23);
+		bb.putLong(transfer.getId());
+		bb.putLong(offset);
+		bb.putInt(length);
+		bb.putInt((int) crc.getValue());
+		bb.putInt(compressedLength);
+		bb.put(output, 0, compressedLength);
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Inflate a compressed chunk.
+	 *
+	 * @param compressed
+	 *            {@link ByteBuffer} containing the compressed data, backed by
+	 *            an array
+	 * @param length
+	 *            of the chunk before compression
+	 * @return {@link ByteBuffer} containing the chunk, or {@code null} if the
+	 *         compressed data is corrupted
+	 */
+	static ByteBuffer inflate(ByteBuffer compressed, int length) {
+		byte[] output = OUTPUTS.get();
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(),
+				compressed.remaining());
+		int inflated = 0;
+		try {
+			while (!inflater.finished() && inflated < length) {
+				int n = inflater.inflate(output, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					return null;
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException dfe) {
+			return null;
+		}
+		if (!inflater.finished() || inflated != length) {
+			return null;
+		}
+		return ByteBuffer.wrap(output, 0, length);
+	}
+}
@@ -2,29 +2,39 @@ package fr.upem.net.tcp.client;
 
 import static fr.upem.net.tcp.client.ScReaders.readAddress;
 import static fr.upem.net.tcp.client.ScReaders.readByte;
+import static fr.upem.net.tcp.client.ScReaders.readFully;
 import static fr.upem.net.tcp.client.ScReaders.readInt;
 import static fr.upem.net.tcp.client.ScReaders.readLong;
 import static fr.upem.net.tcp.client.ScReaders.readString;
+import static fr.upem.net.tcp.client.ScReaders.readVarint;
 
-import java.awt.Color;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Random;
+import java.util.function.Function;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Class used as a client using the TIRC protocol.
@@ -36,13 +46,41 @@ public class Client {
 	private static final Logger LOGGER = Logger.getLogger("ClientLogger");
 	private FileHandler fh;
 	public static final int BUFSIZ = 4096;
+	/** Size of the chunks used to stream file data. */
+	public static final int CHUNKSIZ = 64 * 1024;
 	public static final int MAX_NICKLEN = 15;
 	private static final int MAX_MSGSIZ = 2048;
+	/**
+	 * Version of the protocol requested at login, which needs a server of the
+	 * version 2: older ones refuse the login.
+	 */
+	private static final int PROTOCOL_VERSION = 2;
+	/** Flag requested at login to receive compressed public messages. */
+	private static final int FLAG_COMPRESSION = 1;
+	/** Flag requested at login to only receive the presence of the watched. */
+	private static final int FLAG_PRESENCE = 2;
+	/** Flag requested at login to resume the session after a drop. */
+	private static final int FLAG_RESUME = 4;
+	/** Time between two attempts to resume the session. */
+	private static final int RESUME_RETRY_DELAY = 500;
+	/** Flag of a direct message kept while the client was offline. */
+	private static final int FLAG_MAILBOX = 1;
+	/** Format of the time of the direct messages kept while offline. */
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+	/** Maximum number of messages in a batch. */
+	public static final int MAX_BATCH = 64;
+	/** Maximum size of the messages of a batch, with their sizes. */
+	private static final int MAX_BATCHSIZ = 4000;
 	public static final Charset CS_NICKNAME = Charset.forName("ASCII");
 	public static final Charset CS_UTF8 = Charset.forName("UTF-8");
 	/** Time before sending a keep alive packet */
 	private static final int KEEP_ALIVE_DELAY = 2000;
-	private final SocketChannel sc;
+	private final SocketAddress host;
+	/** Replaced when the session is resumed on a new connection. */
+	private volatile SocketChannel sc;
+	/** Reading side of {@code sc}, only used by the thread of {@link #launch()}. */
+	private CountingChannel in;
 	private final ByteBuffer bbin;
 	private final ByteBuffer bbout;
 	private final String nickname;
@@ -60,11 +98,17 @@ public class Client {
 	private final HashMap<String, Thread[]> privateConnectionThreads = new HashMap<>();
 	/** Set of nicknames of connected clients. */
 	private final HashSet<String> connectedNicknames = new HashSet<>();
+	/** Nicknames of connected clients by ID, in the protocol version 2. */
+	private final HashMap<Integer, String> nicknamesById = new HashMap<>();
+	/** Version of the protocol accepted by the server. */
+	private int version = 1;
+	/** Inflate the compressed public messages. */
+	private final Inflater inflater = new Inflater();
 	/** Nicknames in private connections with their client's server */
-	private final ConcurrentHashMap<String, DualConnection> privateConnections = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, MultiplexedConnection> privateConnections = new ConcurrentHashMap<>();
 	/** User has close client */
 	private boolean hasQuit;
-	private final ClientGUI clientGUI = new ClientGUI(this);
+	private final ClientUI ui;
 	/** Used to generate a token for private communication */
 	private final Random randomId = new Random();
 	/** Server where client listen for private connection */
@@ -75,8 +119,21 @@ public class Client {
 	/** Nicknames who requested a connection with us, but not yet answered */
 	private HashSet<String> pendingPrivateConnections = new HashSet<>();
 
-	/** Associates nickname with the path to the file to be sent to him */
-	private HashMap<String, Path> filesToSend = new HashMap<>();
+	/** Private connections are always relayed by the chat server */
+	private volatile boolean relay;
+
+	/** Only the presence of the nicknames given with /watch is received */
+	private boolean presenceOnInterest;
+
+	/** File transfers with other clients */
+	private final TransferManager transfers;
+
+	/** Token to resume the session, 0 if the server did not give one */
+	private volatile long resumeToken;
+	/** Milliseconds the server keeps the session after a drop */
+	private int resumeGrace;
+	/** Offset in the stream of the server after the last complete packet */
+	private long received;
 
 	@FunctionalInterface
 	private interface Handeable {
@@ -85,23 +142,29 @@ public class Client {
 
 	/* Core */
 
-	private Client(SocketChannel sc, ByteBuffer bbin, ByteBuffer bbout, String nickname,
-			ClientServer clientServer, int listenport) throws SecurityException, IOException {
+	private Client(SocketAddress host, SocketChannel sc, ByteBuffer bbin, ByteBuffer bbout,
+			String nickname, ClientServer clientServer, int listenport,
+			Function<Client, ClientUI> uiFactory) throws SecurityException, IOException {
+		this.host = host;
 		this.sc = sc;
+		this.in = new CountingChannel(sc, 0);
+		this.ui = uiFactory.apply(this);
 		this.bbin = bbin;
 		this.bbout = bbout;
 		this.nickname = nickname;
 		this.clientServer = clientServer;
-		this.clientServer.setUI(clientGUI);
-		this.clientServer.setFilesToSend(filesToSend);
+		this.clientServer.setUI(ui);
 		this.listenport = listenport;
+		this.transfers = new TransferManager(ui, nickname, listenport);
+		this.clientServer.setTransfers(transfers);
 	}
 
 	/**
 	 * Creates a client.
 	 * 
 	 * @param host
-	 *            the address of the host
+	 *            the address of the host, or a {@link UnixDomainSocketAddress}
+	 *            on the host of the server
 	 * @param nickname
 	 *            the nickname of the client user
 	 * @param listenport
@@ -111,19 +174,43 @@ public class Client {
 	 * @throws IOException
 	 *             if some I/O error occurs
 	 */
-	public static Client create(InetSocketAddress host, String nickname, int listenport)
+	public static Client create(SocketAddress host, String nickname, int listenport)
 			throws IOException {
+		return create(host, nickname, listenport, ClientGUI::new);
+	}
+
+	/**
+	 * Creates a client with a given user interface.
+	 * 
+	 * @param host
+	 *            the address of the host, or a {@link UnixDomainSocketAddress}
+	 *            on the host of the server
+	 * @param nickname
+	 *            the nickname of the client user
+	 * @param listenport
+	 *            the port where the client is listening for private
+	 *            communication
+	 * @param uiFactory
+	 *            creates the user interface of the client, such as
+	 *            {@link ClientGUI} or {@link ConsoleUI}
+	 * @return a new client.
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public static Client create(SocketAddress host, String nickname, int listenport,
+			Function<Client, ClientUI> uiFactory) throws IOException {
 		Objects.requireNonNull(host);
 		Objects.requireNonNull(nickname);
+		Objects.requireNonNull(uiFactory);
 		if (listenport < 0 || listenport > 65535) {
 			throw new IllegalArgumentException("Listening port is not valid: " + listenport);
 		}
 		ByteBuffer bbin = ByteBuffer.allocate(BUFSIZ);
 		ByteBuffer bbout = ByteBuffer.allocate(BUFSIZ);
-		SocketChannel sc = SocketChannel.open();
-		sc.connect(host);
+		SocketChannel sc = SocketChannel.open(host);
 		ClientServer clientServer = ClientServer.create(listenport);
-		Client client = new Client(sc, bbin, bbout, nickname, clientServer, listenport);
+		Client client = new Client(host, sc, bbin, bbout, nickname, clientServer, listenport,
+				uiFactory);
 		client.initHandles();
 		return client;
 	}
@@ -139,6 +226,18 @@ public class Client {
 		handler.put((byte) 7, () -> confirmPrivateConnection());
 		handler.put((byte) 9, () -> proceedPrivateConnection());
 		handler.put((byte) 19, () -> clientHasLeft());
+		handler.put((byte) 25, () -> receivedMessages());
+		handler.put((byte) 26, () -> connectedClientsV2());
+		handler.put((byte) 27, () -> clientHasJoinedV2());
+		handler.put((byte) 28, () -> clientHasLeftV2());
+		handler.put((byte) 29, () -> receivedMessageV2());
+		handler.put((byte) 30, () -> receivedMessagesV2());
+		handler.put((byte) 31, () -> receivedCompressedMessages());
+		handler.put((byte) 33, () -> relayRequested());
+		handler.put((byte) 37, () -> receivedDirectMessage());
+		handler.put((byte) 38, () -> directMessageStatus());
+		handler.put((byte) 42, () -> resumeToken());
+		handler.put((byte) 45, () -> senderId());
 	}
 
 	/**
@@ -147,7 +246,7 @@ public class Client {
 	 * @throws IOException
 	 */
 	private void close() throws IOException {
-		// clientGUI.exit();
+		// ui.exit();
 		keepAliveThread.interrupt();
 		clientServer.shutdownNow();
 		serverThread.interrupt();
@@ -159,11 +258,28 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Only receive the presence of the nicknames given with /watch, instead
+	 * of the list of the connected clients and every join and leave. To call
+	 * before {@link #logMeIn()}, the response of the server tells whether it
+	 * is granted.
+	 * 
+	 * @param presenceOnInterest
+	 *            {@code true} to only receive the presence of the watched
+	 */
+	public void setPresenceOnInterest(boolean presenceOnInterest) {
+		this.presenceOnInterest = presenceOnInterest;
+	}
+
 	/**
 	 * Print usage.
 	 */
 	public static void usage() {
-		System.out.println("Client host port nickname listenport");
+		System.out.println("Client host port nickname listenport [--headless] [--watch]");
+		System.out.println("  host can be unix:path, a Unix domain socket of the server,"
+				+ " the port is then ignored");
+		System.out.println("  --watch only shows the presence of the nicknames given with"
+				+ " /watch nickname...");
 	}
 
 	/**
@@ -197,8 +313,11 @@ public class Client {
 					bb.flip();
 					sc.write(bb);
 				} catch (IOException ioe) {
-					LOGGER.log(Level.SEVERE, ioe.toString(), ioe);
-					return;
+					if (0 == resumeToken) {
+						LOGGER.log(Level.SEVERE, ioe.toString(), ioe);
+						return;
+					}
+					// the session may be resumed on a new connection
 				}
 				try {
 					Thread.sleep(KEEP_ALIVE_DELAY);
@@ -211,18 +330,99 @@ public class Client {
 			}
 		});
 		keepAliveThread.start();
+		ui.start();
 
-		try {
-			while (true) {
-				Byte opcode = readByte(sc, bbin);
-				handler.getOrDefault(opcode, () -> error(opcode)).handle();
-			}
-		} catch (IOException ioe) {
-			if (!hasQuit) {
-				clientGUI.println("Connection lost with server", Color.red);
+		while (true) {
+			try {
+				while (true) {
+					Byte opcode = readByte(in, bbin);
+					handler.getOrDefault(opcode, () -> error(opcode)).handle();
+					received = in.count();
+				}
+			} catch (IOException ioe) {
+				if (hasQuit) {
+					return;
+				}
 				LOGGER.log(Level.SEVERE, ioe.toString(), ioe);
+				if (!resumeSession()) {
+					ui.println("Connection lost with server", TextColor.RED);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resume the session on a new connection, retried until the grace period
+	 * given by the server ends. The server sends again what follows the last
+	 * complete packet, so that nothing is missed nor shown twice, and the
+	 * other clients do not see this one leave and join again.
+	 * 
+	 * <pre>
+	 * +--------+---------------+----------+-------+--------+
+	 * | opcode | nickname size | nickname | token | offset |
+	 * +--------+---------------+----------+-------+--------+
+	 * |   43   |      int      |  bytes   | long  |  long  |
+	 * +--------+---------------+----------+-------+--------+
+	 * </pre>
+	 * 
+	 * @return {@code true} if resumed, {@code false} otherwise
+	 */
+	private boolean resumeSession() {
+		if (0 == resumeToken) {
+			return false;
+		}
+		ui.println("Connection lost with server, resuming the session...", TextColor.RED);
+		silentlyClose(sc);
+		ByteBuffer bbNickname = CS_NICKNAME.encode(nickname);
+		ByteBuffer bb = ByteBuffer.allocate(
+				Byte.BYTES + Integer.BYTES + bbNickname.remaining() + Long.BYTES + Long.BYTES);
+		bb.put((byte) 43);
+		bb.putInt(bbNickname.remaining());
+		bb.put(bbNickname);
+		bb.putLong(resumeToken);
+		bb.putLong(received);
+		long deadline = System.currentTimeMillis() + resumeGrace;
+		while (!hasQuit && System.currentTimeMillis() < deadline) {
+			SocketChannel newSc = null;
+			try {
+				newSc = SocketChannel.open(host);
+				bb.flip();
+				while (bb.hasRemaining()) {
+					newSc.write(bb);
+				}
+				if (44 != readByte(newSc, bbin) || 0 != readByte(newSc, bbin)) {
+					LOGGER.warning("Session could not be resumed");
+					silentlyClose(newSc);
+					resumeToken = 0;
+					return false;
+				}
+				in = new CountingChannel(newSc, received);
+				sc = newSc;
+				LOGGER.info("Session resumed from " + received);
+				ui.println("Session resumed.", TextColor.BLUE);
+				return true;
+			} catch (IOException ioe) {
+				silentlyClose(newSc);
+				LOGGER.fine("Could not resume the session: " + ioe);
+			}
+			try {
+				Thread.sleep(RESUME_RETRY_DELAY);
+			} catch (InterruptedException ie) {
+				return false;
+			}
+		}
+		resumeToken = 0;
+		return false;
+	}
+
+	private static void silentlyClose(SocketChannel sc) {
+		if (sc != null) {
+			try {
+				sc.close();
+			} catch (IOException e) {
+				// Do nothing
 			}
-			return;
 		}
 	}
 
@@ -253,31 +453,31 @@ public class Client {
 			}
 			String toNickname = argsInput[1];
 			if (toNickname.equals(nickname)) {
-				clientGUI.println("Cannot request a private communication with yourself.",
-						Color.red);
+				ui.println("Cannot request a private communication with yourself.",
+						TextColor.RED);
 				break;
 			}
 			if (hasRequestPrivateConnection(toNickname)) {
-				clientGUI.println(
+				ui.println(
 						"You already made a private connection request with " + toNickname + ".",
-						Color.red);
+						TextColor.RED);
 				break;
 			}
 			if (isPrivateConnected(toNickname)) {
-				clientGUI.println("You're already connected with " + toNickname + ".", Color.red);
+				ui.println("You're already connected with " + toNickname + ".", TextColor.RED);
 				break;
 			}
 			if (pendingPrivateConnections.contains(toNickname)) {
-				clientGUI.println("You already have a pending private connection request from "
-						+ toNickname + ".", Color.red);
+				ui.println("You already have a pending private connection request from "
+						+ toNickname + ".", TextColor.RED);
 				break;
 			}
 			packetClientInfoRequest(toNickname);
 			// Remember that you requested a private connection
 			requestsPrivateConnection.add(toNickname);
-			clientGUI.println(
+			ui.println(
 					"Private request with " + toNickname + " made, waiting for confirmation.",
-					Color.blue);
+					TextColor.BLUE);
 			break;
 		case "/w":
 			if (!hasAtLeastArgs(argsInput, 3)) {
@@ -285,18 +485,22 @@ public class Client {
 			}
 			toNickname = argsInput[1];
 			if (toNickname.equals(nickname)) {
-				clientGUI.println("Cannot send a private message to yourself.", Color.red);
+				ui.println("Cannot send a private message to yourself.", TextColor.RED);
 				break;
 			}
 			String msg = argsInput[2];
 			if (!sendPrivateMessage(toNickname, msg)) {
-				clientGUI.println(
-						"You must request a private connection before: /private " + toNickname,
-						Color.red);
-				bbout.clear();
+				// routed by the server, kept for the recipient if offline
+				if (CS_NICKNAME.encode(toNickname).remaining() > MAX_NICKLEN) {
+					ui.println("Invalid nickname: " + toNickname, TextColor.RED);
+					bbout.clear();
+					break;
+				}
+				packetDirectMessage(toNickname, msg);
+				ui.println("*" + nickname + "* " + msg, TextColor.ORANGE);
 				break;
 			}
-			clientGUI.println("*" + nickname + "* " + msg, Color.orange);
+			ui.println("*" + nickname + "* " + msg, TextColor.ORANGE);
 			bbout.clear();
 			break;
 		case "/f": // File transfer request
@@ -305,35 +509,103 @@ public class Client {
 			}
 			toNickname = argsInput[1];
 			if (toNickname.equals(nickname)) {
-				clientGUI.println("Cannot send a file to yourself.", Color.red);
+				ui.println("Cannot send a file to yourself.", TextColor.RED);
 				break;
 			}
 			// parse the tilde in path if there is one
 			argsInput[2] = argsInput[2].replaceFirst("^~", System.getProperty("user.home"));
 			Path path = Paths.get(argsInput[2]);
 			if (Files.notExists(path)) {
-				clientGUI.println("The file does not exist : " + argsInput[2], Color.red);
+				ui.println("The file does not exist : " + argsInput[2], TextColor.RED);
 				break;
 			}
-			if (filesToSend.containsKey(toNickname)) {
-				clientGUI.println("You are already transfering a file with " + toNickname + ".",
-						Color.red);
-				break;
-			}
-			if (!sendFileTransferRequest(toNickname, path)) {
-				clientGUI.println(
+			int queued = sendFileTransferRequest(toNickname, path);
+			if (queued < 0) {
+				ui.println(
 						"You must request a private connection before: /private " + toNickname,
-						Color.red);
+						TextColor.RED);
 				bbout.clear();
 				break;
 			}
-			// remember you want to send that file to him
-			filesToSend.put(toNickname, path);
-			clientGUI.println(
-					"File transfer with " + toNickname + " made, waiting for confirmation.",
-					Color.blue);
+			ui.println(queued + " file(s) queued for " + toNickname
+					+ ", waiting for confirmation.", TextColor.BLUE);
 			bbout.clear();
 			break;
+		case "/streams": // Extra connections for file transfers
+			if (!hasAtLeastArgs(argsInput, 2)) {
+				break;
+			}
+			try {
+				transfers.setExtraStreams(Integer.parseInt(argsInput[1]));
+			} catch (IllegalArgumentException iae) { // includes NumberFormatException
+				ui.println("Number of streams must be between 0 and "
+						+ TransferManager.MAX_STREAMS + ".", TextColor.RED);
+				break;
+			}
+			ui.println("Large files will be sent with " + argsInput[1]
+					+ " extra connection(s).", TextColor.BLUE);
+			break;
+		case "/compress": // Compression of file transfers
+			if (!hasAtLeastArgs(argsInput, 2)) {
+				break;
+			}
+			if (!argsInput[1].equals("on") && !argsInput[1].equals("off")) {
+				ui.println("Usage: /compress on|off", TextColor.RED);
+				break;
+			}
+			transfers.setCompression(argsInput[1].equals("on"));
+			ui.println("Compression of file transfers is " + argsInput[1] + ".",
+					TextColor.BLUE);
+			break;
+		case "/watch": // Presence of some nicknames only
+		case "/unwatch":
+			if (!hasAtLeastArgs(argsInput, 2)) {
+				break;
+			}
+			if (!presenceOnInterest) {
+				ui.println("The presence of everyone is already received.", TextColor.RED);
+				break;
+			}
+			boolean watch = argsInput[0].equals("/watch");
+			for (int i = 1; i < argsInput.length; i++) {
+				if (CS_NICKNAME.encode(argsInput[i]).remaining() > MAX_NICKLEN) {
+					ui.println("Invalid nickname: " + argsInput[i], TextColor.RED);
+					continue;
+				}
+				packetWatch(watch, argsInput[i]);
+				if (!watch) {
+					connectedNicknames.remove(argsInput[i]);
+				}
+			}
+			break;
+		case "/relay": // Private connections relayed by the chat server
+			if (!hasAtLeastArgs(argsInput, 2)) {
+				break;
+			}
+			if (!argsInput[1].equals("on") && !argsInput[1].equals("off")) {
+				ui.println("Usage: /relay on|off", TextColor.RED);
+				break;
+			}
+			relay = argsInput[1].equals("on");
+			ui.println("New private connections are "
+					+ (relay ? "always relayed by the server." : "direct when possible."),
+					TextColor.BLUE);
+			break;
+		case "/scrollback": // Number of lines kept in the chat
+			if (!hasAtLeastArgs(argsInput, 2)) {
+				break;
+			}
+			try {
+				ui.setScrollback(Integer.parseInt(argsInput[1]));
+			} catch (IllegalArgumentException iae) { // includes NumberFormatException
+				ui.println("Scrollback must be a positive number of lines.", TextColor.RED);
+				break;
+			}
+			ui.println("The last " + argsInput[1] + " lines are kept.", TextColor.BLUE);
+			break;
+		case "/transfers": // History and progress of file transfers
+			transfers.printTransfers();
+			break;
 		case "/q": // Quit private connection
 			if (!hasAtLeastArgs(argsInput, 2)) {
 				break;
@@ -351,11 +623,11 @@ public class Client {
 			}
 			toNickname = argsInput[1];
 			if (!acceptPrivateInput(toNickname, true)) {
-				clientGUI.println(toNickname + " did not request for private communication.",
-						Color.red);
+				ui.println(toNickname + " did not request for private communication.",
+						TextColor.RED);
 				break;
 			}
-			clientGUI.println("Private connection with " + toNickname + " accepted.", Color.blue);
+			ui.println("Private connection with " + toNickname + " accepted.", TextColor.BLUE);
 			break;
 		case "/n": // Refuse private connection
 			if (!hasAtLeastArgs(argsInput, 2)) {
@@ -363,24 +635,24 @@ public class Client {
 			}
 			toNickname = argsInput[1];
 			if (!acceptPrivateInput(toNickname, false)) {
-				clientGUI.println(toNickname + " did not request for private communication.",
-						Color.red);
+				ui.println(toNickname + " did not request for private communication.",
+						TextColor.RED);
 				break;
 			}
-			clientGUI.println("Private connection with " + toNickname + " refused.", Color.blue);
+			ui.println("Private connection with " + toNickname + " refused.", TextColor.BLUE);
 			break;
 		/*
 		 * case "/yf": // Accept file transfer if (!hasAtLeastArgs(argsInput,
 		 * 2)) { break; } toNickname = argsInput[1]; if
 		 * (!acceptFileTransfer(toNickname, true)) {
-		 * clientGUI.println(toNickname + " did not request a file transfer.",
-		 * Color.red); break; } clientGUI.println("File transfer with " +
-		 * toNickname + " accepted.", Color.blue); break;
+		 * ui.println(toNickname + " did not request a file transfer.",
+		 * TextColor.RED); break; } ui.println("File transfer with " +
+		 * toNickname + " accepted.", TextColor.BLUE); break;
 		 */
 		default:
 			String command = argsInput[0];
 			if (command.startsWith("/")) {
-				clientGUI.println("Unknown command: " + argsInput[0], Color.red);
+				ui.println("Unknown command: " + argsInput[0], TextColor.RED);
 				break;
 			}
 			packetMessage(command);
@@ -398,11 +670,61 @@ public class Client {
 		}
 		if (hasQuit) {
 			LOGGER.info("Has quit");
-			clientGUI.exit();
+			ui.exit();
 			close();
 		}
 	}
 
+	/**
+	 * Send public messages, packed in as few packets as possible.
+	 * 
+	 * @param msgs
+	 *            messages to send, which are not commands
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public void sendPublicMessages(List<String> msgs) throws IOException {
+		if (msgs.size() == 1) {
+			processInput(msgs.get(0));
+			return;
+		}
+		ByteBuffer bbBatch = ByteBuffer.allocate(BUFSIZ);
+		int count = 0;
+		for (String msg : msgs) {
+			ByteBuffer bbmsg = CS_UTF8.encode(msg);
+			bbmsg.limit((bbmsg.limit() > MAX_MSGSIZ) ? MAX_MSGSIZ - 1 : bbmsg.limit());
+			int batchSize = bbBatch.position() - Byte.BYTES - Integer.BYTES;
+			if (count == MAX_BATCH || (count > 0
+					&& batchSize + Integer.BYTES + bbmsg.remaining() > MAX_BATCHSIZ)) {
+				writeBatch(bbBatch, count);
+				count = 0;
+			}
+			if (count == 0) {
+				bbBatch.clear();
+				bbBatch.put((byte) 24);
+				bbBatch.putInt(0); // number of messages, set when written
+			}
+			bbBatch.putInt(bbmsg.remaining());
+			bbBatch.put(bbmsg);
+			count++;
+		}
+		if (count > 0) {
+			writeBatch(bbBatch, count);
+		}
+	}
+
+	private void writeBatch(ByteBuffer bbBatch, int count) {
+		bbBatch.putInt(Byte.BYTES, count);
+		bbBatch.flip();
+		try {
+			while (bbBatch.hasRemaining()) {
+				sc.write(bbBatch);
+			}
+		} catch (IOException ioe) {
+			LOGGER.log(Level.SEVERE, ioe.toString(), ioe);
+		}
+	}
+
 	private boolean acceptPrivateInput(String toNickname, boolean accept) throws IOException {
 		if (!pendingPrivateConnections.remove(toNickname)) {
 			return false;
@@ -415,20 +737,6 @@ public class Client {
 		return true;
 	}
 
-	// TODO private again after implementing user input?
-	boolean replyFileTransfer(String toNickname, boolean accept) throws IOException {
-		/*
-		 * if (!pendingFileTransfers.remove(toNickname)) { return false; }
-		 */
-		if (accept) {
-			packetAcceptFileTransfer();
-		} else {
-			packetRefuseFileTransfer();
-		}
-		writePrivateFile(toNickname);
-		return true;
-	}
-
 	private boolean hasAtLeastArgs(String[] args, int expectedArgsLength) {
 		if (args.length < expectedArgsLength || args[1].equals("")) {
 			usageCommand(args[0]);
@@ -444,7 +752,7 @@ public class Client {
 	 *            to print usage
 	 */
 	private void usageCommand(String command) {
-		clientGUI.println("Insufficient arguments for command " + command, Color.red);
+		ui.println("Insufficient arguments for command " + command, TextColor.RED);
 	}
 
 	/**
@@ -458,7 +766,7 @@ public class Client {
 		// if it's a command
 		if (input.startsWith("/")) {
 			// if it's a whisper : /w | nickname | msg
-			if (input.startsWith("/w")) {
+			if (input.startsWith("/w ")) {
 				return input.split(" ", 3);
 			}
 			// if it's a file transfer request : /f | nickname | path
@@ -477,14 +785,16 @@ public class Client {
 	 * Print all connected clients
 	 */
 	private void printConnectedClients() {
-		clientGUI.println("Connected: ", Color.blue);
-		connectedNicknames.forEach(n -> clientGUI.println("\t" + n, Color.blue));
+		ui.println("Connected: ", TextColor.BLUE);
+		connectedNicknames.forEach(n -> ui.println("\t" + n, TextColor.BLUE));
 	}
 
 	/* Request to server */
 
 	/**
-	 * Performs the connection of the client to the server.
+	 * Performs the connection of the client to the server, which must support
+	 * the protocol version 2: the response ends with the version and the flags
+	 * granted, and servers of the version 1 close the connection instead.
 	 * 
 	 * @return {@code true} if successfully connected, {@code false} otherwise
 	 * @throws IOException
@@ -494,17 +804,31 @@ public class Client {
 		packetRequestConnection();
 		bbout.flip();
 		sc.write(bbout);
-		if (1 != readByte(sc, bbin)) {
+		byte opcode;
+		try {
+			opcode = readByte(in, bbin);
+		} catch (IOException ioe) {
+			LOGGER.warning("No response to the login: " + ioe);
+			ui.println("The server closed the connection, it may not support the protocol"
+					+ " version " + PROTOCOL_VERSION + ".", TextColor.RED);
 			return false;
 		}
-		byte code = readByte(sc, bbin);
+		if (1 != opcode) {
+			return false;
+		}
+		byte code = readByte(in, bbin);
 		if (code == 0) {
-			numberConnected = readInt(sc, bbin);
-			clientGUI.println("You are connected as " + nickname + ".", Color.blue);
-			clientGUI.println(numberConnected + " person(s) connected.", Color.blue);
+			numberConnected = readInt(in, bbin);
+			version = readByte(in, bbin);
+			byte flags = readByte(in, bbin);
+			LOGGER.info("Protocol version " + version + ", flags " + flags);
+			presenceOnInterest = (flags & FLAG_PRESENCE) != 0;
+			received = in.count();
+			ui.println("You are connected as " + nickname + ".", TextColor.BLUE);
+			ui.println(numberConnected + " person(s) connected.", TextColor.BLUE);
 			return true;
 		} else {
-			clientGUI.println("Your nickname is already taken.", Color.red);
+			ui.println("Your nickname is already taken.", TextColor.RED);
 			return false;
 		}
 	}
@@ -523,7 +847,7 @@ public class Client {
 			id = randomId.nextLong();
 		} while (id == (long) 0);
 		if (!clientServer.registerClient(nickname, id)) {
-			clientGUI.println("You're already connected with " + nickname + ".", Color.red);
+			ui.println("You're already connected with " + nickname + ".", TextColor.RED);
 			return;
 		}
 		packetAcceptPrivateCommunication(nickname, id);
@@ -545,7 +869,7 @@ public class Client {
 
 	/**
 	 * Write the content of {@code ByteBuffer} bbout in the private messages and
-	 * the file transfers connections.
+	 * the file transfers streams.
 	 * 
 	 * @param toNickname
 	 *            nickname of user to write to
@@ -555,7 +879,7 @@ public class Client {
 	 *             if some I/O error occurs with user
 	 */
 	private boolean writePrivateGlobal(String toNickname) throws IOException {
-		DualConnection connection = privateConnections.get(toNickname);
+		MultiplexedConnection connection = privateConnections.get(toNickname);
 		// if could not find connection, try as a server
 		if (null == connection) {
 			return clientServer.sendPrivateGlobal(toNickname, bbout);
@@ -567,7 +891,7 @@ public class Client {
 
 	/**
 	 * Write the content of {@code ByteBuffer} bbout in the private messages
-	 * connection only.
+	 * stream only.
 	 * 
 	 * @param toNickname
 	 *            nickname of user to write to
@@ -577,7 +901,7 @@ public class Client {
 	 *             if some I/O error occurs with user
 	 */
 	private boolean writePrivateMessage(String toNickname) throws IOException {
-		DualConnection connection = privateConnections.get(toNickname);
+		MultiplexedConnection connection = privateConnections.get(toNickname);
 		// if could not find connection, try as a server
 		if (null == connection) {
 			return clientServer.sendPrivateMessage(toNickname, bbout);
@@ -589,7 +913,7 @@ public class Client {
 
 	/**
 	 * Write the content of {@code ByteBuffer} bbout in the file transfers
-	 * connection only.
+	 * stream only.
 	 * 
 	 * @param toNickname
 	 *            nickname of user to write to
@@ -599,7 +923,7 @@ public class Client {
 	 *             if some I/O error occurs with user
 	 */
 	private boolean writePrivateFile(String toNickname) throws IOException {
-		DualConnection connection = privateConnections.get(toNickname);
+		MultiplexedConnection connection = privateConnections.get(toNickname);
 		// if could not find connection, try as a server
 		if (null == connection) {
 			return clientServer.sendPrivateFile(toNickname, bbout);
@@ -610,41 +934,20 @@ public class Client {
 	}
 
 	/**
-	 * Send a file's data.
-	 * 
-	 * @param nickname
-	 *            to send the data to
-	 * @throws IOException
-	 *             if some I/O error occurs
-	 */
-	public void sendFile(String nickname) throws IOException {
-		DualConnection connection = privateConnections.get(nickname);
-		if (null != connection) {
-			Path path = filesToSend.get(nickname); // retrieve path
-			ByteBuffer bbFile = packetFile(path);
-			bbFile.flip();
-			connection.writeInFiles(bbFile);
-		}
-	}
-
-	/**
-	 * Transmit an id token for each connection (private messages and files) to
-	 * client to authenticate.
+	 * Transmit the id token to the client to authenticate, once for both
+	 * streams of the private connection.
 	 * 
 	 * @param connection
-	 *            the connection to write the IDs in
+	 *            the connection to write the ID in
 	 * @param id
 	 *            given by the user
 	 * @throws IOException
 	 *             if some I/O error occurs with user
 	 */
-	private void clientGiveIds(DualConnection connection, long id) throws IOException {
-		packetClientGiveIdMessages(id);
-		bbout.flip();
-		connection.writeInMessages(bbout);
-		packetClientGiveIdFiles(id);
+	private void clientGiveId(MultiplexedConnection connection, long id) throws IOException {
+		packetClientGiveId(id);
 		bbout.flip();
-		connection.writeInFiles(bbout);
+		connection.authenticate(bbout);
 	}
 
 	/**
@@ -664,10 +967,31 @@ public class Client {
 		return writePrivateMessage(toNickname); // in private msg connection
 	}
 
-	private boolean sendFileTransferRequest(String toNickname, Path path) throws IOException {
-		clientServer.addFileToSendAsServer(toNickname, path);
-		packetSendFileTransferRequest(path);
-		return writePrivateFile(toNickname); // in files connection
+	/**
+	 * Queue a file or a directory to send, and send the manifests of its
+	 * files.
+	 * 
+	 * @param toNickname
+	 *            nickname of user to send the files to
+	 * @param path
+	 *            to the file or directory to send
+	 * @return the number of files queued, or {@code -1} if user was not found
+	 * @throws IOException
+	 *             if some I/O error occurs with user
+	 */
+	private int sendFileTransferRequest(String toNickname, Path path) throws IOException {
+		List<OutgoingTransfer> batch = transfers.prepare(toNickname, path);
+		if (batch.isEmpty()) {
+			return 0; // empty directory
+		}
+		for (ByteBuffer bbRequest : transfers.packetsFileTransferRequest(batch)) {
+			packetSendFileTransferRequest(bbRequest);
+			if (!writePrivateFile(toNickname)) { // in files stream
+				transfers.forgetOutgoing(toNickname, batch);
+				return -1;
+			}
+		}
+		return batch.size();
 	}
 
 	/**
@@ -683,7 +1007,7 @@ public class Client {
 	private boolean sendPrivateDisconnection(String toNickname) throws IOException {
 		packetSendPrivateDisconnection();
 		if (!writePrivateGlobal(toNickname)) {
-			clientGUI.println("No private connection with " + toNickname + ".", Color.red);
+			ui.println("No private connection with " + toNickname + ".", TextColor.RED);
 			return false;
 		}
 		privateDisconnect(toNickname);
@@ -703,7 +1027,9 @@ public class Client {
 		bbout.put((byte) 0);
 		bbout.putInt(bbNickname.remaining());
 		bbout.put(bbNickname);
-		bbout.putInt(listenport);
+		// the highest bytes of the port are the protocol version and flags
+		int flags = FLAG_COMPRESSION | (presenceOnInterest ? FLAG_PRESENCE : 0) | FLAG_RESUME;
+		bbout.putInt(PROTOCOL_VERSION << 24 | flags << 16 | listenport);
 	}
 
 	/**
@@ -721,6 +1047,42 @@ public class Client {
 		bbout.put(bbmsg);
 	}
 
+	/**
+	 * Packet direct message, routed by the server
+	 * 
+	 * @param toNickname
+	 *            nickname of the recipient, online or not
+	 * @param msg
+	 *            Message to send to the recipient.
+	 */
+	private void packetDirectMessage(String toNickname, String msg) {
+		bbout.clear();
+		ByteBuffer bbNickname = CS_NICKNAME.encode(toNickname);
+		ByteBuffer bbmsg = CS_UTF8.encode(msg);
+		bbmsg.limit((bbmsg.limit() > MAX_MSGSIZ) ? MAX_MSGSIZ - 1 : bbmsg.limit());
+		bbout.put((byte) 36);
+		bbout.putInt(bbNickname.remaining());
+		bbout.put(bbNickname);
+		bbout.putInt(bbmsg.remaining());
+		bbout.put(bbmsg);
+	}
+
+	/**
+	 * Packet watch or stop watching the presence of a nickname, appended to
+	 * the output buffer.
+	 * 
+	 * @param watch
+	 *            {@code true} to watch, {@code false} to stop
+	 * @param nickname
+	 *            The nickname to watch.
+	 */
+	private void packetWatch(boolean watch, String nickname) {
+		ByteBuffer bbNickname = CS_NICKNAME.encode(nickname);
+		bbout.put(watch ? (byte) 40 : (byte) 41);
+		bbout.putInt(bbNickname.remaining());
+		bbout.put(bbNickname);
+	}
+
 	/**
 	 * Packet disconnect with server
 	 */
@@ -776,42 +1138,16 @@ public class Client {
 		bbout.put(bbNickname);
 	}
 
-	/**
-	 * Packet accept a file transfer
-	 * 
-	 * @param nickname
-	 *            The nickname of the client we're accepting the transfer from.
-	 * @param id
-	 *            The id that client will need to send to prove his identity.
-	 */
-	private void packetAcceptFileTransfer() {
-		bbout.clear();
-		bbout.put((byte) 15);
-		bbout.put((byte) 0);
-	}
-
-	/**
-	 * Packet refuse a file transfer.
-	 * 
-	 * @param nickname
-	 *            The nickname of the client we're refusing the transfer from.
-	 */
-	private void packetRefuseFileTransfer() {
-		bbout.clear();
-		bbout.put((byte) 15);
-		bbout.put((byte) 1);
-	}
-
 	/* Client to client packet */
 
 	/**
 	 * Packet send the given id to the client's server to prove identity, for
-	 * the private messages connection
+	 * the private connection. The frames of its streams follow.
 	 * 
 	 * @param id
 	 *            The given id.
 	 */
-	private void packetClientGiveIdMessages(long id) {
+	private void packetClientGiveId(long id) {
 		bbout.clear();
 		ByteBuffer bbNickname = CS_NICKNAME.encode(nickname);
 		bbout.put((byte) 10);
@@ -820,22 +1156,6 @@ public class Client {
 		bbout.putLong(id);
 	}
 
-	/**
-	 * Packet send the given id to the client's server to prove identity, for
-	 * the file transfers connection
-	 * 
-	 * @param id
-	 *            The given id.
-	 */
-	private void packetClientGiveIdFiles(long id) {
-		bbout.clear();
-		ByteBuffer bbNickname = CS_NICKNAME.encode(nickname);
-		bbout.put((byte) 11);
-		bbout.putInt(bbNickname.remaining());
-		bbout.put(bbNickname);
-		bbout.putLong(id);
-	}
-
 	/**
 	 * Packet send a private message.
 	 * 
@@ -852,43 +1172,16 @@ public class Client {
 	}
 
 	/**
-	 * Packet send a file transfer request.
+	 * Packet send a manifest of files to transfer.
 	 * 
-	 * @param msg
-	 *            message to send
-	 * @throws IOException
-	 *             if some I/O error occurs
+	 * @param bbRequest
+	 *            a manifest given by
+	 *            {@link TransferManager#packetsFileTransferRequest(List)}
 	 */
-	private void packetSendFileTransferRequest(Path path) throws IOException {
-		long filesize = Files.size(path);
-		String filename = path.getFileName().toString();
+	private void packetSendFileTransferRequest(ByteBuffer bbRequest) {
 		bbout.clear();
-		ByteBuffer bbFilename = CS_UTF8.encode(filename);
-		int filenameSize = bbFilename.remaining();
-		bbout.put((byte) 14);
-		bbout.putInt(filenameSize);
-		bbout.put(bbFilename);
-		bbout.putLong(filesize);
-	}
-
-	/**
-	 * Packet send a file's data.
-	 * 
-	 * @param path
-	 *            to the file to be sent
-	 * @throws IOException
-	 *             if some I/O error occurs
-	 * @return the {@code ByteBuffer} containing the packet
-	 */
-	public static ByteBuffer packetFile(Path path) throws IOException {
-		long filesize = Files.size(path);
-		ByteBuffer bbFile = ByteBuffer
-				.allocate(Byte.BYTES + Long.BYTES + Byte.BYTES * (int) filesize);
-		byte[] data = Files.readAllBytes(path);
-		bbFile.put((byte) 16);
-		bbFile.putLong(filesize);
-		bbFile.put(data);
-		return bbFile;
+		bbRequest.flip();
+		bbout.put(bbRequest);
 	}
 
 	/**
@@ -915,10 +1208,40 @@ public class Client {
 	 *             if some I/O error occurs
 	 */
 	private void clientHasJoined() throws IOException {
-		int size = readInt(sc, bbin);
-		String nickname = readString(sc, bbin, size, CS_NICKNAME);
+		int size = readInt(in, bbin);
+		String nickname = readString(in, bbin, size, CS_NICKNAME);
+		joined(nickname);
+	}
+
+	private void joined(String nickname) {
 		connectedNicknames.add(nickname);
-		clientGUI.println(nickname + " has joined.", Color.blue);
+		ui.println(nickname + " has joined.", TextColor.BLUE);
+	}
+
+	/**
+	 * If opcode 27, a client has joined, with its ID.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void clientHasJoinedV2() throws IOException {
+		int id = readVarint(in, bbin);
+		String nickname = readString(in, bbin, readVarint(in, bbin), CS_NICKNAME);
+		nicknamesById.put(id, nickname);
+		joined(nickname);
+	}
+
+	/**
+	 * If opcode 45, the ID of the sender of the next public messages, which
+	 * may not be watched.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void senderId() throws IOException {
+		int id = readVarint(in, bbin);
+		String nickname = readString(in, bbin, readVarint(in, bbin), CS_NICKNAME);
+		nicknamesById.put(id, nickname);
 	}
 
 	/**
@@ -928,10 +1251,26 @@ public class Client {
 	 *             if some I/O error occurs
 	 */
 	private void connectedClients() throws IOException {
-		int nb = readInt(sc, bbin);
+		int nb = readInt(in, bbin);
+		for (int i = 0; i < nb; i++) {
+			int size = readInt(in, bbin);
+			String nickname = readString(in, bbin, size, CS_NICKNAME);
+			connectedNicknames.add(nickname);
+		}
+	}
+
+	/**
+	 * If opcode 26, list of connected clients with their ID.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void connectedClientsV2() throws IOException {
+		int nb = readVarint(in, bbin);
 		for (int i = 0; i < nb; i++) {
-			int size = readInt(sc, bbin);
-			String nickname = readString(sc, bbin, size, CS_NICKNAME);
+			int id = readVarint(in, bbin);
+			String nickname = readString(in, bbin, readVarint(in, bbin), CS_NICKNAME);
+			nicknamesById.put(id, nickname);
 			connectedNicknames.add(nickname);
 		}
 	}
@@ -943,11 +1282,111 @@ public class Client {
 	 *             if some I/O error occurs
 	 */
 	private void receivedMessage() throws IOException {
-		int nicknameSize = readInt(sc, bbin);
-		String nickname = readString(sc, bbin, nicknameSize, CS_NICKNAME);
-		int msgSize = readInt(sc, bbin);
-		String msg = readString(sc, bbin, msgSize, CS_UTF8);
-		clientGUI.println("<" + nickname + ">" + " " + msg, Color.black);
+		int nicknameSize = readInt(in, bbin);
+		String nickname = readString(in, bbin, nicknameSize, CS_NICKNAME);
+		int msgSize = readInt(in, bbin);
+		String msg = readString(in, bbin, msgSize, CS_UTF8);
+		ui.println("<" + nickname + ">" + " " + msg, TextColor.BLACK);
+	}
+
+	/**
+	 * If opcode 29, received a public message with the ID of its sender.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void receivedMessageV2() throws IOException {
+		String nickname = nicknamesById.getOrDefault(readVarint(in, bbin), "?");
+		String msg = readString(in, bbin, readVarint(in, bbin), CS_UTF8);
+		ui.println("<" + nickname + ">" + " " + msg, TextColor.BLACK);
+	}
+
+	/**
+	 * If opcode 25, received a batch of public messages from the same client.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void receivedMessages() throws IOException {
+		int nicknameSize = readInt(in, bbin);
+		String nickname = readString(in, bbin, nicknameSize, CS_NICKNAME);
+		int count = readInt(in, bbin);
+		for (int i = 0; i < count; i++) {
+			int msgSize = readInt(in, bbin);
+			String msg = readString(in, bbin, msgSize, CS_UTF8);
+			ui.println("<" + nickname + ">" + " " + msg, TextColor.BLACK);
+		}
+	}
+
+	/**
+	 * If opcode 30, received a batch of public messages with the ID of their
+	 * sender.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void receivedMessagesV2() throws IOException {
+		String nickname = nicknamesById.getOrDefault(readVarint(in, bbin), "?");
+		int count = readVarint(in, bbin);
+		for (int i = 0; i < count; i++) {
+			String msg = readString(in, bbin, readVarint(in, bbin), CS_UTF8);
+			ui.println("<" + nickname + ">" + " " + msg, TextColor.BLACK);
+		}
+	}
+
+	/**
+	 * If opcode 31, received a batch of compressed public messages with the ID
+	 * of their sender.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs or the messages are corrupted
+	 */
+	private void receivedCompressedMessages() throws IOException {
+		String nickname = nicknamesById.getOrDefault(readVarint(in, bbin), "?");
+		int count = readVarint(in, bbin);
+		int length = readVarint(in, bbin);
+		int compressedLength = readVarint(in, bbin);
+		if (length > MAX_BATCHSIZ || compressedLength > BUFSIZ) {
+			throw new IOException("compressed messages too long");
+		}
+		ByteBuffer bbCompressed = ByteBuffer.allocate(compressedLength);
+		if (!readFully(in, bbCompressed)) {
+			throw new IOException("connection lost");
+		}
+		byte[] msgs = new byte[length];
+		inflater.reset();
+		inflater.setInput(bbCompressed.array());
+		try {
+			if (inflater.inflate(msgs) != length || !inflater.finished()) {
+				throw new IOException("corrupted compressed messages");
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("corrupted compressed messages", dfe);
+		}
+		ByteBuffer bbmsgs = ByteBuffer.wrap(msgs);
+		for (int i = 0; i < count; i++) {
+			int size = getVarint(bbmsgs);
+			ByteBuffer bbmsg = bbmsgs.slice();
+			bbmsg.limit(size);
+			bbmsgs.position(bbmsgs.position() + size);
+			ui.println("<" + nickname + ">" + " " + CS_UTF8.decode(bbmsg), TextColor.BLACK);
+		}
+	}
+
+	/**
+	 * Read a varint from a {@link ByteBuffer}, like
+	 * {@link ScReaders#readVarint(SocketChannel, ByteBuffer)}.
+	 */
+	private static int getVarint(ByteBuffer bb) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+			byte b = bb.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("varint too long");
 	}
 
 	/**
@@ -968,10 +1407,10 @@ public class Client {
 	 *             if some I/O error occurs
 	 */
 	private void confirmPrivateConnection() throws IOException {
-		int nicknameSize = readInt(sc, bbin);
-		String nickname = readString(sc, bbin, nicknameSize, CS_NICKNAME);
-		clientGUI.println(nickname + " has requested a private communication with you.\n"
-				+ "Accept ? (/y " + nickname + " or /n " + nickname + ")", Color.magenta);
+		int nicknameSize = readInt(in, bbin);
+		String nickname = readString(in, bbin, nicknameSize, CS_NICKNAME);
+		ui.println(nickname + " has requested a private communication with you.\n"
+				+ "Accept ? (/y " + nickname + " or /n " + nickname + ")", TextColor.MAGENTA);
 		pendingPrivateConnections.add(nickname);
 	}
 
@@ -985,29 +1424,102 @@ public class Client {
 	 *             if some I/O error occurs
 	 */
 	private void proceedPrivateConnection() throws IOException {
-		byte accept = readByte(sc, bbin);
-		int nicknameSize = readInt(sc, bbin);
-		String nickname = readString(sc, bbin, nicknameSize, CS_NICKNAME);
+		byte accept = readByte(in, bbin);
+		int nicknameSize = readInt(in, bbin);
+		String nickname = readString(in, bbin, nicknameSize, CS_NICKNAME);
 		if (accept == (byte) 1) {
-			clientGUI.println(nickname + " has refused private communication.", Color.red);
+			ui.println(nickname + " has refused private communication.", TextColor.RED);
 			requestsPrivateConnection.remove(nickname);
 			return;
 		}
-		byte ipv = readByte(sc, bbin);
+		byte ipv = readByte(in, bbin);
 		byte[] addr;
 		if (ipv == (byte) 4) {
-			addr = readAddress(sc, bbin, true);
+			addr = readAddress(in, bbin, true);
 		} else if (ipv == (byte) 6) {
-			addr = readAddress(sc, bbin, false);
+			addr = readAddress(in, bbin, false);
 		} else {
 			throw new IllegalStateException("wrong ip version " + ipv);
 		}
 		InetAddress inet = InetAddress.getByAddress(addr);
-		int port = readInt(sc, bbin);
-		long id = readLong(sc, bbin);
+		int port = readInt(in, bbin);
+		long id = readLong(in, bbin);
 		privateConnect(nickname, inet, port, id);
 	}
 
+	/**
+	 * If opcode 33, the other client of a private connection opened a channel
+	 * relayed by the server. Join it and serve it like a connection accepted
+	 * by the client's server.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void relayRequested() throws IOException {
+		long id = readLong(in, bbin);
+		byte role = readByte(in, bbin);
+		int channel = readInt(in, bbin);
+		SocketAddress relay = sc.getRemoteAddress();
+		try {
+			SocketChannel scRelayed = MultiplexedConnection.joinRelay(relay, id, role, channel);
+			clientServer.serveRelayed(scRelayed, relay, id);
+		} catch (IOException ioe) {
+			LOGGER.log(Level.WARNING, "Could not join relayed channel: " + ioe, ioe);
+		}
+	}
+
+	/**
+	 * If opcode 37, received a direct message routed by the server, with the
+	 * time it was sent if it was kept while we were offline.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void receivedDirectMessage() throws IOException {
+		byte flags = readByte(in, bbin);
+		String fromNickname = readString(in, bbin, readInt(in, bbin), CS_NICKNAME);
+		long time = readLong(in, bbin);
+		String msg = readString(in, bbin, readInt(in, bbin), CS_UTF8);
+		if ((flags & FLAG_MAILBOX) != 0) {
+			String sent = DATE_FORMAT.format(Instant.ofEpochMilli(time));
+			ui.println("*" + fromNickname + "* (" + sent + ") " + msg, TextColor.ORANGE);
+			return;
+		}
+		ui.println("*" + fromNickname + "* " + msg, TextColor.ORANGE);
+	}
+
+	/**
+	 * If opcode 42, the server gave the token to resume the session if the
+	 * connection is lost, and how long it keeps the session.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void resumeToken() throws IOException {
+		long token = readLong(in, bbin);
+		resumeGrace = readInt(in, bbin);
+		resumeToken = token;
+		LOGGER.info("Session resumable for " + resumeGrace + " ms");
+	}
+
+	/**
+	 * If opcode 38, a direct message could not be delivered right away.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void directMessageStatus() throws IOException {
+		byte status = readByte(in, bbin);
+		String toNickname = readString(in, bbin, readInt(in, bbin), CS_NICKNAME);
+		if (status == 1) {
+			ui.println(toNickname + " is offline, the message will be delivered at login.",
+					TextColor.BLUE);
+		} else {
+			ui.println(toNickname + " cannot receive messages offline, the message was lost.",
+					TextColor.RED);
+		}
+	}
+
 	/**
 	 * If opcode 19, received a client has left notification.
 	 * 
@@ -1015,18 +1527,34 @@ public class Client {
 	 *             if some I/O error occurs
 	 */
 	private void clientHasLeft() throws IOException {
-		int size = readInt(sc, bbin);
-		String nickname = readString(sc, bbin, size, CS_NICKNAME);
+		int size = readInt(in, bbin);
+		String nickname = readString(in, bbin, size, CS_NICKNAME);
+		left(nickname);
+	}
+
+	/**
+	 * If opcode 28, received a client has left notification with its ID.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void clientHasLeftV2() throws IOException {
+		String nickname = nicknamesById.remove(readVarint(in, bbin));
+		if (null != nickname) {
+			left(nickname);
+		}
+	}
+
+	private void left(String nickname) {
 		connectedNicknames.remove(nickname);
-		clientGUI.println(nickname + " has left.", Color.blue);
+		ui.println(nickname + " has left.", TextColor.BLUE);
 
 		// If made or received private connection request, reset
 		privateConnections.remove(nickname);
 		clientServer.revokeRequest(nickname);
 		pendingPrivateConnections.remove(nickname);
 		requestsPrivateConnection.remove(nickname);
-		filesToSend.remove(nickname);
-		clientServer.forgetFileTransfer(nickname);
+		transfers.forget(nickname);
 	}
 
 	/* Other */
@@ -1040,15 +1568,17 @@ public class Client {
 	 */
 	private boolean isConnectedClient(String nickname) {
 		if (!connectedNicknames.contains(nickname)) {
-			clientGUI.println("Unknown nickname: " + nickname, Color.red);
+			ui.println("Unknown nickname: " + nickname
+					+ (presenceOnInterest ? ", watch it with /watch " + nickname : ""),
+					TextColor.RED);
 			return false;
 		}
 		return true;
 	}
 
 	/**
-	 * Establishes a private connection with the specified client. Implicitly
-	 * establishes 2 separate connections : 1 for messages, 1 for files.
+	 * Establishes a private connection with the specified client. A single
+	 * connection carries a stream for messages and a stream for files.
 	 * 
 	 * @param clientNickname
 	 *            nickname of client trying to establish a private connection to
@@ -1067,13 +1597,14 @@ public class Client {
 		}
 		InetSocketAddress server = new InetSocketAddress(iaServer, port);
 		try {
-			// open two connections : messages and files
-			DualConnection connection = DualConnection.createFromServer(server);
-			clientGiveIds(connection, id); // send OpCode 10 and 11
+			MultiplexedConnection connection = openPrivateConnection(clientNickname, server, id);
+			clientGiveId(connection, id); // send OpCode 10
 			// add sockets monitors
 			addSocketChannelReaders(connection, clientNickname);
 			// associates nickname with sockets
 			privateConnections.put(clientNickname, connection);
+			// resume file transfer interrupted with a previous connection
+			transfers.resume(clientNickname, connection);
 		} catch (IOException ioe) {
 			LOGGER.log(Level.WARNING, "Could not connect to " + clientNickname + ": " + ioe, ioe);
 			return;
@@ -1081,11 +1612,29 @@ public class Client {
 
 		LOGGER.info("Connected with " + clientNickname + " at " + iaServer + ":" + port);
 		requestsPrivateConnection.remove(clientNickname); // request done
-		clientGUI.println("Private connection established with " + clientNickname + ".",
-				Color.blue);
-		clientGUI.println("To communicate with him privately use: /w " + clientNickname,
-				Color.blue);
-		clientGUI.println("To send a file to him use: /f " + clientNickname, Color.blue);
+		ui.println("Private connection established with " + clientNickname + ".",
+				TextColor.BLUE);
+		ui.println("To communicate with him privately use: /w " + clientNickname,
+				TextColor.BLUE);
+		ui.println("To send a file to him use: /f " + clientNickname, TextColor.BLUE);
+	}
+
+	/**
+	 * Open a private connection, directly or relayed by the chat server if the
+	 * relay mode is on or the other client cannot be reached.
+	 */
+	private MultiplexedConnection openPrivateConnection(String clientNickname,
+			InetSocketAddress server, long id) throws IOException {
+		if (!relay) {
+			try {
+				return MultiplexedConnection.createFromServer(server);
+			} catch (IOException ioe) {
+				LOGGER.info("Could not reach " + clientNickname + " directly: " + ioe);
+			}
+		}
+		ui.println("Private connection with " + clientNickname + " relayed by the server.",
+				TextColor.BLUE);
+		return MultiplexedConnection.createFromRelay(sc.getRemoteAddress(), id);
 	}
 
 	/**
@@ -1114,7 +1663,7 @@ public class Client {
 	 *             if some I/O error occurs
 	 */
 	private void privateDisconnect(String clientNickname) throws IOException {
-		DualConnection connection = privateConnections.get(clientNickname);
+		MultiplexedConnection connection = privateConnections.get(clientNickname);
 		if (null != connection) {
 			for (Thread reader : privateConnectionThreads.get(clientNickname)) {
 				if (null == reader) {
@@ -1123,7 +1672,7 @@ public class Client {
 				}
 				reader.interrupt();
 			}
-			connection.closeAll();
+			connection.close();
 			privateConnections.remove(clientNickname);
 			return;
 		}
@@ -1136,12 +1685,12 @@ public class Client {
 	 * private received files.
 	 * 
 	 * @param connection
-	 *            {@code DualSocketChannel} to monitor
+	 *            {@code MultiplexedConnection} to monitor
 	 * @param clientNickname
 	 *            nickname of user to monitor
 	 */
-	private void addSocketChannelReaders(DualConnection connection, String clientNickname) {
-		Thread[] readers = connection.getReaders(clientNickname, clientGUI, this);
+	private void addSocketChannelReaders(MultiplexedConnection connection, String clientNickname) {
+		Thread[] readers = connection.getReaders(clientNickname, ui, this);
 		for (int i = 0; i < readers.length; i++) {
 			readers[i].start();
 			LOGGER.info("Started monitor [" + (i == 0 ? "messages" : "files") + "]" + " with "
@@ -1169,32 +1718,13 @@ public class Client {
 		privateConnections.remove(toNickname);
 	}
 
-	public void forgetFileTransfer(String nickname) {
-		filesToSend.remove(nickname);
-	}
-
-	public String getFilenameWithNickname(String nickname) {
-		return filesToSend.get(nickname).getFileName().toString();
-	}
-
 	/**
-	 * This client notifies the one specified by nickname that a transfer was
-	 * completed.
+	 * Getter for the file transfers of this client.
 	 * 
-	 * @param nickname
-	 *            of the other client to notify
-	 * @throws IOException
-	 *             if some I/O error occurs
+	 * @return the {@link TransferManager} of this client
 	 */
-	public void notifyTransferComplete(String nickname) throws IOException {
-		DualConnection connection = privateConnections.get(nickname);
-		if (null == connection) {
-			return;
-		}
-		bbout.clear();
-		bbout.put((byte) 17);
-		bbout.flip();
-		connection.writeInFiles(bbout);
+	TransferManager getTransfers() {
+		return transfers;
 	}
 
 	/*
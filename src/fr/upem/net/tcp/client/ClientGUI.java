@@ -10,6 +10,10 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -21,20 +25,30 @@ import javax.swing.JTextField;
 import javax.swing.JTextPane;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.WindowConstants;
 import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
+import javax.swing.text.StyledDocument;
 
 /**
  * Graphical user interface for a client
  * 
+ * <p>
+ * Printed lines are queued and appended to the chat by batches, at most once
+ * every {@link #FRAME_INTERVAL} milliseconds, and only the last lines are
+ * kept in the chat.
+ * </p>
+ * 
  * @author Cheneau and Lee
  *
  */
 @SuppressWarnings("serial")
-public class ClientGUI extends JFrame {
+public class ClientGUI extends JFrame implements ClientUI {
 
 	// describe behavior on menu item clicks
 	class MenuItemListener implements ActionListener {
@@ -50,12 +64,35 @@ public class ClientGUI extends JFrame {
 	private static final int WIDTH = 640;
 	private static final int HEIGHT = 480;
 	private static final String TITLE = "TIRC Client";
+	/** Milliseconds between two updates of the chat. */
+	private static final int FRAME_INTERVAL = 40;
+	/** Default number of lines kept in the chat. */
+	public static final int DEFAULT_SCROLLBACK = 2000;
 	private final Client client;
 	private JTextPane chatArea;
+	/** Lines printed and not yet appended to the chat. */
+	private final ConcurrentLinkedQueue<Line> pending = new ConcurrentLinkedQueue<>();
+	/** Whether an update of the chat is scheduled. */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Timer frameTimer = new Timer(FRAME_INTERVAL, e -> appendPending());
+	/** Style of the text for each color, only used by the event thread. */
+	private final HashMap<TextColor, AttributeSet> styles = new HashMap<>();
+	private volatile int scrollback = DEFAULT_SCROLLBACK;
+
+	private static class Line {
+		private final String text;
+		private final TextColor color;
+
+		private Line(String text, TextColor color) {
+			this.text = text;
+			this.color = color;
+		}
+	}
 
 	public ClientGUI(Client client) {
 		super(); // construct a new frame
 		this.client = client;
+		frameTimer.setRepeats(false);
 		chatArea = buildChat();
 		setFrameSettings();
 		setBehaviorOnClose();
@@ -160,25 +197,95 @@ public class ClientGUI extends JFrame {
 	 *            for the text
 	 * 
 	 */
-	public void println(String string, Color color) {
-		SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				appendToPane(string + "\n", color);
-			}
-		});
+	@Override
+	public void println(String string, TextColor color) {
+		pending.add(new Line(string + "\n", color));
+		if (scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(frameTimer::restart);
+		}
+	}
+
+	/**
+	 * Set the number of lines kept in the chat.
+	 * 
+	 * @param scrollback
+	 *            number of lines, strictly positive
+	 */
+	@Override
+	public void setScrollback(int scrollback) {
+		if (scrollback <= 0) {
+			throw new IllegalArgumentException("Scrollback must be positive: " + scrollback);
+		}
+		this.scrollback = scrollback;
 	}
 
-	private void appendToPane(String msg, Color c) {
-		StyleContext sc = StyleContext.getDefaultStyleContext();
-		AttributeSet aset = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, c);
+	/**
+	 * Append the pending lines to the chat, consecutive lines of the same
+	 * color at once, and remove the oldest lines beyond the scrollback.
+	 */
+	private void appendPending() {
+		scheduled.set(false);
+		int max = scrollback;
+		ArrayDeque<Line> lines = new ArrayDeque<>();
+		for (Line line = pending.poll(); null != line; line = pending.poll()) {
+			if (lines.size() == max) { // would be removed right away
+				lines.removeFirst();
+			}
+			lines.add(line);
+		}
+		StyledDocument doc = chatArea.getStyledDocument();
+		try {
+			StringBuilder run = new StringBuilder();
+			TextColor color = null;
+			for (Line line : lines) {
+				if (!line.color.equals(color) && run.length() > 0) {
+					doc.insertString(doc.getLength(), run.toString(), style(color));
+					run.setLength(0);
+				}
+				color = line.color;
+				run.append(line.text);
+			}
+			if (run.length() > 0) {
+				doc.insertString(doc.getLength(), run.toString(), style(color));
+			}
+			Element root = doc.getDefaultRootElement();
+			// the last element is the empty line after the last new line
+			int excess = root.getElementCount() - 1 - max;
+			if (excess > 0) {
+				doc.remove(0, root.getElement(excess - 1).getEndOffset());
+			}
+		} catch (BadLocationException ble) {
+			throw new AssertionError(ble); // offsets are always in the document
+		}
+		chatArea.setCaretPosition(doc.getLength());
+	}
 
-		aset = sc.addAttribute(aset, StyleConstants.FontFamily, "Lucida Console");
-		aset = sc.addAttribute(aset, StyleConstants.Alignment, StyleConstants.ALIGN_JUSTIFIED);
+	private AttributeSet style(TextColor color) {
+		return styles.computeIfAbsent(color, c -> {
+			StyleContext sc = StyleContext.getDefaultStyleContext();
+			AttributeSet aset = sc.addAttribute(SimpleAttributeSet.EMPTY,
+					StyleConstants.Foreground, toColor(c));
+			aset = sc.addAttribute(aset, StyleConstants.FontFamily, "Lucida Console");
+			return sc.addAttribute(aset, StyleConstants.Alignment,
+					StyleConstants.ALIGN_JUSTIFIED);
+		});
+	}
 
-		int len = chatArea.getDocument().getLength();
-		chatArea.setCaretPosition(len);
-		chatArea.setCharacterAttributes(aset, false);
-		chatArea.replaceSelection(msg);
+	private static Color toColor(TextColor color) {
+		switch (color) {
+		case BLUE:
+			return Color.blue;
+		case GRAY:
+			return Color.gray;
+		case MAGENTA:
+			return Color.magenta;
+		case ORANGE:
+			return Color.orange;
+		case RED:
+			return Color.red;
+		default:
+			return Color.black;
+		}
 	}
 
 	/**
@@ -187,6 +294,7 @@ public class ClientGUI extends JFrame {
 	 * @throws IOException
 	 *             if some I/O error occurs
 	 */
+	@Override
 	public void exit() throws IOException {
 		dispose();
 	}
@@ -1,22 +1,19 @@
 package fr.upem.net.tcp.client;
 
 import static fr.upem.net.tcp.client.ScReaders.readByte;
-import static fr.upem.net.tcp.client.ScReaders.readFileData;
 import static fr.upem.net.tcp.client.ScReaders.readInt;
 import static fr.upem.net.tcp.client.ScReaders.readLong;
 import static fr.upem.net.tcp.client.ScReaders.readString;
 
-import java.awt.Color;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.file.Path;
-import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,27 +42,18 @@ public class ClientServer {
 	private final ConcurrentHashMap<String, Long> privateConnectionsId = new ConcurrentHashMap<>();
 	/** Associate to a {@link SocketChannel}, nickname of user connected. */
 	private final ConcurrentHashMap<SocketChannel, String> nicknamesFromSc = new ConcurrentHashMap<>();
-	/** Associate to a nickname its {@link DualConnection}. */
-	private final ConcurrentHashMap<String, DualConnection> socketChannelClients = new ConcurrentHashMap<>();
+	/** Associate to a nickname its {@link MultiplexedConnection}. */
+	private final ConcurrentHashMap<String, MultiplexedConnection> socketChannelClients = new ConcurrentHashMap<>();
 
-	/** Associates to a nickname its socket channel for private messages */
-	private final ConcurrentHashMap<String, SocketChannel> scMessagesByNickname = new ConcurrentHashMap<>();
-	/** Associates to a nickname its socket channel for file transfers */
-	private final ConcurrentHashMap<String, SocketChannel> scFilesByNickname = new ConcurrentHashMap<>();
-	/**
-	 * Associates to a nickname the number of sockets that have been
-	 * authenticated
-	 */
-	private final ConcurrentHashMap<String, Integer> nbAuthenticatedByNickname = new ConcurrentHashMap<>();
+	/** Session ID of the connections relayed by the chat server. */
+	private final ConcurrentHashMap<SocketChannel, Long> relayedScs = new ConcurrentHashMap<>();
+	/** Address of the chat server relaying connections. */
+	private volatile SocketAddress relay;
 
-	private ClientGUI clientGUI;
+	private ClientUI ui;
 
-	/**
-	 * Associate a nickname with the name of the file to be received from him
-	 */
-	private HashMap<String, String> filesToReceive = new HashMap<>();
-	/** Associate nickname to the file to be sent to him */
-	private HashMap<String, Path> filesToSendAsServer = new HashMap<>();
+	/** File transfers of the client */
+	private TransferManager transfers;
 
 	/* Core */
 
@@ -96,22 +84,22 @@ public class ClientServer {
 	/**
 	 * Set user interface of server.
 	 * 
-	 * @param clientGUI
+	 * @param ui
 	 *            interface to use
 	 */
-	public void setUI(ClientGUI clientGUI) {
-		this.clientGUI = clientGUI;
+	public void setUI(ClientUI ui) {
+		this.ui = ui;
 	}
 
 	/**
-	 * Link the files this client (acting as server) will send, with the files
-	 * to send in the client.
+	 * Link the file transfers of this client (acting as server) with the file
+	 * transfers of the client.
 	 * 
-	 * @param map
-	 *            the map to the files to send in the client
+	 * @param transfers
+	 *            the file transfers of the client
 	 */
-	public void setFilesToSend(HashMap<String, Path> map) {
-		this.filesToSendAsServer = map;
+	public void setTransfers(TransferManager transfers) {
+		this.transfers = transfers;
 	}
 
 	/**
@@ -128,23 +116,8 @@ public class ClientServer {
 						scs[id] = client;
 					}
 					LOGGER.info("Connection accepted with" + Client.remoteAddressToString(client));
-					try {
-						serve(client);
-					} catch (AsynchronousCloseException ace) {
-						// client timeout continue
-						continue;
-					} catch (IOException ioe) { // disconnected with client
-						LOGGER.log(Level.WARNING, ioe.toString(), ioe);
-					} catch (InterruptedException ie) {
-						LOGGER.log(Level.INFO, "Server interrupted: " + ie.toString(), ie);
+					if (!serveAndClose(client)) {
 						return;
-					} finally {
-						LOGGER.info("Private connection closed.");
-						// close both messages and files connections
-						DualConnection connection = getDualConnectionFromSc(client);
-						if (null != connection) {
-							silentlyClose(connection);
-						}
 					}
 				} catch (ClosedChannelException ace) {
 					return;
@@ -156,7 +129,56 @@ public class ClientServer {
 		}
 	}
 
-	private DualConnection getDualConnectionFromSc(SocketChannel client) {
+	/**
+	 * Serve a connection, then close the private connection it belongs to.
+	 * 
+	 * @param client
+	 *            {@link SocketChannel} of the connection
+	 * @return {@code false} if the thread was interrupted, {@code true}
+	 *         otherwise
+	 */
+	private boolean serveAndClose(SocketChannel client) {
+		try {
+			serve(client);
+		} catch (AsynchronousCloseException ace) {
+			// client timeout continue
+		} catch (IOException ioe) { // disconnected with client
+			LOGGER.log(Level.WARNING, ioe.toString(), ioe);
+		} catch (InterruptedException ie) {
+			LOGGER.log(Level.INFO, "Server interrupted: " + ie.toString(), ie);
+			return false;
+		} finally {
+			LOGGER.info("Private connection closed.");
+			relayedScs.remove(client);
+			// also ends the files stream
+			MultiplexedConnection connection = getMultiplexedConnectionFromSc(client);
+			if (null != connection) {
+				silentlyClose(connection);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Serve a connection relayed by the chat server, opened by the other client
+	 * of a private connection, on a new thread.
+	 * 
+	 * @param sc
+	 *            {@link SocketChannel} of the relayed connection
+	 * @param relay
+	 *            address of the chat server
+	 * @param sessionId
+	 *            of the private connection
+	 */
+	public void serveRelayed(SocketChannel sc, SocketAddress relay, long sessionId) {
+		this.relay = relay;
+		relayedScs.put(sc, sessionId);
+		Thread t = new Thread(() -> serveAndClose(sc), "Relayed");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private MultiplexedConnection getMultiplexedConnectionFromSc(SocketChannel client) {
 		String nicknameServed = nicknamesFromSc.get(client);
 		if (null == nicknameServed) {
 			return null;
@@ -165,21 +187,20 @@ public class ClientServer {
 	}
 
 	/**
-	 * Serve a client for messages.
+	 * Serve a client for messages, reading with them the frames of the files
+	 * stream until the connection is closed.
 	 * 
+	 * @param nicknameServed
+	 *            nickname of the client
 	 * @param sc
-	 *            {@link SocketChannel} where message are received
+	 *            stream where message are received
 	 * @param bbin
 	 *            {@link ByteBuffer} where input is saved
 	 * @throws IOException
 	 *             if disconnected with client
 	 */
-	private void serveMessage(SocketChannel sc, ByteBuffer bbin) throws IOException {
-		String nicknameServed = nicknamesFromSc.get(sc);
-		if (null == nicknameServed) {
-			LOGGER.warning("Unknown client attempted to connect.");
-			return;
-		}
+	private void serveMessage(String nicknameServed, ReadableByteChannel sc, ByteBuffer bbin)
+			throws IOException {
 		boolean hasClosed = false;
 		while (true) {
 			try {
@@ -190,20 +211,20 @@ public class ClientServer {
 					break;
 				case 13:
 					hasClosed = true;
-					clientGUI.println(nicknameServed + " has closed private connection.", Color.blue);
-					return;
+					ui.println(nicknameServed + " has closed private connection.", TextColor.BLUE);
+					break;
 				default:
 					LOGGER.warning("Unknown opcode: " + opcode + " from " + nicknameServed);
 					return;
 				}
 			} catch (IOException ioe) {
 				if (!hasClosed && socketChannelClients.containsKey(nicknameServed)) {
-					clientGUI.println("Lost private connection with " + nicknameServed, Color.red);
+					ui.println("Lost private connection with " + nicknameServed, TextColor.RED);
 					LOGGER.warning("Lost private connection with " + nicknameServed);
 					unregisterClient(nicknameServed);
 					throw ioe;
 				} else {
-					clientGUI.println("Closed private connection with " + nicknameServed, Color.blue);
+					ui.println("Closed private connection with " + nicknameServed, TextColor.BLUE);
 					LOGGER.info("Closed private connection with " + nicknameServed);
 					return;
 				}
@@ -214,19 +235,17 @@ public class ClientServer {
 	/**
 	 * Serve a client for files.
 	 * 
+	 * @param nicknameServed
+	 *            nickname of the client
 	 * @param sc
-	 *            {@link SocketChannel} where files are received
+	 *            stream where files are received
 	 * @param bbin
 	 *            {@link ByteBuffer} where input is saved
 	 * @throws IOException
 	 *             if disconnected with client
 	 */
-	private void serveFile(SocketChannel sc, ByteBuffer bbin) throws IOException {
-		String nicknameServed = nicknamesFromSc.get(sc);
-		if (null == nicknameServed) {
-			LOGGER.warning("Unknown client attempted to connect.");
-			return;
-		}
+	private void serveFile(String nicknameServed, ReadableByteChannel sc, ByteBuffer bbin)
+			throws IOException {
 		boolean hasClosed = false;
 		while (true) {
 			try {
@@ -235,24 +254,11 @@ public class ClientServer {
 				case 13:
 					hasClosed = true;
 					return;
-				case 14:
-					receivedFileTransferRequest(sc, bbin, nicknameServed);
-					break;
-				case 15:
-					receivedFileTransferReply(sc, bbin, nicknameServed);
-					break;
-				case 16:
-					String filename = filesToReceive.get(nicknameServed);
-					clientGUI.println("Transfer started \"" + filename + "\" from " + nicknameServed + ".",
-							Color.magenta);
-					receivedFile(sc, bbin, nicknameServed);
-					break;
-				case 17:
-					clientGUI.println(nicknameServed + " has received the file \""
-							+ filesToSendAsServer.get(nicknameServed) + "\".", Color.blue);
-					forgetFileTransfer(nicknameServed);
-					break;
 				default:
+					if (transfers.handle(opcode, nicknameServed, sc, bbin,
+							socketChannelClients.get(nicknameServed))) {
+						break;
+					}
 					LOGGER.warning("Unknown opcode: " + opcode + " from " + nicknameServed);
 					return;
 				}
@@ -282,19 +288,31 @@ public class ClientServer {
 	private void serve(SocketChannel sc) throws IOException, InterruptedException {
 		ByteBuffer bbin = ByteBuffer.allocate(Client.BUFSIZ);
 		byte opcode = readByte(sc, bbin);
-		if (!authentication(sc, bbin, opcode)) {
-			clientGUI.println("Could not authentificate client", Color.red);
-			LOGGER.warning(Client.remoteAddressToString(sc) + ": attempted to connected with false token");
+		if (opcode == 22) { // extra connection for a file transfer
+			try {
+				transfers.serveStream(sc, bbin);
+			} finally {
+				sc.close();
+			}
 			return;
 		}
-		if (opcode == 10) {
-			serveMessage(sc, bbin);
-		} else if (opcode == 11) {
-			serveFile(sc, bbin);
-		} else {
-			LOGGER.severe("Should not be here opcode: " + opcode);
+		if (!authentication(sc, bbin, opcode)) {
+			ui.println("Could not authentificate client", TextColor.RED);
+			LOGGER.warning(Client.remoteAddressToString(sc) + ": attempted to connected with false token");
 			return;
 		}
+		String nicknameServed = nicknamesFromSc.get(sc);
+		MultiplexedConnection connection = socketChannelClients.get(nicknameServed);
+		Thread files = new Thread(() -> {
+			try {
+				serveFile(nicknameServed, connection.files(), ByteBuffer.allocate(Client.BUFSIZ));
+			} catch (IOException ioe) {
+				LOGGER.log(Level.WARNING, ioe.toString(), ioe);
+			}
+		}, "Files " + nicknameServed);
+		files.setDaemon(true);
+		files.start();
+		serveMessage(nicknameServed, connection.messages(), bbin);
 	}
 
 	/**
@@ -306,7 +324,7 @@ public class ClientServer {
 	 *             if some I/O error occurs
 	 */
 	public void closePrivateConnection(String nickname) throws IOException {
-		DualConnection connection = socketChannelClients.get(nickname);
+		MultiplexedConnection connection = socketChannelClients.get(nickname);
 		socketChannelClients.remove(nickname);
 		nicknamesFromSc.values().remove(nickname);
 		silentlyClose(connection);
@@ -319,10 +337,10 @@ public class ClientServer {
 	 * @param connection
 	 *            to close
 	 */
-	private static void silentlyClose(DualConnection connection) {
+	private static void silentlyClose(MultiplexedConnection connection) {
 		if (connection != null) {
 			try {
-				connection.closeAll();
+				connection.close();
 			} catch (IOException e) {
 				// Do nothing
 			}
@@ -387,7 +405,7 @@ public class ClientServer {
 
 	/**
 	 * Send a private request to a connected client, in both the private
-	 * messages and the file transfers connections.
+	 * messages and the file transfers streams.
 	 * 
 	 * @param toNickname
 	 *            nickname of client to send message to
@@ -399,7 +417,7 @@ public class ClientServer {
 	 *             if some I/O error occurs
 	 */
 	public boolean sendPrivateGlobal(String toNickname, ByteBuffer bb) throws IOException {
-		DualConnection connection = socketChannelClients.get(toNickname);
+		MultiplexedConnection connection = socketChannelClients.get(toNickname);
 		if (null == connection) {
 			return false;
 		}
@@ -410,7 +428,7 @@ public class ClientServer {
 
 	/**
 	 * Send a private message to a connected client, in the private message
-	 * connection only.
+	 * stream only.
 	 * 
 	 * @param toNickname
 	 *            nickname of client to send message to
@@ -422,7 +440,7 @@ public class ClientServer {
 	 *             if some I/O error occurs
 	 */
 	public boolean sendPrivateMessage(String toNickname, ByteBuffer bbmsg) throws IOException {
-		DualConnection connection = socketChannelClients.get(toNickname);
+		MultiplexedConnection connection = socketChannelClients.get(toNickname);
 		if (null == connection) {
 			return false;
 		}
@@ -432,8 +450,8 @@ public class ClientServer {
 	}
 
 	/**
-	 * Send a private file to a connected client, in the file transfers
-	 * connection only.
+	 * Send a private file to a connected client, in the file transfers stream
+	 * only.
 	 * 
 	 * @param toNickname
 	 *            nickname of client to send the file to
@@ -445,7 +463,7 @@ public class ClientServer {
 	 *             if some I/O error occurs
 	 */
 	public boolean sendPrivateFile(String toNickname, ByteBuffer bbFile) throws IOException {
-		DualConnection connection = socketChannelClients.get(toNickname);
+		MultiplexedConnection connection = socketChannelClients.get(toNickname);
 		if (null == connection) {
 			return false;
 		}
@@ -468,7 +486,8 @@ public class ClientServer {
 	/* Request from client */
 
 	/**
-	 * Attempt to authenticate a client that has joined.
+	 * Attempt to authenticate a client that has joined. One round for the
+	 * private connection, which then carries the frames of both streams.
 	 * 
 	 * @param sc
 	 *            {@link SocketChannel} of client who joined
@@ -479,8 +498,9 @@ public class ClientServer {
 	 *             if some I/O error occurs
 	 */
 	private boolean authentication(SocketChannel sc, ByteBuffer bb, byte opcode) throws IOException {
-		if (opcode != (byte) 10 && opcode != (byte) 11) {
+		if (opcode != (byte) 10) {
 			LOGGER.warning("Unexpected opcode: " + opcode);
+			return false;
 		}
 		int nicknameSize = readInt(sc, bb);
 		String clientNickname = readString(sc, bb, nicknameSize, Client.CS_NICKNAME);
@@ -493,44 +513,22 @@ public class ClientServer {
 			return false;
 		}
 
-		if (opcode == (byte) 10) {
-			nicknamesFromSc.put(sc, clientNickname);
-			// increment nbAuthenticated associated with clientNickname
-			if ( nbAuthenticatedByNickname.containsKey(clientNickname) ) {
-				// increment
-				nbAuthenticatedByNickname.put(clientNickname, nbAuthenticatedByNickname.get(clientNickname).intValue() + 1);
-			} else {
-				// initialize and count 1
-				nbAuthenticatedByNickname.put(clientNickname, 1);
-			}
-			// remember current sc as a scMessages
-			scMessagesByNickname.put(clientNickname, sc); 
-		}
-		if (opcode == (byte) 11) {
-			nicknamesFromSc.put(sc, clientNickname);
-			if ( nbAuthenticatedByNickname.containsKey(clientNickname) ) {
-				// increment
-				nbAuthenticatedByNickname.put(clientNickname, nbAuthenticatedByNickname.get(clientNickname).intValue() + 1);
-			} else {
-				// initialize and count 1
-				nbAuthenticatedByNickname.put(clientNickname, 1);
-			}
-			// remember current sc as a scFiles
-			scFilesByNickname.put(clientNickname, sc);
-		}
-		// if received both opcode 10+11, and we remembered both channels :
-		if (nbAuthenticatedByNickname.get(clientNickname) == 2) {
-			nbAuthenticatedByNickname.put(clientNickname, 0); // reset
-			DualConnection connection;
-			synchronized (lock) {
-				connection = DualConnection.createFromScs(scMessagesByNickname.get(clientNickname), scFilesByNickname.get(clientNickname));
-			}
-			socketChannelClients.put(clientNickname, connection);
-			privateConnectionsId.remove(clientNickname); // no more needed
-			clientGUI.println("Private connection established with " + clientNickname + ".", Color.blue);
-			clientGUI.println("To send a private message, use: /w " + clientNickname, Color.blue);
-			clientGUI.println("To send a file, use: /f " + clientNickname, Color.blue);
+		MultiplexedConnection connection;
+		Long sessionId = relayedScs.get(sc);
+		if (null == sessionId) {
+			connection = MultiplexedConnection.createFromSc(sc);
+		} else {
+			connection = MultiplexedConnection.createRelayedFromSc(sc, relay, sessionId,
+					MultiplexedConnection.ROLE_ACCEPTOR);
 		}
+		nicknamesFromSc.put(sc, clientNickname);
+		socketChannelClients.put(clientNickname, connection);
+		privateConnectionsId.remove(clientNickname); // no more needed
+		ui.println("Private connection established with " + clientNickname + ".", TextColor.BLUE);
+		ui.println("To send a private message, use: /w " + clientNickname, TextColor.BLUE);
+		ui.println("To send a file, use: /f " + clientNickname, TextColor.BLUE);
+		// resume file transfer interrupted with a previous connection
+		transfers.resume(clientNickname, connection);
 		return true;
 	}
 
@@ -540,7 +538,7 @@ public class ClientServer {
 	 * If opcode 12, a message was received.
 	 * 
 	 * @param sc
-	 *            {@link SocketChannel} where message was received from
+	 *            stream where message was received from
 	 * @param bb
 	 *            {@link ByteBuffer} to save output to
 	 * @param nickname
@@ -548,151 +546,11 @@ public class ClientServer {
 	 * @throws IOException
 	 *             if some I/O error occurs
 	 */
-	private void receivedMessage(SocketChannel sc, ByteBuffer bb, String nickname) throws IOException {
+	private void receivedMessage(ReadableByteChannel sc, ByteBuffer bb, String nickname)
+			throws IOException {
 		int msgSize = readInt(sc, bb);
 		String msg = readString(sc, bb, msgSize, Client.CS_UTF8);
-		clientGUI.println("*" + nickname + "* " + msg, Color.orange);
-	}
-
-	/**
-	 * If opcode 14, a file transfer request was received.
-	 * 
-	 * @param sc
-	 *            {@link SocketChannel} where message was received from
-	 * @param bb
-	 *            {@link ByteBuffer} to save output to
-	 * @param nickname
-	 *            of client who sent message
-	 * @throws IOException
-	 *             if some I/O error occurs
-	 */
-	private void receivedFileTransferRequest(SocketChannel sc, ByteBuffer bb, String nickname) throws IOException {
-		int filenameSize = readInt(sc, bb);
-		String filename = readString(sc, bb, filenameSize, Client.CS_UTF8);
-		long filesize = readLong(sc, bb);
-		clientGUI.println(nickname + " wants to send you the file \"" + filename + "\" (" + filesize + " B).",
-				Color.magenta);
-		clientGUI.println("Accept ? (/yf " + nickname + " or /nf " + nickname + ")", Color.magenta);
-		// TODO get user input (help)
-		String input = "yf";
-		if (input.equals("yf")) {
-			acceptFileTransfer(nickname);
-			filesToReceive.put(nickname, filename);
-		} else {
-			refuseFileTransfer(nickname);
-		}
-	}
-
-	/**
-	 * If opcode 15, received file transfer reply
-	 * 
-	 * @param sc
-	 *            {@link SocketChannel} where the reply came from
-	 * @param bb
-	 *            {@link ByteBuffer} to save output to
-	 * @param nickname
-	 *            of client who sent the reply
-	 * @throws IOException
-	 */
-	private void receivedFileTransferReply(SocketChannel sc, ByteBuffer bb, String nickname) throws IOException {
-		byte accept = readByte(sc, bb);
-		switch (accept) {
-		case 0: // received an approval
-			clientGUI.println(nickname + " has accepted the file transfer.", Color.magenta);
-			sendFile(nickname);
-			break;
-		case 1:
-			clientGUI.println(nickname + " has refused the file transfer.", Color.magenta);
-			forgetFileTransfer(nickname);
-			break;
-		default:
-			System.err.println("Unknown opcode: " + accept);
-			clientGUI.println("Private connection lost with " + nickname, Color.red);
-			forgetFileTransfer(nickname);
-			return;
-		}
-	}
-
-	/**
-	 * If opcode 16, a file was received.
-	 * 
-	 * @param sc
-	 *            {@link SocketChannel} where message was received from
-	 * @param bb
-	 *            {@link ByteBuffer} to save output to
-	 * @param nickname
-	 *            of client who sent message
-	 * @throws IOException
-	 *             if some I/O error occurs
-	 */
-	private void receivedFile(SocketChannel sc, ByteBuffer bb, String nickname) throws IOException {
-		long filesize = readLong(sc, bb);
-		byte[] data = readFileData(sc, Byte.BYTES * (int) filesize);
-		String filename = filesToReceive.get(nickname);
-		FileOutputStream fileStream = new FileOutputStream(filename);
-		fileStream.write(data);
-		fileStream.close();
-		filesToReceive.remove(nickname); // done transferring the file
-		clientGUI.println("Transfer complete \"" + filename + "\" (" + filesize + " B) from " + nickname + ".",
-				Color.magenta);
-		notifyTransferComplete(nickname);
-	}
-
-	/* packets to send as a SERVER */
-
-	// TODO maybe this belongs in Client.java after implementing user input ?
-	private void acceptFileTransfer(String nickname) throws IOException {
-		DualConnection connection = socketChannelClients.get(nickname);
-		if (null == connection) {
-			return;
-		}
-		bbout.clear();
-		bbout.put((byte) 15);
-		bbout.put((byte) 0);
-		bbout.flip();
-		connection.writeInFiles(bbout);
-	}
-
-	private void refuseFileTransfer(String nickname) throws IOException {
-		DualConnection connection = socketChannelClients.get(nickname);
-		if (null == connection) {
-			return;
-		}
-		bbout.clear();
-		bbout.put((byte) 15);
-		bbout.put((byte) 1);
-		bbout.flip();
-		connection.writeInFiles(bbout);
-	}
-
-	private void notifyTransferComplete(String nickname) throws IOException {
-		DualConnection connection = socketChannelClients.get(nickname);
-		if (null == connection) {
-			return;
-		}
-		bbout.clear();
-		bbout.put((byte) 17);
-		bbout.flip();
-		connection.writeInFiles(bbout);
-	}
-
-	private void sendFile(String nickname) throws IOException {
-		DualConnection connection = socketChannelClients.get(nickname);
-		if (null == connection) {
-			return;
-		}
-		Path path = filesToSendAsServer.get(nickname);
-		ByteBuffer bbFile = Client.packetFile(path);
-		bbFile.flip();
-		connection.writeInFiles(bbFile);
-	}
-
-	public void addFileToSendAsServer(String toNickname, Path path) {
-		filesToSendAsServer.put(toNickname, path);
-	}
-
-	public void forgetFileTransfer(String nickname) {
-		filesToSendAsServer.remove(nickname);
+		ui.println("*" + nickname + "* " + msg, TextColor.ORANGE);
 	}
 
 }
\ No newline at end of file
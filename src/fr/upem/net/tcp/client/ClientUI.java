@@ -0,0 +1,49 @@
+package fr.upem.net.tcp.client;
+
+import java.io.IOException;
+
+/**
+ * User interface of a client: every event of the client is printed through
+ * it. Implement it to drive a client from a program.
+ * 
+ * @author Cheneau and Lee
+ *
+ */
+public interface ClientUI {
+	/**
+	 * Prints a String, and then terminate the line. Thread safe.
+	 * 
+	 * @param string
+	 *            the string to be printed
+	 * @param color
+	 *            for the text
+	 */
+	void println(String string, TextColor color);
+
+	/**
+	 * Start reading the input of the user, once the client is logged in.
+	 */
+	default void start() {
+		// input is read by the interface itself
+	}
+
+	/**
+	 * Set the number of lines kept by the interface, if it keeps any.
+	 * 
+	 * @param scrollback
+	 *            number of lines, strictly positive
+	 */
+	default void setScrollback(int scrollback) {
+		if (scrollback <= 0) {
+			throw new IllegalArgumentException("Scrollback must be positive: " + scrollback);
+		}
+	}
+
+	/**
+	 * Closes the user interface.
+	 * 
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	void exit() throws IOException;
+}
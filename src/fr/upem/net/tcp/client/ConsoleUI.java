@@ -0,0 +1,81 @@
+package fr.upem.net.tcp.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless user interface for a client: commands are read from the standard
+ * input and events are printed on the standard output, without colors. The
+ * client quits at the end of the input. Public messages which are already
+ * available on the input are sent in a single batch.
+ * 
+ * @author Cheneau and Lee
+ *
+ */
+public class ConsoleUI implements ClientUI {
+	private static final Logger LOGGER = Logger.getLogger("ClientLogger");
+	private final Client client;
+	private final PrintStream out = System.out;
+	private final Thread reader = new Thread(() -> read(), "ConsoleUI");
+	private volatile boolean exited;
+
+	public ConsoleUI(Client client) {
+		this.client = client;
+		reader.setDaemon(true);
+	}
+
+	@Override
+	public void start() {
+		reader.start();
+	}
+
+	private void read() {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+			String line;
+			ArrayList<String> msgs = new ArrayList<>();
+			while (!exited && null != (line = in.readLine())) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				if (line.startsWith("/")) {
+					if (!msgs.isEmpty()) {
+						client.sendPublicMessages(msgs);
+						msgs.clear();
+					}
+					client.processInput(line);
+					continue;
+				}
+				// messages already typed or piped are sent together
+				msgs.add(line);
+				if (msgs.size() == Client.MAX_BATCH || !in.ready()) {
+					client.sendPublicMessages(msgs);
+					msgs.clear();
+				}
+			}
+			if (!msgs.isEmpty()) {
+				client.sendPublicMessages(msgs);
+			}
+			if (!exited) {
+				client.processInput("/quit");
+			}
+		} catch (IOException ioe) {
+			LOGGER.log(Level.SEVERE, ioe.toString(), ioe);
+		}
+	}
+
+	@Override
+	public void println(String string, TextColor color) {
+		out.println(string);
+	}
+
+	@Override
+	public void exit() throws IOException {
+		exited = true;
+		out.flush();
+	}
+}
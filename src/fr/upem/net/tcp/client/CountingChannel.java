@@ -0,0 +1,61 @@
+package fr.upem.net.tcp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reading side of the connection with the server, counting the bytes read.
+ * The {@link ScReaders} never read ahead, so the count at the end of a packet
+ * is the offset of the next one in the stream sent by the server, which is
+ * where a resumed session starts again.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class CountingChannel implements ReadableByteChannel {
+	private final SocketChannel sc;
+	private long count;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sc
+	 *            {@link SocketChannel} connected to the server
+	 * @param count
+	 *            offset in the stream of the next byte read
+	 */
+	CountingChannel(SocketChannel sc, long count) {
+		this.sc = sc;
+		this.count = count;
+	}
+
+	@Override
+	public int read(ByteBuffer bb) throws IOException {
+		int read = sc.read(bb);
+		if (read > 0) {
+			count += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return offset in the stream of the next byte read
+	 */
+	long count() {
+		return count;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return sc.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		sc.close();
+	}
+}
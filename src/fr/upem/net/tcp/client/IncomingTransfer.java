@@ -0,0 +1,274 @@
+package fr.upem.net.tcp.client;
+
+import static fr.upem.net.tcp.client.ScReaders.readFully;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+/**
+ * A file being received from another client. Each chunk is verified with its
+ * CRC32C checksum before being written at its position in a partial file, so
+ * that an interrupted transfer can be resumed from its last verified offset.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class IncomingTransfer {
+	private static final String PART_SUFFIX = ".part";
+	private final long id;
+	private final String nickname;
+	private final Path path;
+	private final Path partPath;
+	private final long filesize;
+	private final int nbChunks;
+	/** Chunks which have been verified and written. */
+	private final BitSet verified;
+	private FileChannel fc;
+	/** Private connection with the sender, where answers are written. */
+	private volatile MultiplexedConnection connection;
+	private volatile TransferProgress progress;
+
+	private IncomingTransfer(long id, String nickname, Path path, long filesize) {
+		this.id = id;
+		this.nickname = nickname;
+		this.path = path;
+		this.partPath = Paths.get(path + PART_SUFFIX);
+		this.filesize = filesize;
+		this.nbChunks = (int) ((filesize + Client.CHUNKSIZ - 1) / Client.CHUNKSIZ);
+		this.verified = new BitSet(nbChunks);
+		this.progress = new TransferProgress(filesize, 0);
+	}
+
+	/**
+	 * Create an instance of {@code IncomingTransfer}. The file is always
+	 * received in the working directory, in the subdirectories given by its
+	 * name if it is part of a directory.
+	 *
+	 * @param id
+	 *            identifying the transfer on both clients
+	 * @param nickname
+	 *            of the client sending the file
+	 * @param filename
+	 *            name of the file given by the sender, relative to the
+	 *            working directory
+	 * @param filesize
+	 *            size of the file
+	 * @return instance created
+	 * @throws IOException
+	 *             if the file name or size is not valid
+	 */
+	public static IncomingTransfer create(long id, String nickname, String filename, long filesize)
+			throws IOException {
+		Objects.requireNonNull(nickname);
+		Path path;
+		try {
+			path = Paths.get(filename).normalize();
+		} catch (InvalidPathException ipe) {
+			path = null;
+		}
+		// the file must not be written outside of the working directory
+		if (null == path || filename.isEmpty() || path.isAbsolute() || path.startsWith("..")
+				|| null == path.getFileName() || filesize < 0) {
+			throw new IOException("invalid file \"" + filename + "\" (" + filesize + " B)");
+		}
+		return new IncomingTransfer(id, nickname, path, filesize);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getNickname() {
+		return nickname;
+	}
+
+	public String getFilename() {
+		return path.toString();
+	}
+
+	public long getFilesize() {
+		return filesize;
+	}
+
+	public MultiplexedConnection getConnection() {
+		return connection;
+	}
+
+	public void setConnection(MultiplexedConnection connection) {
+		this.connection = connection;
+	}
+
+	TransferProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Start measuring the progress of the transfer again, when it is started
+	 * or resumed.
+	 */
+	synchronized void restartProgress() {
+		long bytes = (long) verified.cardinality() * Client.CHUNKSIZ;
+		if (nbChunks > 0 && verified.get(nbChunks - 1)) { // last chunk is shorter
+			bytes -= (long) nbChunks * Client.CHUNKSIZ - filesize;
+		}
+		progress = new TransferProgress(filesize, bytes);
+	}
+
+	/**
+	 * Offset from which the sender has to resume the transfer: every chunk
+	 * before it has been verified.
+	 *
+	 * @return the verified offset
+	 */
+	public synchronized long verifiedOffset() {
+		return Math.min(filesize, (long) verified.nextClearBit(0) * Client.CHUNKSIZ);
+	}
+
+	/**
+	 * Check if all chunks of the file have been verified.
+	 *
+	 * @return {@code true} if the file is complete, {@code false} otherwise
+	 */
+	public synchronized boolean isComplete() {
+		return verified.nextClearBit(0) >= nbChunks;
+	}
+
+	/**
+	 * Read the data of a chunk and write it in the partial file if its
+	 * checksum is valid. Chunks may be received concurrently from several
+	 * connections, each one with its own buffer.
+	 *
+	 * @param sc
+	 *            {@link ReadableByteChannel} to read the data from
+	 * @param bbChunk
+	 *            {@link ByteBuffer} of {@link Client#CHUNKSIZ} bytes to read
+	 *            the data in
+	 * @param offset
+	 *            of the chunk in the file
+	 * @param length
+	 *            of the chunk
+	 * @param checksum
+	 *            CRC32C checksum given by the sender
+	 * @return {@code true} if the chunk was valid, {@code false} if it has to
+	 *         be sent again
+	 * @throws IOException
+	 *             if the chunk does not belong to the file or if some I/O
+	 *             error occurs
+	 */
+	public boolean receiveChunk(ReadableByteChannel sc, ByteBuffer bbChunk, long offset, int length,
+			int checksum) throws IOException {
+		checkChunk(offset, length);
+		bbChunk.clear();
+		bbChunk.limit(length);
+		if (!readFully(sc, bbChunk)) {
+			throw new IOException("connection lost (file chunk)");
+		}
+		bbChunk.flip();
+		return writeChunk(bbChunk, offset, checksum);
+	}
+
+	/**
+	 * Check that a chunk belongs to the file.
+	 *
+	 * @param offset
+	 *            of the chunk in the file
+	 * @param length
+	 *            of the chunk
+	 * @throws IOException
+	 *             if the chunk does not belong to the file
+	 */
+	public void checkChunk(long offset, int length) throws IOException {
+		if (offset < 0 || offset % Client.CHUNKSIZ != 0 || offset >= filesize
+				|| length != Math.min(Client.CHUNKSIZ, filesize - offset)) {
+			throw new IOException("invalid chunk " + offset + "+" + length + " for \"" + path + "\"");
+		}
+	}
+
+	/**
+	 * Write a chunk already received in the partial file if its checksum is
+	 * valid.
+	 *
+	 * @param bbChunk
+	 *            {@link ByteBuffer} whose remaining bytes are the chunk
+	 * @param offset
+	 *            of the chunk in the file, checked with
+	 *            {@link #checkChunk(long, int)}
+	 * @param checksum
+	 *            CRC32C checksum given by the sender
+	 * @return {@code true} if the chunk was valid, {@code false} if it has to
+	 *         be sent again
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public boolean writeChunk(ByteBuffer bbChunk, long offset, int checksum) throws IOException {
+		int start = bbChunk.position();
+		CRC32C crc = new CRC32C();
+		crc.update(bbChunk);
+		bbChunk.position(start);
+		if ((int) crc.getValue() != checksum) {
+			return false;
+		}
+		FileChannel fc = channel();
+		while (bbChunk.hasRemaining()) {
+			fc.write(bbChunk, offset + bbChunk.position() - start);
+		}
+		int chunk = (int) (offset / Client.CHUNKSIZ);
+		synchronized (this) {
+			if (!verified.get(chunk)) {
+				verified.set(chunk);
+				progress.advance(bbChunk.position() - start);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Move the complete partial file to its final name.
+	 *
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public synchronized void complete() throws IOException {
+		channel().close();
+		Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Close the partial file, which is kept on disk.
+	 */
+	public synchronized void close() {
+		if (null != fc) {
+			try {
+				fc.close();
+			} catch (IOException e) {
+				// Do nothing
+			}
+		}
+	}
+
+	private synchronized FileChannel channel() throws IOException {
+		if (null == fc || !fc.isOpen()) {
+			Path parent = partPath.getParent();
+			if (null != parent) {
+				Files.createDirectories(parent);
+			}
+			fc = FileChannel.open(partPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			// a previous partial file may be bigger
+			if (fc.size() > filesize) {
+				fc.truncate(filesize);
+			}
+		}
+		return fc;
+	}
+}
@@ -0,0 +1,776 @@
+package fr.upem.net.tcp.client;
+
+import static fr.upem.net.tcp.client.ScReaders.readFully;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Class describing a private connection, either direct or relayed by the chat
+ * server. A single connection carries two streams, one for private messages
+ * and one for file transfers, so that it costs one connect and one
+ * authentication. After the authentication, the bytes of the streams are sent
+ * in frames:
+ *
+ * <pre>
+ * +--------+--------+---------+
+ * | stream | length | payload |
+ * +--------+--------+---------+
+ * |  byte  |  int   |  bytes  |
+ * +--------+--------+---------+
+ * </pre>
+ *
+ * A packet may be split over several frames of its stream. A frame is at most
+ * {@link #FRAME_SIZE} bytes, and the frames of private messages are written
+ * before the waiting frames of files, so that a message waits for one frame of
+ * a file at most. The receiver buffers up to {@link #FILES_WINDOW} bytes of
+ * the files stream and grants credit as its file thread consumes them, so that
+ * the reading of private messages never waits for a file to be written
+ * either. A credit frame carries an {@code int}, the number of bytes granted.
+ * Nagle's algorithm is disabled, the frames of messages and of credit are
+ * small and would otherwise wait for the acknowledgment of the previous ones.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class MultiplexedConnection {
+	/** Role of the client who requested the private connection. */
+	public static final byte ROLE_REQUESTER = 0;
+	/** Role of the client who accepted the private connection. */
+	public static final byte ROLE_ACCEPTOR = 1;
+	/** Stream of the private messages, written first. */
+	static final byte STREAM_MESSAGES = 0;
+	/** Stream of the file transfers. */
+	static final byte STREAM_FILES = 1;
+	/** Credit granted for the files stream. */
+	static final byte STREAM_CREDIT = 2;
+	/** Maximum payload of a frame, in bytes: a chunk of a file. */
+	static final int FRAME_SIZE = Client.CHUNKSIZ;
+	/** Bytes of the files stream which can be sent without credit. */
+	static final int FILES_WINDOW = 16 * Client.CHUNKSIZ;
+	private static final Logger LOGGER = Logger.getLogger("ClientLogger");
+	/** Time to connect directly to the other client, in milliseconds. */
+	private static final int CONNECT_TIMEOUT = 3000;
+	/** Numbers given to the relayed channels opened by this client. */
+	private static final AtomicInteger CHANNELS = new AtomicInteger();
+	private final SocketChannel sc;
+	/** Chat server relaying the connection, {@code null} if direct. */
+	private final SocketAddress relay;
+	private final long sessionId;
+	private final byte role;
+	/** Guards the frame being written, the waiting messages and the credit. */
+	private final Object writeLock = new Object();
+	private boolean writing;
+	private int messagesWaiting;
+	private int credit = FILES_WINDOW;
+	private boolean closed;
+	/** Header of the frame being written, and payload of a credit frame. */
+	private final ByteBuffer bbFrame = ByteBuffer
+			.allocate(Byte.BYTES + Integer.BYTES + Integer.BYTES);
+	/** Packets of a stream are not interleaved, they are written whole. */
+	private final Object messagesLock = new Object();
+	private final Object filesLock = new Object();
+	private final MessagesInput messages = new MessagesInput();
+	private final FilesInput files = new FilesInput();
+	private final WritableByteChannel filesOutput = new FilesOutput();
+	/** Runs the writes of the files stream asked by the thread reading it. */
+	private final ExecutorService filesSender = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "FilesSender");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private MultiplexedConnection(SocketChannel sc, SocketAddress relay, long sessionId,
+			byte role) throws IOException {
+		sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		this.sc = sc;
+		this.relay = relay;
+		this.sessionId = sessionId;
+		this.role = role;
+	}
+
+	/**
+	 * Creates an instance of {@code MultiplexedConnection}, provided an
+	 * already opened {@code SocketChannel}.
+	 *
+	 * @param sc
+	 *            the socket to be used for private messages and file
+	 *            transfers
+	 * @return an instance of {@code MultiplexedConnection}
+	 * @throws IOException
+	 *             if the socket cannot be configured
+	 */
+	public static MultiplexedConnection createFromSc(SocketChannel sc) throws IOException {
+		return new MultiplexedConnection(Objects.requireNonNull(sc), null, 0, ROLE_REQUESTER);
+	}
+
+	/**
+	 * Creates an instance of {@code MultiplexedConnection}, provided an
+	 * already opened {@code SocketChannel} relayed by the chat server.
+	 *
+	 * @param sc
+	 *            the socket to be used for private messages and file
+	 *            transfers
+	 * @param relay
+	 *            address of the chat server
+	 * @param sessionId
+	 *            of the private connection
+	 * @param role
+	 *            {@link #ROLE_REQUESTER} or {@link #ROLE_ACCEPTOR}
+	 * @return an instance of {@code MultiplexedConnection}
+	 * @throws IOException
+	 *             if the socket cannot be configured
+	 */
+	public static MultiplexedConnection createRelayedFromSc(SocketChannel sc,
+			SocketAddress relay, long sessionId, byte role) throws IOException {
+		return new MultiplexedConnection(Objects.requireNonNull(sc),
+				Objects.requireNonNull(relay), sessionId, role);
+	}
+
+	/**
+	 * Opens a connection relayed by the chat server to the client who
+	 * accepted a private connection.
+	 *
+	 * @param relay
+	 *            address of the chat server
+	 * @param sessionId
+	 *            of the private connection
+	 * @return an instance of {@code MultiplexedConnection}
+	 * @throws IOException
+	 *             if an I/O occurred on open
+	 */
+	public static MultiplexedConnection createFromRelay(SocketAddress relay, long sessionId)
+			throws IOException {
+		SocketChannel sc = openRelay(relay, sessionId, ROLE_REQUESTER);
+		return createRelayedFromSc(sc, relay, sessionId, ROLE_REQUESTER);
+	}
+
+	/**
+	 * Open a channel relayed by the chat server to the other client of a
+	 * private connection, which is asked by the server to join it.
+	 *
+	 * <pre>
+	 * +--------+------------+------+---------+
+	 * | opcode | session ID | role | channel |
+	 * +--------+------------+------+---------+
+	 * |   32   |    long    | byte |   int   |
+	 * +--------+------------+------+---------+
+	 * </pre>
+	 */
+	private static SocketChannel openRelay(SocketAddress relay, long sessionId, byte role)
+			throws IOException {
+		return relayChannel(relay, (byte) 32, sessionId, role, CHANNELS.incrementAndGet());
+	}
+
+	/**
+	 * Join a channel opened by the other client of a private connection and
+	 * relayed by the chat server. Opcode 34 has the same fields as opcode 32.
+	 *
+	 * @param relay
+	 *            address of the chat server
+	 * @param sessionId
+	 *            of the private connection
+	 * @param role
+	 *            of the client who opened the channel
+	 * @param channel
+	 *            number of the channel
+	 * @return the relayed {@link SocketChannel}
+	 * @throws IOException
+	 *             if an I/O occurred on open
+	 */
+	public static SocketChannel joinRelay(SocketAddress relay, long sessionId, byte role,
+			int channel) throws IOException {
+		return relayChannel(relay, (byte) 34, sessionId, role, channel);
+	}
+
+	private static SocketChannel relayChannel(SocketAddress relay, byte opcode,
+			long sessionId, byte role, int channel) throws IOException {
+		SocketChannel sc = SocketChannel.open(relay);
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Byte.BYTES + Integer.BYTES);
+		bb.put(opcode);
+		bb.putLong(sessionId);
+		bb.put(role);
+		bb.putInt(channel);
+		bb.flip();
+		while (bb.hasRemaining()) {
+			sc.write(bb);
+		}
+		return sc;
+	}
+
+	/**
+	 * Whether the connection is relayed by the chat server.
+	 *
+	 * @return {@code true} if relayed, {@code false} if direct
+	 */
+	public boolean isRelayed() {
+		return null != relay;
+	}
+
+	/**
+	 * Open an extra connection to the other client, directly on the given
+	 * port or relayed by the chat server like this private connection.
+	 *
+	 * @param port
+	 *            where the other client listens
+	 * @param timeout
+	 *            to connect directly, in milliseconds
+	 * @return the opened {@link SocketChannel}
+	 * @throws IOException
+	 *             if an I/O occurred on open
+	 */
+	public SocketChannel openStream(int port, int timeout) throws IOException {
+		if (isRelayed()) {
+			return openRelay(relay, sessionId, role);
+		}
+		SocketChannel sc = SocketChannel.open();
+		try {
+			sc.socket().connect(new InetSocketAddress(getRemoteAddress(), port), timeout);
+		} catch (IOException ioe) {
+			sc.close();
+			throw ioe;
+		}
+		return sc;
+	}
+
+	/**
+	 * Opens a connection on the specified server.
+	 *
+	 * @param server
+	 *            the server to open the connection on
+	 * @return an instance of {@code MultiplexedConnection}
+	 * @throws IOException
+	 *             if an I/O occurred on open
+	 */
+	public static MultiplexedConnection createFromServer(InetSocketAddress server)
+			throws IOException {
+		SocketChannel sc = SocketChannel.open();
+		try {
+			sc.socket().connect(server, CONNECT_TIMEOUT);
+		} catch (IOException ioe) {
+			sc.close();
+			throw ioe;
+		}
+		return createFromSc(sc);
+	}
+
+	/**
+	 * Give the address of the other client.
+	 *
+	 * @return {@link InetAddress} of the other client
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public InetAddress getRemoteAddress() throws IOException {
+		return ((InetSocketAddress) sc.getRemoteAddress()).getAddress();
+	}
+
+	/**
+	 * Write the authentication packet, the only one not sent in a frame.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} to be written
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void authenticate(ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			sc.write(bb);
+		}
+	}
+
+	/**
+	 * Write the content of the given {@link ByteBuffer} on the messages
+	 * stream.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} to be written
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeInMessages(ByteBuffer bb) throws IOException {
+		synchronized (messagesLock) {
+			writeFrames(STREAM_MESSAGES, bb);
+		}
+	}
+
+	/**
+	 * Write the content of the given {@link ByteBuffer} on the file transfers
+	 * stream.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} to be written
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeInFiles(ByteBuffer bb) throws IOException {
+		synchronized (filesLock) {
+			writeFrames(STREAM_FILES, bb);
+		}
+	}
+
+	/**
+	 * Write a chunk of a file on the file transfers stream.
+	 *
+	 * @param transfer
+	 *            the file being sent
+	 * @param fc
+	 *            {@link FileChannel} to read the chunk from
+	 * @param offset
+	 *            of the chunk in the file
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeChunkInFiles(OutgoingTransfer transfer, FileChannel fc, long offset)
+			throws IOException {
+		synchronized (filesLock) {
+			transfer.writeMappedChunk(filesOutput, fc, offset);
+		}
+	}
+
+	/**
+	 * Writes on the file transfers stream, run by {@link #sendInFiles}.
+	 */
+	@FunctionalInterface
+	interface FilesWriter {
+		/**
+		 * Write on the file transfers stream.
+		 *
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		void write() throws IOException;
+	}
+
+	/**
+	 * Write on the file transfers stream from the sender thread of the
+	 * connection, after the writes asked before. The thread reading the files
+	 * stream must never write on it itself: it may wait for credit, which it
+	 * is the one to grant, so two clients sending each other files would wait
+	 * for each other forever. The connection is closed if a write fails.
+	 *
+	 * @param writer
+	 *            writes on the file transfers stream
+	 */
+	void sendInFiles(FilesWriter writer) {
+		try {
+			filesSender.execute(() -> {
+				try {
+					writer.write();
+				} catch (IOException ioe) {
+					LOGGER.warning("Lost file transfers stream: " + ioe);
+					try {
+						close();
+					} catch (IOException e) {
+						// Do nothing
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			// closed, the writes are dropped
+		}
+	}
+
+	/**
+	 * Write the content of the given {@link ByteBuffer} on both streams:
+	 * private messages and file transfers.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} to be written
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void writeInAll(ByteBuffer bb) throws IOException {
+		writeInMessages(bb);
+		bb.flip();
+		writeInFiles(bb);
+	}
+
+	/**
+	 * Write a stream in frames, each one once the connection is free and, for
+	 * the files stream, once no message is waiting and credit is left.
+	 */
+	private void writeFrames(byte stream, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			int length = acquire(stream != STREAM_FILES, bb.remaining());
+			try {
+				ByteBuffer payload = bb.duplicate();
+				payload.limit(bb.position() + length);
+				bbFrame.clear();
+				bbFrame.put(stream);
+				bbFrame.putInt(length);
+				bbFrame.flip();
+				writeFully(bbFrame, payload);
+				bb.position(payload.position());
+			} finally {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Grant credit to the other client for the files stream.
+	 */
+	private void writeCredit(int bytes) throws IOException {
+		acquire(true, 0);
+		try {
+			bbFrame.clear();
+			bbFrame.put(STREAM_CREDIT);
+			bbFrame.putInt(Integer.BYTES);
+			bbFrame.putInt(bytes);
+			bbFrame.flip();
+			writeFully(bbFrame);
+		} finally {
+			release();
+		}
+	}
+
+	private void writeFully(ByteBuffer... bbs) throws IOException {
+		ByteBuffer last = bbs[bbs.length - 1];
+		while (last.hasRemaining()) {
+			sc.write(bbs);
+		}
+	}
+
+	/**
+	 * Wait for the connection to write a frame.
+	 *
+	 * @param urgent
+	 *            {@code true} for the frames written before the ones of files
+	 * @param wanted
+	 *            bytes left to write
+	 * @return length of the payload of the frame
+	 */
+	private int acquire(boolean urgent, int wanted) throws IOException {
+		synchronized (writeLock) {
+			if (urgent) {
+				messagesWaiting++;
+			}
+			try {
+				while (!closed && (writing || (!urgent && (messagesWaiting > 0 || 0 == credit)))) {
+					writeLock.wait();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while writing a frame");
+			} finally {
+				if (urgent) {
+					messagesWaiting--;
+				}
+			}
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+			writing = true;
+			int length = Math.min(wanted, FRAME_SIZE);
+			if (!urgent) {
+				length = Math.min(length, credit);
+				credit -= length;
+			}
+			return length;
+		}
+	}
+
+	private void release() {
+		synchronized (writeLock) {
+			writing = false;
+			writeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Credit granted by the other client for the files stream.
+	 */
+	private void granted(int bytes) throws IOException {
+		synchronized (writeLock) {
+			if (bytes <= 0 || bytes > FILES_WINDOW - credit) {
+				throw new IOException("Invalid credit: " + bytes);
+			}
+			credit += bytes;
+			writeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return channel of the private messages stream, read by a single thread
+	 *         which also reads the frames of the other streams
+	 */
+	ReadableByteChannel messages() {
+		return messages;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return channel of the file transfers stream, read by a single thread
+	 */
+	ReadableByteChannel files() {
+		return files;
+	}
+
+	/**
+	 * Get threads which will read the streams of the specified nickname's
+	 * private connection.
+	 *
+	 * @param monitoredNickname
+	 *            the nickname to get monitors from
+	 * @param ui
+	 *            user interface where to print
+	 * @param client
+	 *            to get readers from
+	 * @return an array of readers threads ready to be started
+	 */
+	public Thread[] getReaders(String monitoredNickname, ClientUI ui, Client client) {
+		Runnable rMessages = new ThreadPrivateConnection(messages, monitoredNickname, ui,
+				client, this, true);
+		Runnable rFiles = new ThreadPrivateConnection(files, monitoredNickname, ui, client,
+				this, false);
+		Thread[] readers = { new Thread(rMessages), new Thread(rFiles) };
+		return readers;
+	}
+
+	/**
+	 * Close the connection, the threads waiting to write or to read the files
+	 * stream are woken up.
+	 *
+	 * @throws IOException
+	 *             if I/O error while closing
+	 */
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			closed = true;
+			writeLock.notifyAll();
+		}
+		files.end();
+		filesSender.shutdownNow();
+		sc.close();
+	}
+
+	/**
+	 * Private messages stream. Reading it reads the frames of the connection,
+	 * and the ones of files are buffered for their own thread.
+	 */
+	private class MessagesInput implements ReadableByteChannel {
+		private final ByteBuffer bbHeader = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES);
+		/** Bytes left of the frame of messages being read. */
+		private int messagesLeft;
+
+		@Override
+		public int read(ByteBuffer bb) throws IOException {
+			try {
+				while (0 == messagesLeft) {
+					if (!readFrame()) {
+						files.end();
+						return -1;
+					}
+				}
+				int limit = bb.limit();
+				bb.limit(Math.min(limit, bb.position() + messagesLeft));
+				int read;
+				try {
+					read = sc.read(bb);
+				} finally {
+					bb.limit(limit);
+				}
+				if (-1 == read) {
+					files.end();
+					return -1;
+				}
+				messagesLeft -= read;
+				return read;
+			} catch (IOException ioe) {
+				files.end();
+				throw ioe;
+			}
+		}
+
+		/**
+		 * Read the header of the next frame, and the frame itself unless it
+		 * is a frame of messages.
+		 *
+		 * @return {@code false} if the connection was closed between frames
+		 */
+		private boolean readFrame() throws IOException {
+			bbHeader.clear();
+			if (!readFully(sc, bbHeader)) {
+				if (bbHeader.position() > 0) {
+					throw new IOException("connection lost (frame header)");
+				}
+				return false;
+			}
+			bbHeader.flip();
+			byte stream = bbHeader.get();
+			int length = bbHeader.getInt();
+			if (length < 0 || length > FRAME_SIZE) {
+				throw new IOException("Invalid frame size: " + length);
+			}
+			switch (stream) {
+			case STREAM_MESSAGES:
+				messagesLeft = length;
+				return true;
+			case STREAM_FILES:
+				files.receive(length);
+				return true;
+			case STREAM_CREDIT:
+				bbHeader.clear();
+				bbHeader.limit(Integer.BYTES);
+				if (length != Integer.BYTES || !readFully(sc, bbHeader)) {
+					throw new IOException("Invalid credit frame");
+				}
+				bbHeader.flip();
+				granted(bbHeader.getInt());
+				return true;
+			default:
+				throw new IOException("Unknown stream: " + stream);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return sc.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			MultiplexedConnection.this.close();
+		}
+	}
+
+	/**
+	 * File transfers stream, buffered in a ring of {@link #FILES_WINDOW} bytes
+	 * by the thread reading the messages stream.
+	 */
+	private class FilesInput implements ReadableByteChannel {
+		private final ByteBuffer ring = ByteBuffer.allocateDirect(FILES_WINDOW);
+		/** Bytes received and consumed since the connection was opened. */
+		private long received;
+		private long consumed;
+		/** Bytes consumed which were not granted back yet. */
+		private int ungranted;
+		private boolean ended;
+
+		/**
+		 * Receive a frame of the files stream from the connection.
+		 */
+		void receive(int length) throws IOException {
+			while (length > 0) {
+				int position;
+				int size;
+				synchronized (this) {
+					if (length > FILES_WINDOW - (int) (received - consumed)) {
+						throw new IOException("files stream over its window");
+					}
+					position = (int) (received % FILES_WINDOW);
+					size = Math.min(length, FILES_WINDOW - position);
+				}
+				ByteBuffer bb = ring.duplicate();
+				bb.limit(position + size);
+				bb.position(position);
+				if (!readFully(sc, bb)) {
+					throw new IOException("connection lost (files frame)");
+				}
+				synchronized (this) {
+					received += size;
+					notifyAll();
+				}
+				length -= size;
+			}
+		}
+
+		/**
+		 * No more bytes will be received, the ones buffered can still be
+		 * read.
+		 */
+		synchronized void end() {
+			ended = true;
+			notifyAll();
+		}
+
+		@Override
+		public int read(ByteBuffer bb) throws IOException {
+			int read;
+			int grant = 0;
+			synchronized (this) {
+				try {
+					while (received == consumed && !ended) {
+						wait();
+					}
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while reading files");
+				}
+				if (received == consumed) {
+					return -1;
+				}
+				int position = (int) (consumed % FILES_WINDOW);
+				read = (int) Math.min(Math.min(bb.remaining(), received - consumed),
+						FILES_WINDOW - position);
+				ByteBuffer bbRing = ring.duplicate();
+				bbRing.limit(position + read);
+				bbRing.position(position);
+				bb.put(bbRing);
+				consumed += read;
+				ungranted += read;
+				if (ungranted >= FILES_WINDOW / 4) {
+					grant = ungranted;
+					ungranted = 0;
+				}
+			}
+			if (grant > 0) {
+				writeCredit(grant);
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return sc.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			MultiplexedConnection.this.close();
+		}
+	}
+
+	/**
+	 * File transfers stream, written in frames by the thread holding the lock
+	 * of the files stream.
+	 */
+	private class FilesOutput implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer bb) throws IOException {
+			int written = bb.remaining();
+			writeFrames(STREAM_FILES, bb);
+			return written;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return sc.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			MultiplexedConnection.this.close();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package fr.upem.net.tcp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * A file being sent to another client. The file is sent by chunks of
+ * {@link Client#CHUNKSIZ} bytes, each one preceded by its offset and its
+ * CRC32C checksum so that the receiver can verify it and ask again for a
+ * single chunk, or resume the transfer from its last verified offset. If the
+ * receiver agreed, the chunks which compress well are sent compressed by
+ * {@link ChunkCompressor}.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class OutgoingTransfer {
+	/** Size of the region of the file mapped to compute checksums. */
+	private static final long WINDOWSIZ = 64L * 1024 * 1024;
+	private final long id;
+	private final String nickname;
+	private final Path path;
+	/** Name given to the receiver, relative to the directory sent. */
+	private final String name;
+	private final long filesize;
+	/** Whether the receiver accepted compressed chunks. */
+	private volatile boolean compressed;
+	/** Number of chunks to send raw before trying to compress again. */
+	private final AtomicInteger skipped = new AtomicInteger();
+	private volatile TransferProgress progress;
+	/** Mapped region of the file used to compute checksums. */
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	private OutgoingTransfer(long id, String nickname, Path path, String name, long filesize) {
+		this.id = id;
+		this.nickname = nickname;
+		this.path = path;
+		this.name = name;
+		this.filesize = filesize;
+		this.progress = new TransferProgress(filesize, 0);
+	}
+
+	/**
+	 * Create an instance of {@code OutgoingTransfer}.
+	 *
+	 * @param id
+	 *            identifying the transfer on both clients
+	 * @param nickname
+	 *            of the client receiving the file
+	 * @param path
+	 *            to the file to be sent
+	 * @param name
+	 *            of the file given to the receiver, with {@code /} between
+	 *            directories
+	 * @return instance created
+	 * @throws IOException
+	 *             if the size of the file could not be read
+	 */
+	public static OutgoingTransfer create(long id, String nickname, Path path, String name)
+			throws IOException {
+		Objects.requireNonNull(nickname);
+		Objects.requireNonNull(name);
+		return new OutgoingTransfer(id, nickname, path, name, Files.size(path));
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getNickname() {
+		return nickname;
+	}
+
+	public String getFilename() {
+		return name;
+	}
+
+	public long getFilesize() {
+		return filesize;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	TransferProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Start measuring the progress of the transfer again, when it is started
+	 * or resumed.
+	 *
+	 * @param from
+	 *            offset from which the file is sent
+	 */
+	void restartProgress(long from) {
+		progress = new TransferProgress(filesize, from);
+	}
+
+	/**
+	 * Check if the next chunk has to be sent raw, because a recent chunk did
+	 * not compress.
+	 *
+	 * @return {@code true} if the chunk must not be compressed
+	 */
+	boolean skipCompression() {
+		return skipped.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+	}
+
+	/**
+	 * Send raw the next chunks, after a chunk which did not compress.
+	 *
+	 * @param chunks
+	 *            number of chunks not to compress
+	 */
+	void notCompressible(int chunks) {
+		skipped.set(chunks);
+	}
+
+	/**
+	 * Open the file to be sent.
+	 *
+	 * @return {@link FileChannel} to read the file from
+	 * @throws IOException
+	 *             if the file could not be opened or has shrunk since the
+	 *             transfer was requested
+	 */
+	public FileChannel open() throws IOException {
+		FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+		if (fc.size() < filesize) {
+			fc.close();
+			throw new IOException("file truncated while being sent: " + path);
+		}
+		return fc;
+	}
+
+	/**
+	 * Write a packet containing one chunk of the file. The data is sent
+	 * straight from the file system with {@link FileChannel#transferTo}.
+	 *
+	 * <pre>
+	 * +--------+-------------+--------+--------+----------+-------+
+	 * | opcode | transfer ID | offset | length | checksum | data  |
+	 * +--------+-------------+--------+--------+----------+-------+
+	 * |   16   |    long     |  long  |  int   |   int    | bytes |
+	 * +--------+-------------+--------+--------+----------+-------+
+	 * </pre>
+	 *
+	 * @param sc
+	 *            {@link SocketChannel} to write to
+	 * @param fc
+	 *            {@link FileChannel} given by {@link #open()}
+	 * @param offset
+	 *            of the chunk, multiple of {@link Client#CHUNKSIZ}
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public void writeChunk(SocketChannel sc, FileChannel fc, long offset) throws IOException {
+		int length = (int) Math.min(Client.CHUNKSIZ, filesize - offset);
+		sc.write(chunkHeader(fc, offset, length));
+		long position = offset;
+		long end = offset + length;
+		while (position < end) {
+			long transferred = fc.transferTo(position, end - position, sc);
+			if (transferred <= 0) {
+				throw new IOException("file truncated while being sent: " + path);
+			}
+			position += transferred;
+		}
+	}
+
+	/**
+	 * Write a packet containing one chunk of the file, like
+	 * {@link #writeChunk(SocketChannel, FileChannel, long)}, from the region
+	 * mapped for its checksum. For a channel which is not a socket, such as a
+	 * stream of a {@link MultiplexedConnection}, through which
+	 * {@link FileChannel#transferTo} would copy the data in small parts.
+	 *
+	 * @param out
+	 *            {@link WritableByteChannel} to write to
+	 * @param fc
+	 *            {@link FileChannel} given by {@link #open()}
+	 * @param offset
+	 *            of the chunk, multiple of {@link Client#CHUNKSIZ}
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public void writeMappedChunk(WritableByteChannel out, FileChannel fc, long offset)
+			throws IOException {
+		int length = (int) Math.min(Client.CHUNKSIZ, filesize - offset);
+		out.write(chunkHeader(fc, offset, length));
+		ByteBuffer bbChunk = slice(fc, offset, length);
+		while (bbChunk.hasRemaining()) {
+			out.write(bbChunk);
+		}
+	}
+
+	private ByteBuffer chunkHeader(FileChannel fc, long offset, int length) throws IOException {
+		ByteBuffer bbHeader = ByteBuffer
+				.allocate(Byte.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES);
+		bbHeader.put((byte) 16);
+		bbHeader.putLong(id);
+		bbHeader.putLong(offset);
+		bbHeader.putInt(length);
+		bbHeader.putInt(checksum(fc, offset, length));
+		bbHeader.flip();
+		return bbHeader;
+	}
+
+	/**
+	 * Write every chunk of a stripe of the file, from a given offset. When the
+	 * file is sent over {@code nbStripes} connections, the chunk {@code i}
+	 * (counted from {@code from}) goes on the stripe {@code i % nbStripes}.
+	 *
+	 * @param sc
+	 *            {@link SocketChannel} to write to
+	 * @param from
+	 *            offset of the first chunk to send, multiple of
+	 *            {@link Client#CHUNKSIZ}
+	 * @param stripe
+	 *            index of the stripe to send
+	 * @param nbStripes
+	 *            number of stripes the file is split into
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public void writeStripe(SocketChannel sc, long from, int stripe, int nbStripes)
+			throws IOException {
+		try (FileChannel fc = open()) {
+			ChunkCompressor.send(this, fc, from + (long) stripe * Client.CHUNKSIZ,
+					(long) nbStripes * Client.CHUNKSIZ, new ChunkCompressor.Output() {
+						@Override
+						public void writeChunk(FileChannel fc, long offset) throws IOException {
+							OutgoingTransfer.this.writeChunk(sc, fc, offset);
+						}
+
+						@Override
+						public void writePacket(ByteBuffer bb) throws IOException {
+							while (bb.hasRemaining()) {
+								sc.write(bb);
+							}
+						}
+					});
+		}
+	}
+
+	/**
+	 * Give a chunk of the file through a mapped region of the file, so that
+	 * the data is not copied on the heap. Stripes share the mapped region.
+	 *
+	 * @return {@link ByteBuffer} whose remaining bytes are the chunk
+	 */
+	synchronized ByteBuffer slice(FileChannel fc, long offset, int length) throws IOException {
+		if (null == window || offset < windowStart
+				|| offset + length > windowStart + window.capacity()) {
+			windowStart = offset;
+			window = fc.map(FileChannel.MapMode.READ_ONLY, offset,
+					Math.min(WINDOWSIZ, filesize - offset));
+		}
+		ByteBuffer bbChunk = window.duplicate();
+		bbChunk.position((int) (offset - windowStart));
+		bbChunk.limit(bbChunk.position() + length);
+		return bbChunk;
+	}
+
+	/**
+	 * Compute the CRC32C checksum of a chunk.
+	 */
+	private int checksum(FileChannel fc, long offset, int length) throws IOException {
+		CRC32C crc = new CRC32C();
+		crc.update(slice(fc, offset, length));
+		return (int) crc.getValue();
+	}
+}
@@ -2,7 +2,7 @@ package fr.upem.net.tcp.client;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 
 /**
@@ -21,7 +21,7 @@ public class ScReaders {
 	 * Read until buffer is full.
 	 * 
 	 * @param sc
-	 *            {@code SocketChannel} to read from.
+	 *            {@code ReadableByteChannel} to read from.
 	 * @param bb
 	 *            {@code ByteBuffer} to save data in.
 	 * @return {@code true} if buffer is full, {@code false} if an error
@@ -29,7 +29,7 @@ public class ScReaders {
 	 * @throws IOException
 	 *             If some other I/O error occurs.
 	 */
-	public static boolean readFully(SocketChannel sc, ByteBuffer bb) throws IOException {
+	public static boolean readFully(ReadableByteChannel sc, ByteBuffer bb) throws IOException {
 		while (bb.hasRemaining()) {
 			if (-1 == sc.read(bb)) {
 				return false;
@@ -42,14 +42,14 @@ public class ScReaders {
 	 * Read a {@code byte}.
 	 * 
 	 * @param sc
-	 *            {@code SocketChannel} to read from.
+	 *            {@code ReadableByteChannel} to read from.
 	 * @param bb
 	 *            {@code ByteBuffer} to save data in.
 	 * @return The read {@code byte}.
 	 * @throws IOException
 	 *             If some other I/O error occurs.
 	 */
-	public static byte readByte(SocketChannel sc, ByteBuffer bb) throws IOException {
+	public static byte readByte(ReadableByteChannel sc, ByteBuffer bb) throws IOException {
 		bb.clear();
 		bb.limit(Byte.BYTES);
 		if (!readFully(sc, bb)) {
@@ -63,14 +63,14 @@ public class ScReaders {
 	 * Read an {@code int}.
 	 * 
 	 * @param sc
-	 *            {@code SocketChannel} to read from.
+	 *            {@code ReadableByteChannel} to read from.
 	 * @param bb
 	 *            {@code ByteBuffer} to save data in.
 	 * @return The read {@code int} value.
 	 * @throws IOException
 	 *             If some other I/O error occurs.
 	 */
-	public static int readInt(SocketChannel sc, ByteBuffer bb) throws IOException {
+	public static int readInt(ReadableByteChannel sc, ByteBuffer bb) throws IOException {
 		bb.clear();
 		bb.limit(Integer.BYTES);
 		if (!readFully(sc, bb)) {
@@ -84,14 +84,14 @@ public class ScReaders {
 	 * Read a {@code long}.
 	 * 
 	 * @param sc
-	 *            {@code SocketChannel} to read from.
+	 *            {@code ReadableByteChannel} to read from.
 	 * @param bb
 	 *            {@code ByteBuffer} to save data in.
 	 * @return The read {@code long} value.
 	 * @throws IOException
 	 *             If some other I/O error occurs.
 	 */
-	public static long readLong(SocketChannel sc, ByteBuffer bb) throws IOException {
+	public static long readLong(ReadableByteChannel sc, ByteBuffer bb) throws IOException {
 		bb.clear();
 		bb.limit(Long.BYTES);
 		if (!readFully(sc, bb)) {
@@ -105,7 +105,7 @@ public class ScReaders {
 	 * Read a string of given size and {@code charset}.
 	 * 
 	 * @param sc
-	 *            {@code SocketChannel} to read from.
+	 *            {@code ReadableByteChannel} to read from.
 	 * @param bb
 	 *            {@code ByteBuffer} to save data in.
 	 * @param size
@@ -116,7 +116,7 @@ public class ScReaders {
 	 * @throws IOException
 	 *             If some other I/O error occurs.
 	 */
-	public static String readString(SocketChannel sc, ByteBuffer bb, int size, Charset cs)
+	public static String readString(ReadableByteChannel sc, ByteBuffer bb, int size, Charset cs)
 			throws IOException {
 		bb.clear();
 		bb.limit(size);
@@ -127,11 +127,36 @@ public class ScReaders {
 		return cs.decode(bb).toString();
 	}
 
+	/**
+	 * Read a variable length {@code int} of the protocol version 2: 7 bits
+	 * per byte, least significant group first, the high bit set on every byte
+	 * but the last one.
+	 * 
+	 * @param sc
+	 *            {@code ReadableByteChannel} to read from.
+	 * @param bb
+	 *            {@code ByteBuffer} to save data in.
+	 * @return The read {@code int} value.
+	 * @throws IOException
+	 *             If the value is too long or some other I/O error occurs.
+	 */
+	public static int readVarint(ReadableByteChannel sc, ByteBuffer bb) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+			byte b = readByte(sc, bb);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("varint too long");
+	}
+
 	/**
 	 * Read an IPv4 or IPv6 address.
 	 * 
 	 * @param sc
-	 *            {@code SocketChannel} to read from.
+	 *            {@code ReadableByteChannel} to read from.
 	 * @param bb
 	 *            {@code ByteBuffer} to save data in.
 	 * @param isIpv4
@@ -141,7 +166,7 @@ public class ScReaders {
 	 * @throws IOException
 	 *             If some other I/O error occurs.
 	 */
-	public static byte[] readAddress(SocketChannel sc, ByteBuffer bb, boolean isIpv4)
+	public static byte[] readAddress(ReadableByteChannel sc, ByteBuffer bb, boolean isIpv4)
 			throws IOException {
 		int size = (isIpv4) ? 4 : 32;
 		bb.clear();
@@ -155,24 +180,4 @@ public class ScReaders {
 		return addr;
 	}
 
-	/**
-	 * Read the specified amount of {@code byte}s.
-	 * 
-	 * @param sc
-	 *            {@code SocketChannel} to read from.
-	 * @param size
-	 *            of the file to be read
-	 * @return the read bytes as an array of bytes
-	 * @throws IOException
-	 *             If some other I/O error occurs.
-	 */
-	public static byte[] readFileData(SocketChannel sc, int size) throws IOException {
-		ByteBuffer bb = ByteBuffer.allocate(size);
-		if (!readFully(sc, bb)) {
-			throw new IOException("connection lost (readfully byte)");
-		}
-		bb.flip();
-		return bb.array();
-	}
-
 }
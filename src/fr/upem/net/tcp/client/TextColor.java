@@ -0,0 +1,12 @@
+package fr.upem.net.tcp.client;
+
+/**
+ * Colors of the text printed by a {@link ClientUI}, which interfaces without
+ * colors may ignore.
+ * 
+ * @author Cheneau and Lee
+ *
+ */
+public enum TextColor {
+	BLACK, BLUE, GRAY, MAGENTA, ORANGE, RED
+}
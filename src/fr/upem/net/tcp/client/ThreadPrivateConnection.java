@@ -1,59 +1,55 @@
 package fr.upem.net.tcp.client;
 
 import static fr.upem.net.tcp.client.ScReaders.readByte;
-import static fr.upem.net.tcp.client.ScReaders.readFileData;
 import static fr.upem.net.tcp.client.ScReaders.readInt;
 import static fr.upem.net.tcp.client.ScReaders.readString;
-import static fr.upem.net.tcp.client.ScReaders.readLong;
 
-import java.awt.Color;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.nio.channels.ReadableByteChannel;
 import java.util.logging.Logger;
 
 /**
- * Thread monitoring a connection, receives packets for the client.
+ * Thread monitoring a stream of a private connection, receives packets for the
+ * client.
  * 
  * @author Cheneau and Lee
  *
  */
 public class ThreadPrivateConnection implements Runnable {
 	private static final Logger LOGGER = Logger.getLogger("ClientLogger");
-	private final SocketChannel sc;
+	private final ReadableByteChannel sc;
 	private final String nickname;
 	private final ByteBuffer bbin = ByteBuffer.allocate(Client.BUFSIZ);
-	private final ClientGUI clientGUI;
+	private final ClientUI ui;
 	private final Client client;
+	private final MultiplexedConnection connection;
 	private final boolean isMessageThread;
-	/**
-	 * Associate a nickname with the name of the file to be received from him
-	 */
-	private HashMap<String, String> filesToReceive = new HashMap<>();
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param sc
-	 *            {@link SocketChannel} to monitor
+	 *            stream of the private connection to monitor
 	 * @param nickname
 	 *            of client to monitor
-	 * @param clientGUI
-	 *            GUI where to print
+	 * @param ui
+	 *            user interface where to print
 	 * @param client
 	 *            to monitor
+	 * @param connection
+	 *            private connection {@code sc} belongs to
 	 * @param messageThread
 	 *            identifies this thread as the thread reading for the private
-	 *            message connection
+	 *            message stream
 	 */
-	public ThreadPrivateConnection(SocketChannel sc, String nickname, ClientGUI clientGUI,
-			Client client, boolean messageThread) {
+	public ThreadPrivateConnection(ReadableByteChannel sc, String nickname, ClientUI ui,
+			Client client, MultiplexedConnection connection, boolean messageThread) {
 		this.sc = sc;
 		this.nickname = nickname;
-		this.clientGUI = clientGUI;
+		this.ui = ui;
 		this.client = client;
+		this.connection = connection;
 		this.isMessageThread = messageThread;
 	}
 
@@ -61,7 +57,7 @@ public class ThreadPrivateConnection implements Runnable {
 	 * If opcode 12, a private message was received.
 	 * 
 	 * @param sc
-	 *            {@link SocketChannel} where message was received from
+	 *            stream where message was received from
 	 * @param bb
 	 *            {@link ByteBuffer} to read from
 	 * @param nickname
@@ -69,101 +65,20 @@ public class ThreadPrivateConnection implements Runnable {
 	 * @throws IOException
 	 *             if some I/O error occurs
 	 */
-	private void receivedPrivateMessage(SocketChannel sc, ByteBuffer bb, String nickname)
+	private void receivedPrivateMessage(ReadableByteChannel sc, ByteBuffer bb, String nickname)
 			throws IOException {
 		int msgSize = readInt(sc, bb);
 		String msg = readString(sc, bb, msgSize, Client.CS_UTF8);
-		clientGUI.println("*" + nickname + "* " + msg, Color.orange);
-	}
-
-	/**
-	 * If opcode 14, a file transfer request was received
-	 * 
-	 * @param sc
-	 *            {@link SocketChannel} where request was received from
-	 * @param bb
-	 *            {@link ByteBuffer} to read from
-	 * @param nickname
-	 *            of client who sent file transfer request
-	 * @throws IOException
-	 */
-	private void receivedFileTransferRequest(SocketChannel sc, ByteBuffer bb, String nickname)
-			throws IOException {
-		int filenameSize = readInt(sc, bb);
-		String filename = readString(sc, bb, filenameSize, Client.CS_UTF8);
-		long filesize = readLong(sc, bb);
-		clientGUI.println(
-				nickname + " wants to send you the file \"" + filename + "\" (" + filesize + " B).",
-				Color.magenta);
-		clientGUI.println("Accept ? (/yf " + nickname + " or /nf " + nickname + ")", Color.magenta);
-		// TODO get user input (help)
-		String input = "yf";
-		if (input.equals("yf")) {
-			client.replyFileTransfer(nickname, true);
-			filesToReceive.put(nickname, filename);
-		} else {
-			client.replyFileTransfer(nickname, false);
-		}
-	}
-
-	/**
-	 * If opcode 15, received answer for file transfer request.
-	 * 
-	 * @param sc
-	 *            {@link SocketChannel} where the packet was received from
-	 * @param bb
-	 *            {@link ByteBuffer} to read from
-	 * @param nickname
-	 *            of client who sent private message
-	 * @throws IOException
-	 *             if some I/O error occurs
-	 */
-	private void proceedFileTransfer(SocketChannel sc, ByteBuffer bb, String nickname)
-			throws IOException {
-		byte accept = readByte(sc, bbin);
-		switch (accept) {
-		case 0: // received an approval
-			clientGUI.println(nickname + " has accepted the file transfer.", Color.magenta);
-			client.sendFile(nickname);
-			break;
-		case 1:
-			clientGUI.println(nickname + " has refused the file transfer.", Color.magenta);
-			client.forgetFileTransfer(nickname);
-			break;
-		default:
-			System.err.println("Unknown opcode: " + accept);
-			clientGUI.println("Private connection lost with " + nickname, Color.red);
-			client.forgetPrivateConnection(nickname);
-			return;
-		}
+		ui.println("*" + nickname + "* " + msg, TextColor.ORANGE);
 	}
 
 	/**
-	 * If opcode 16, a file was received.
-	 * 
-	 * @param sc
-	 *            {@link SocketChannel} where message was received from
-	 * @param bb
-	 *            {@link ByteBuffer} to save output to
-	 * @param nickname
-	 *            of client who sent message
-	 * @throws IOException
-	 *             if some I/O error occurs
+	 * Read the private messages, and with them the frames of the files stream
+	 * until the connection is closed, even once the other client said it
+	 * closes it.
 	 */
-	private void receivedFile(SocketChannel sc, ByteBuffer bb, String nickname) throws IOException {
-		long filesize = readLong(sc, bb);
-		byte[] data = readFileData(sc, Byte.BYTES * (int) filesize);
-		String filename = filesToReceive.get(nickname);
-		FileOutputStream fileStream = new FileOutputStream(filename);
-		fileStream.write(data);
-		fileStream.close();
-		filesToReceive.remove(nickname); // done transferring the file
-		clientGUI.println("Transfer complete \"" + filename + "\" (" + filesize + " B) from "
-				+ nickname + ".", Color.magenta);
-		client.notifyTransferComplete(nickname);
-	}
-
 	private void runMessage() {
+		boolean hasClosed = false;
 		while (!Thread.interrupted()) {
 			try {
 				byte opcode = readByte(sc, bbin);
@@ -172,26 +87,34 @@ public class ThreadPrivateConnection implements Runnable {
 					receivedPrivateMessage(sc, bbin, nickname);
 					break;
 				case 13:
-					clientGUI.println(nickname + " has closed private connection.", Color.blue);
+					hasClosed = true;
+					ui.println(nickname + " has closed private connection.", TextColor.BLUE);
 					client.forgetPrivateConnection(nickname);
-					return;
+					break;
 				default:
 					System.err.println("Unknown opcode: " + opcode);
-					clientGUI.println("Private connection lost with " + nickname + ".", Color.red);
+					ui.println("Private connection lost with " + nickname + ".", TextColor.RED);
 					LOGGER.warning("Private connection lost with " + nickname);
 					client.forgetPrivateConnection(nickname);
+					silentlyClose();
 					return;
 				}
 			} catch (IOException ioe) {
+				if (hasClosed) { // already forgotten
+					LOGGER.info(nickname + " closed private connection");
+					silentlyClose();
+					return;
+				}
 				if (!Thread.interrupted()) {
-					clientGUI.println("Private connection lost with " + nickname + ".", Color.red);
+					ui.println("Private connection lost with " + nickname + ".", TextColor.RED);
 					LOGGER.warning("Private connection lost with " + nickname);
 				} else {
-					clientGUI.println("Private connection closed with " + nickname + ".",
-							Color.blue);
+					ui.println("Private connection closed with " + nickname + ".",
+							TextColor.BLUE);
 					LOGGER.info("Private connection closed with " + nickname);
 				}
 				client.forgetPrivateConnection(nickname);
+				silentlyClose();
 				return;
 			}
 		}
@@ -205,33 +128,19 @@ public class ThreadPrivateConnection implements Runnable {
 				case 13:
 					client.forgetPrivateConnection(nickname);
 					return;
-				case 14:
-					receivedFileTransferRequest(sc, bbin, nickname);
-					break;
-				case 15:
-					proceedFileTransfer(sc, bbin, nickname);
-					break;
-				case 16:
-					String filename = filesToReceive.get(nickname);
-					clientGUI.println(
-							"Transfer started \"" + filename + "\" from " + nickname + ".",
-							Color.magenta);
-					receivedFile(sc, bbin, nickname);
-					break;
-				case 17:
-					clientGUI.println(nickname + " has received the file \""
-							+ client.getFilenameWithNickname(nickname) + "\".", Color.blue);
-					client.forgetFileTransfer(nickname);
-					break;
 				default:
-					clientGUI.println("Private connection lost with " + nickname, Color.red);
+					if (client.getTransfers().handle(opcode, nickname, sc, bbin, connection)) {
+						break;
+					}
+					ui.println("Private connection lost with " + nickname, TextColor.RED);
 					LOGGER.warning("Unknown opcode: " + opcode + " received from " + nickname);
 					client.forgetPrivateConnection(nickname);
+					silentlyClose();
 					return;
 				}
 			} catch (IOException ioe) {
 				if (!Thread.interrupted()) {
-					clientGUI.println("Private connection lost with " + nickname, Color.red);
+					ui.println("Private connection lost with " + nickname, TextColor.RED);
 					LOGGER.warning("Private connection lost with " + nickname);
 				} else {
 					LOGGER.info("Private connection closed with " + nickname);
@@ -242,6 +151,14 @@ public class ThreadPrivateConnection implements Runnable {
 		}
 	}
 
+	private void silentlyClose() {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// Do nothing
+		}
+	}
+
 	@Override
 	public void run() {
 		if (isMessageThread) {
@@ -0,0 +1,977 @@
+package fr.upem.net.tcp.client;
+
+import static fr.upem.net.tcp.client.ScReaders.readByte;
+import static fr.upem.net.tcp.client.ScReaders.readFully;
+import static fr.upem.net.tcp.client.ScReaders.readInt;
+import static fr.upem.net.tcp.client.ScReaders.readLong;
+import static fr.upem.net.tcp.client.ScReaders.readString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps track of the file transfers of a client, and handles the packets
+ * received on the file transfers streams, whether the client is acting as
+ * a client or as a server.
+ *
+ * <p>
+ * Transfers are identified by an ID and survive the loss of the private
+ * connection: once it is established again, the sender requests the transfer
+ * again and the receiver answers with the offset it has already verified.
+ * </p>
+ *
+ * <p>
+ * Files sent to a client are queued, and requested by batches: a manifest
+ * lists several files and the receiver answers all of them at once, so that
+ * the data of the whole batch follows without a round trip per file. A
+ * directory is sent as one batch of the regular files it contains.
+ * </p>
+ *
+ * <p>
+ * The progress of the transfers is reported every
+ * {@link #PROGRESS_PERIOD} seconds, and a summary of each finished transfer is
+ * kept in a short history.
+ * </p>
+ *
+ * <p>
+ * Large files may be sent over extra connections opened by the sender on the
+ * receiver's listening port: chunks are striped across them and the receiver
+ * writes each one at its position in the file.
+ * </p>
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class TransferManager {
+	private static final Logger LOGGER = Logger.getLogger("ClientLogger");
+	/** Maximum number of extra connections for one transfer. */
+	public static final int MAX_STREAMS = 4;
+	/** Minimum number of chunks sent on each connection of a transfer. */
+	private static final int MIN_CHUNKS_PER_STREAM = 16;
+	/** Size of the fields of a file in a manifest, without its name. */
+	private static final int MANIFEST_ENTRYSIZ = Long.BYTES + Integer.BYTES + Long.BYTES;
+	/** Maximum number of files in a manifest, which always fits in a buffer. */
+	private static final int MAX_MANIFEST = Client.BUFSIZ / (MANIFEST_ENTRYSIZ + 1);
+	/** Maximum size of a file name in a manifest. */
+	private static final int MAX_FILENAMESIZ = Client.BUFSIZ - Byte.BYTES - Byte.BYTES
+			- Integer.BYTES - MANIFEST_ENTRYSIZ;
+	/** Flag of a manifest or its reply: chunks may be sent compressed. */
+	private static final byte FLAG_COMPRESSION = 1;
+	/** Seconds between two reports of the progress of the transfers. */
+	private static final int PROGRESS_PERIOD = 1;
+	/** Seconds without progress after which a transfer is reported stalled. */
+	private static final int STALL_TIMEOUT = 10;
+	/** Maximum number of transfers whose progress is printed at once. */
+	private static final int MAX_PROGRESS_LINES = 4;
+	/** Number of finished transfers kept in the history. */
+	private static final int HISTORYSIZ = 50;
+	/** Timeout to open an extra connection. */
+	private static final int STREAM_CONNECT_TIMEOUT = 3000;
+	/** Buffer where each reading thread receives chunks. */
+	private static final ThreadLocal<ByteBuffer> CHUNK_BUFFERS = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(Client.CHUNKSIZ));
+	/** Buffer where each reading thread receives compressed chunks. */
+	private static final ThreadLocal<ByteBuffer> COMPRESSED_BUFFERS = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocate(Client.CHUNKSIZ));
+	private final ClientUI ui;
+	/** Nickname of the client */
+	private final String nickname;
+	/** Port where the client listens for private connections */
+	private final int listenport;
+	/** Number of extra connections opened to send a large file. */
+	private volatile int extraStreams;
+	/** Whether chunks may be sent and received compressed. */
+	private volatile boolean compression = true;
+	/** Used to generate transfer IDs */
+	private final SecureRandom randomId = new SecureRandom();
+	/** Associate nickname to the queue of files being sent to him, by ID. */
+	private final ConcurrentHashMap<String, LinkedHashMap<Long, OutgoingTransfer>> outgoing = new ConcurrentHashMap<>();
+	/** Associate a transfer ID to the file being received. */
+	private final ConcurrentHashMap<Long, IncomingTransfer> incoming = new ConcurrentHashMap<>();
+	/** Summaries of the last finished transfers. */
+	private final ArrayDeque<String> history = new ArrayDeque<>();
+	private final ScheduledExecutorService reporter = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "TransferReporter");
+				t.setDaemon(true);
+				return t;
+			});
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ui
+	 *            user interface where to print
+	 * @param nickname
+	 *            of the client
+	 * @param listenport
+	 *            where the client listens for private connections
+	 */
+	public TransferManager(ClientUI ui, String nickname, int listenport) {
+		this.ui = ui;
+		this.nickname = nickname;
+		this.listenport = listenport;
+		reporter.scheduleAtFixedRate(this::reportProgress, PROGRESS_PERIOD, PROGRESS_PERIOD,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Set the number of extra connections opened to send a large file.
+	 *
+	 * @param extraStreams
+	 *            number of extra connections, between 0 and
+	 *            {@link #MAX_STREAMS}
+	 */
+	public void setExtraStreams(int extraStreams) {
+		if (extraStreams < 0 || extraStreams > MAX_STREAMS) {
+			throw new IllegalArgumentException("Number of streams is not valid: " + extraStreams);
+		}
+		this.extraStreams = extraStreams;
+	}
+
+	/**
+	 * Enable or disable the compression of chunks, for the transfers
+	 * requested from now on.
+	 *
+	 * @param compression
+	 *            {@code true} to compress the chunks which compress well
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Print the summaries of the last finished transfers, and the progress of
+	 * the transfers in progress.
+	 */
+	public void printTransfers() {
+		synchronized (history) {
+			if (history.isEmpty()) {
+				ui.println("No transfer finished yet.", TextColor.BLUE);
+			}
+			for (String summary : history) {
+				ui.println(summary, TextColor.BLUE);
+			}
+		}
+		for (IncomingTransfer transfer : incoming.values()) {
+			TransferProgress progress = transfer.getProgress();
+			ui.println("Receiving \"" + transfer.getFilename() + "\" from "
+					+ transfer.getNickname() + ": " + progress.transferred() + "/"
+					+ transfer.getFilesize() + " B", TextColor.BLUE);
+		}
+		for (String to : outgoing.keySet()) {
+			for (OutgoingTransfer transfer : queued(to)) {
+				TransferProgress progress = transfer.getProgress();
+				ui.println("Sending \"" + transfer.getFilename() + "\" to " + to + ": "
+						+ progress.transferred() + "/" + transfer.getFilesize() + " B",
+						TextColor.BLUE);
+			}
+		}
+	}
+
+	/**
+	 * Queue a file, or every regular file of a directory, to send to a
+	 * client. Files of a directory are named relatively to its parent, so that
+	 * the receiver rebuilds the directory.
+	 *
+	 * @param nickname
+	 *            of the client to send the files to
+	 * @param path
+	 *            to the file or directory to be sent
+	 * @return the batch of transfers queued
+	 * @throws IOException
+	 *             if a file could not be read or its name is too long
+	 */
+	public List<OutgoingTransfer> prepare(String nickname, Path path) throws IOException {
+		ArrayList<OutgoingTransfer> batch = new ArrayList<>();
+		if (Files.isDirectory(path)) {
+			Path base = path.toAbsolutePath().normalize();
+			Path parent = null == base.getParent() ? base : base.getParent();
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(base)) {
+				files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+			}
+			for (Path file : files) {
+				String name = parent.relativize(file).toString().replace(file.getFileSystem()
+						.getSeparator(), "/");
+				batch.add(OutgoingTransfer.create(newId(), nickname, file, name));
+			}
+		} else {
+			batch.add(OutgoingTransfer.create(newId(), nickname, path,
+					path.getFileName().toString()));
+		}
+		for (OutgoingTransfer transfer : batch) {
+			if (Client.CS_UTF8.encode(transfer.getFilename()).remaining() > MAX_FILENAMESIZ) {
+				throw new IOException("file name too long: " + transfer.getFilename());
+			}
+		}
+		LinkedHashMap<Long, OutgoingTransfer> queue = outgoing.computeIfAbsent(nickname,
+				k -> new LinkedHashMap<>());
+		synchronized (queue) {
+			for (OutgoingTransfer transfer : batch) {
+				queue.put(transfer.getId(), transfer);
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Request again the file being sent to a client, after the private
+	 * connection with him has been established again.
+	 *
+	 * @param nickname
+	 *            of the client
+	 * @param connection
+	 *            the new private connection with him
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public void resume(String nickname, MultiplexedConnection connection) throws IOException {
+		List<OutgoingTransfer> batch = queued(nickname);
+		if (batch.isEmpty()) {
+			return;
+		}
+		ui.println("Resuming transfer of " + batch.size() + " file(s) with " + nickname
+				+ ".", TextColor.MAGENTA);
+		for (ByteBuffer bb : packetsFileTransferRequest(batch)) {
+			bb.flip();
+			connection.writeInFiles(bb);
+		}
+	}
+
+	/**
+	 * Forget a batch of files queued for a client.
+	 *
+	 * @param nickname
+	 *            of the client
+	 * @param batch
+	 *            given by {@link #prepare(String, Path)}
+	 */
+	public void forgetOutgoing(String nickname, List<OutgoingTransfer> batch) {
+		LinkedHashMap<Long, OutgoingTransfer> queue = outgoing.get(nickname);
+		if (null == queue) {
+			return;
+		}
+		synchronized (queue) {
+			for (OutgoingTransfer transfer : batch) {
+				queue.remove(transfer.getId());
+			}
+		}
+	}
+
+	/**
+	 * Forget all transfers with a client, the partial files received from him
+	 * are kept on disk.
+	 *
+	 * @param nickname
+	 *            of the client
+	 */
+	public void forget(String nickname) {
+		outgoing.remove(nickname);
+		for (Iterator<IncomingTransfer> it = incoming.values().iterator(); it.hasNext();) {
+			IncomingTransfer transfer = it.next();
+			if (transfer.getNickname().equals(nickname)) {
+				transfer.close();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Handle a packet received on a file transfers stream.
+	 *
+	 * @param opcode
+	 *            of the packet
+	 * @param nickname
+	 *            of client who sent the packet
+	 * @param sc
+	 *            stream where the packet was received from
+	 * @param bb
+	 *            {@link ByteBuffer} to read from
+	 * @param connection
+	 *            private connection with the client
+	 * @return {@code true} if the packet was handled, {@code false} if the
+	 *         opcode is not a file transfer opcode
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public boolean handle(byte opcode, String nickname, ReadableByteChannel sc, ByteBuffer bb,
+			MultiplexedConnection connection) throws IOException {
+		switch (opcode) {
+		case 14:
+			receivedFileTransferRequest(sc, bb, nickname, connection);
+			return true;
+		case 15:
+			receivedFileTransferReply(sc, bb, nickname, connection);
+			return true;
+		case 16:
+			receivedChunk(sc, bb, nickname);
+			return true;
+		case 23:
+			receivedCompressedChunk(sc, bb, nickname);
+			return true;
+		case 17:
+			receivedTransferComplete(sc, bb, nickname);
+			return true;
+		case 21:
+			receivedChunkRequest(sc, bb, nickname, connection);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Serve an extra connection opened by a client to send a file. The
+	 * connection is closed by the sender once its chunks have been sent.
+	 *
+	 * @param sc
+	 *            {@link SocketChannel} of the extra connection
+	 * @param bb
+	 *            {@link ByteBuffer} to read from
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	public void serveStream(SocketChannel sc, ByteBuffer bb) throws IOException {
+		int nicknameSize = readInt(sc, bb);
+		if (nicknameSize <= 0 || nicknameSize > Client.MAX_NICKLEN) {
+			throw new IOException("Invalid nickname size: " + nicknameSize);
+		}
+		String fromNickname = readString(sc, bb, nicknameSize, Client.CS_NICKNAME);
+		long id = readLong(sc, bb);
+		IncomingTransfer transfer = incoming.get(id);
+		if (null == transfer || !transfer.getNickname().equals(fromNickname)) {
+			LOGGER.warning(Client.remoteAddressToString(sc) + ": stream for unknown transfer");
+			return;
+		}
+		while (true) {
+			byte opcode;
+			try {
+				opcode = readByte(sc, bb);
+			} catch (IOException ioe) {
+				return; // all chunks sent
+			}
+			switch (opcode) {
+			case 16:
+				receivedChunk(sc, bb, fromNickname);
+				break;
+			case 23:
+				receivedCompressedChunk(sc, bb, fromNickname);
+				break;
+			default:
+				throw new IOException("Unexpected opcode on stream: " + opcode);
+			}
+		}
+	}
+
+	/* handle opcode */
+
+	/**
+	 * If opcode 14, a manifest of files to transfer was received. They are all
+	 * answered in one reply. If a transfer is already known, it is resumed
+	 * from its verified offset.
+	 */
+	private void receivedFileTransferRequest(ReadableByteChannel sc, ByteBuffer bb, String nickname,
+			MultiplexedConnection connection) throws IOException {
+		byte flags = readByte(sc, bb);
+		int count = readInt(sc, bb);
+		if (count <= 0 || count > MAX_MANIFEST) {
+			throw new IOException("Invalid number of files in manifest: " + count);
+		}
+		flags &= compression ? FLAG_COMPRESSION : 0;
+		ByteBuffer bbReply = packetFileTransferReply(flags, count);
+		ArrayList<IncomingTransfer> accepted = new ArrayList<>();
+		long totalsize = 0;
+		for (int i = 0; i < count; i++) {
+			long id = readLong(sc, bb);
+			int filenameSize = readInt(sc, bb);
+			if (filenameSize <= 0 || filenameSize > MAX_FILENAMESIZ) {
+				throw new IOException("Invalid file name size: " + filenameSize);
+			}
+			String filename = readString(sc, bb, filenameSize, Client.CS_UTF8);
+			long filesize = readLong(sc, bb);
+			IncomingTransfer transfer = incoming.get(id);
+			if (null == transfer || !transfer.getNickname().equals(nickname)) {
+				// TODO get user input (help)
+				try {
+					transfer = IncomingTransfer.create(id, nickname, filename, filesize);
+				} catch (IOException ioe) {
+					LOGGER.warning("Refused file from " + nickname + ": " + ioe.getMessage());
+					putFileTransferReply(bbReply, id, false, 0);
+					continue;
+				}
+				incoming.put(id, transfer);
+				if (count == 1) {
+					ui.println("Transfer started \"" + filename + "\" (" + filesize
+							+ " B) from " + nickname + ".", TextColor.MAGENTA);
+				}
+			} else if (count == 1) {
+				ui.println("Transfer resumed \"" + filename + "\" from " + nickname
+						+ " at " + transfer.verifiedOffset() + " B.", TextColor.MAGENTA);
+			}
+			transfer.setConnection(connection);
+			transfer.restartProgress();
+			putFileTransferReply(bbReply, id, true, transfer.verifiedOffset());
+			accepted.add(transfer);
+			totalsize += filesize;
+		}
+		if (count > 1) {
+			ui.println("Transfer of " + accepted.size() + " file(s) (" + totalsize
+					+ " B) started from " + nickname + ".", TextColor.MAGENTA);
+		}
+		bbReply.putInt(listenport);
+		bbReply.flip();
+		connection.sendInFiles(() -> connection.writeInFiles(bbReply));
+		for (IncomingTransfer transfer : accepted) {
+			if (transfer.isComplete()) { // nothing to send, empty file
+				completeTransfer(transfer);
+			}
+		}
+	}
+
+	/**
+	 * If opcode 15, received answer for a manifest. The accepted files are
+	 * sent one after the other, each from the offset given by the receiver,
+	 * by the sender thread of the connection.
+	 */
+	private void receivedFileTransferReply(ReadableByteChannel sc, ByteBuffer bb, String nickname,
+			MultiplexedConnection connection) throws IOException {
+		byte flags = readByte(sc, bb);
+		int count = readInt(sc, bb);
+		if (count <= 0 || count > MAX_MANIFEST) {
+			throw new IOException("Invalid number of files in reply: " + count);
+		}
+		long[] ids = new long[count];
+		long[] offsets = new long[count];
+		boolean[] accepted = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = readLong(sc, bb);
+			byte accept = readByte(sc, bb);
+			if (accept != 0 && accept != 1) {
+				throw new IOException("Unknown file transfer answer: " + accept);
+			}
+			accepted[i] = accept == 0;
+			offsets[i] = readLong(sc, bb);
+		}
+		int port = readInt(sc, bb);
+		ArrayList<OutgoingTransfer> toSend = new ArrayList<>();
+		ArrayList<Long> froms = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			OutgoingTransfer transfer = getOutgoing(nickname, ids[i]);
+			if (null == transfer) {
+				LOGGER.warning("Answer for unknown transfer " + ids[i] + " from " + nickname);
+				continue;
+			}
+			if (!accepted[i]) {
+				ui.println(nickname + " has refused the file \"" + transfer.getFilename()
+						+ "\".", TextColor.MAGENTA);
+				removeOutgoing(nickname, ids[i]);
+				continue;
+			}
+			if (offsets[i] < 0 || offsets[i] > transfer.getFilesize()) {
+				throw new IOException("Invalid offset " + offsets[i] + " for transfer " + ids[i]);
+			}
+			transfer.setCompressed((flags & FLAG_COMPRESSION) != 0);
+			toSend.add(transfer);
+			froms.add(offsets[i]);
+		}
+		connection.sendInFiles(() -> {
+			for (int i = 0; i < toSend.size(); i++) {
+				sendChunks(toSend.get(i), froms.get(i), connection, port);
+			}
+		});
+	}
+
+	/**
+	 * If opcode 16, a chunk of a file was received, on the file transfers
+	 * stream or on an extra connection. Ask for it again if its checksum
+	 * is wrong.
+	 */
+	private void receivedChunk(ReadableByteChannel sc, ByteBuffer bb, String nickname)
+			throws IOException {
+		long id = readLong(sc, bb);
+		long offset = readLong(sc, bb);
+		int length = readInt(sc, bb);
+		int checksum = readInt(sc, bb);
+		IncomingTransfer transfer = incoming.get(id);
+		if (null == transfer || !transfer.getNickname().equals(nickname)) {
+			// chunk sent again by the sender after the transfer completed
+			if (length < 0 || length > Client.CHUNKSIZ) {
+				throw new IOException("chunk received for unknown transfer " + id);
+			}
+			ByteBuffer bbChunk = CHUNK_BUFFERS.get();
+			bbChunk.clear();
+			bbChunk.limit(length);
+			if (!readFully(sc, bbChunk)) {
+				throw new IOException("connection lost (file chunk)");
+			}
+			LOGGER.info("Ignored chunk " + offset + " of finished transfer " + id);
+			return;
+		}
+		if (!transfer.receiveChunk(sc, CHUNK_BUFFERS.get(), offset, length, checksum)) {
+			LOGGER.warning("Wrong checksum for chunk " + offset + " of \"" + transfer.getFilename()
+					+ "\" from " + nickname);
+			ByteBuffer bbRequest = packetChunkRequest(id, offset);
+			bbRequest.flip();
+			MultiplexedConnection connection = transfer.getConnection();
+			connection.sendInFiles(() -> connection.writeInFiles(bbRequest));
+			return;
+		}
+		if (transfer.isComplete()) {
+			completeTransfer(transfer);
+		}
+	}
+
+	/**
+	 * If opcode 23, a compressed chunk of a file was received, on the file
+	 * transfers stream or on an extra connection. Ask for it again if it
+	 * cannot be inflated or if its checksum is wrong.
+	 */
+	private void receivedCompressedChunk(ReadableByteChannel sc, ByteBuffer bb, String nickname)
+			throws IOException {
+		long id = readLong(sc, bb);
+		long offset = readLong(sc, bb);
+		int length = readInt(sc, bb);
+		int checksum = readInt(sc, bb);
+		int compressedLength = readInt(sc, bb);
+		if (compressedLength <= 0 || compressedLength > Client.CHUNKSIZ) {
+			throw new IOException("Invalid compressed chunk size: " + compressedLength);
+		}
+		ByteBuffer bbCompressed = COMPRESSED_BUFFERS.get();
+		bbCompressed.clear();
+		bbCompressed.limit(compressedLength);
+		if (!readFully(sc, bbCompressed)) {
+			throw new IOException("connection lost (file chunk)");
+		}
+		bbCompressed.flip();
+		IncomingTransfer transfer = incoming.get(id);
+		if (null == transfer || !transfer.getNickname().equals(nickname)) {
+			LOGGER.info("Ignored chunk " + offset + " of finished transfer " + id);
+			return;
+		}
+		transfer.checkChunk(offset, length);
+		ByteBuffer bbChunk = ChunkCompressor.inflate(bbCompressed, length);
+		if (null == bbChunk || !transfer.writeChunk(bbChunk, offset, checksum)) {
+			LOGGER.warning("Wrong compressed chunk " + offset + " of \"" + transfer.getFilename()
+					+ "\" from " + nickname);
+			ByteBuffer bbRequest = packetChunkRequest(id, offset);
+			bbRequest.flip();
+			MultiplexedConnection connection = transfer.getConnection();
+			connection.sendInFiles(() -> connection.writeInFiles(bbRequest));
+			return;
+		}
+		if (transfer.isComplete()) {
+			completeTransfer(transfer);
+		}
+	}
+
+	/**
+	 * If opcode 17, the client has received the whole file.
+	 */
+	private void receivedTransferComplete(ReadableByteChannel sc, ByteBuffer bb, String nickname)
+			throws IOException {
+		long id = readLong(sc, bb);
+		OutgoingTransfer transfer = removeOutgoing(nickname, id);
+		if (null == transfer) {
+			LOGGER.warning("Unknown transfer " + id + " completed by " + nickname);
+			return;
+		}
+		TransferProgress progress = transfer.getProgress();
+		ui.println(nickname + " has received the file \"" + transfer.getFilename() + "\" ("
+				+ TransferProgress.formatRate(progress.averageRate()) + ").", TextColor.BLUE);
+		remember("Sent \"" + transfer.getFilename() + "\" (" + transfer.getFilesize() + " B) to "
+				+ nickname, progress);
+	}
+
+	/**
+	 * If opcode 21, the client asks again for a chunk whose checksum was wrong.
+	 * It is sent by the sender thread of the connection.
+	 */
+	private void receivedChunkRequest(ReadableByteChannel sc, ByteBuffer bb, String nickname,
+			MultiplexedConnection connection) throws IOException {
+		long id = readLong(sc, bb);
+		long offset = readLong(sc, bb);
+		OutgoingTransfer transfer = getOutgoing(nickname, id);
+		if (null == transfer || offset < 0
+				|| offset >= transfer.getFilesize()) {
+			LOGGER.warning("Unknown chunk " + offset + " of transfer " + id + " requested by "
+					+ nickname);
+			return;
+		}
+		connection.sendInFiles(() -> {
+			try (FileChannel fc = transfer.open()) {
+				connection.writeChunkInFiles(transfer, fc, offset);
+			}
+		});
+	}
+
+	/* Other */
+
+	/**
+	 * Print the progress of the transfers which have moved, or which are
+	 * stalled, since the last report. Called every {@link #PROGRESS_PERIOD}
+	 * seconds by the reporting thread only.
+	 */
+	private void reportProgress() {
+		try {
+			ArrayList<String> lines = new ArrayList<>();
+			long stallTimeout = TimeUnit.SECONDS.toNanos(STALL_TIMEOUT);
+			for (IncomingTransfer transfer : incoming.values()) {
+				String line = sample(transfer.getProgress(), transfer.getFilesize(), stallTimeout);
+				if (null != line) {
+					lines.add("\"" + transfer.getFilename() + "\" from " + transfer.getNickname()
+							+ ": " + line);
+				}
+			}
+			for (String to : outgoing.keySet()) {
+				for (OutgoingTransfer transfer : queued(to)) {
+					String line = sample(transfer.getProgress(), transfer.getFilesize(),
+							stallTimeout);
+					if (null != line) {
+						lines.add("\"" + transfer.getFilename() + "\" to " + to + ": " + line);
+					}
+				}
+			}
+			for (int i = 0; i < lines.size() && i < MAX_PROGRESS_LINES; i++) {
+				ui.println(lines.get(i), TextColor.GRAY);
+			}
+			if (lines.size() > MAX_PROGRESS_LINES) {
+				ui.println("... and " + (lines.size() - MAX_PROGRESS_LINES)
+						+ " other transfer(s) in progress.", TextColor.GRAY);
+			}
+		} catch (RuntimeException e) {
+			// the reporting thread must not die
+			LOGGER.warning("Could not report progress: " + e);
+		}
+	}
+
+	/**
+	 * Sample the progress of a transfer which has started and has data left
+	 * to move.
+	 */
+	private static String sample(TransferProgress progress, long filesize, long stallTimeout) {
+		if (progress.transferred() >= filesize || progress.averageRate() == 0) {
+			return null;
+		}
+		return progress.sample(stallTimeout);
+	}
+
+	/**
+	 * Keep the summary of a finished transfer in the history.
+	 */
+	private void remember(String transfer, TransferProgress progress) {
+		String summary = transfer + " in " + TransferProgress.formatDuration(progress.elapsed())
+				+ ", " + TransferProgress.formatRate(progress.averageRate());
+		LOGGER.info(summary);
+		synchronized (history) {
+			if (history.size() == HISTORYSIZ) {
+				history.removeFirst();
+			}
+			history.addLast(summary);
+		}
+	}
+
+	private long newId() {
+		long id;
+		do {
+			id = randomId.nextLong();
+		} while (id == (long) 0);
+		return id;
+	}
+
+	/**
+	 * Give the files queued for a client, in the order they were queued.
+	 */
+	private List<OutgoingTransfer> queued(String nickname) {
+		LinkedHashMap<Long, OutgoingTransfer> queue = outgoing.get(nickname);
+		if (null == queue) {
+			return new ArrayList<>();
+		}
+		synchronized (queue) {
+			return new ArrayList<>(queue.values());
+		}
+	}
+
+	private OutgoingTransfer getOutgoing(String nickname, long id) {
+		LinkedHashMap<Long, OutgoingTransfer> queue = outgoing.get(nickname);
+		if (null == queue) {
+			return null;
+		}
+		synchronized (queue) {
+			return queue.get(id);
+		}
+	}
+
+	private OutgoingTransfer removeOutgoing(String nickname, long id) {
+		LinkedHashMap<Long, OutgoingTransfer> queue = outgoing.get(nickname);
+		if (null == queue) {
+			return null;
+		}
+		synchronized (queue) {
+			return queue.remove(id);
+		}
+	}
+
+	/**
+	 * Send the chunks of a file from a given offset. If the file is large
+	 * enough, extra connections are opened on the receiver's port and the
+	 * chunks are striped across them and the file transfers stream. The
+	 * chunks of an extra connection which failed are sent again on the file
+	 * transfers stream.
+	 */
+	private void sendChunks(OutgoingTransfer transfer, long from, MultiplexedConnection connection,
+			int port) throws IOException {
+		long nbChunks = (transfer.getFilesize() - from + Client.CHUNKSIZ - 1) / Client.CHUNKSIZ;
+		transfer.restartProgress(from);
+		int streams = extraStreams;
+		ArrayList<SocketChannel> scs = new ArrayList<>();
+		if (streams > 0 && nbChunks >= (long) MIN_CHUNKS_PER_STREAM * (streams + 1)) {
+			scs = openStreams(transfer, connection, port, streams);
+		}
+		int nbStripes = scs.size() + 1;
+		Thread[] senders = new Thread[scs.size()];
+		boolean[] failed = new boolean[nbStripes];
+		for (int i = 0; i < senders.length; i++) {
+			SocketChannel sc = scs.get(i);
+			int stripe = i + 1;
+			senders[i] = new Thread(() -> {
+				try {
+					transfer.writeStripe(sc, from, stripe, nbStripes);
+				} catch (IOException ioe) {
+					LOGGER.warning("Lost stream " + stripe + " with " + transfer.getNickname()
+							+ ": " + ioe);
+					failed[stripe] = true;
+				} finally {
+					silentlyClose(sc);
+				}
+			});
+			senders[i].start();
+		}
+		try (FileChannel fc = transfer.open()) {
+			long step = (long) nbStripes * Client.CHUNKSIZ;
+			ChunkCompressor.Output output = filesOutput(transfer, connection);
+			ChunkCompressor.send(transfer, fc, from, step, output);
+			for (Thread sender : senders) {
+				sender.join();
+			}
+			for (int stripe = 1; stripe < nbStripes; stripe++) {
+				if (failed[stripe]) {
+					ChunkCompressor.send(transfer, fc, from + (long) stripe * Client.CHUNKSIZ, step,
+							output);
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			for (Thread sender : senders) {
+				sender.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Give the output writing the chunks of a file on the file transfers
+	 * stream, one packet at a time.
+	 */
+	private static ChunkCompressor.Output filesOutput(OutgoingTransfer transfer,
+			MultiplexedConnection connection) {
+		return new ChunkCompressor.Output() {
+			@Override
+			public void writeChunk(FileChannel fc, long offset) throws IOException {
+				connection.writeChunkInFiles(transfer, fc, offset);
+			}
+
+			@Override
+			public void writePacket(ByteBuffer bb) throws IOException {
+				connection.writeInFiles(bb);
+			}
+		};
+	}
+
+	/**
+	 * Open extra connections on the receiver's port, or relayed by the chat
+	 * server, each one authenticated with the transfer ID.
+	 *
+	 * @return the connections which could be opened
+	 */
+	private ArrayList<SocketChannel> openStreams(OutgoingTransfer transfer,
+			MultiplexedConnection connection, int port, int streams) {
+		ArrayList<SocketChannel> scs = new ArrayList<>();
+		ByteBuffer bbAuth = packetStreamAuthentication(transfer.getId());
+		for (int i = 0; i < streams; i++) {
+			SocketChannel sc = null;
+			try {
+				sc = connection.openStream(port, STREAM_CONNECT_TIMEOUT);
+				bbAuth.flip();
+				sc.write(bbAuth);
+				scs.add(sc);
+			} catch (IOException ioe) {
+				LOGGER.warning("Could not open stream with " + transfer.getNickname() + ": " + ioe);
+				silentlyClose(sc);
+				break;
+			}
+		}
+		return scs;
+	}
+
+	private static void silentlyClose(SocketChannel sc) {
+		if (sc != null) {
+			try {
+				sc.close();
+			} catch (IOException e) {
+				// Do nothing
+			}
+		}
+	}
+
+	private void completeTransfer(IncomingTransfer transfer) throws IOException {
+		if (!incoming.remove(transfer.getId(), transfer)) {
+			return; // completed by another connection
+		}
+		transfer.complete();
+		TransferProgress progress = transfer.getProgress();
+		ui.println("Transfer complete \"" + transfer.getFilename() + "\" ("
+				+ transfer.getFilesize() + " B) from " + transfer.getNickname() + ", "
+				+ TransferProgress.formatRate(progress.averageRate()) + ".", TextColor.MAGENTA);
+		remember("Received \"" + transfer.getFilename() + "\" (" + transfer.getFilesize()
+				+ " B) from " + transfer.getNickname(), progress);
+		ByteBuffer bb = packetTransferComplete(transfer.getId());
+		bb.flip();
+		MultiplexedConnection connection = transfer.getConnection();
+		connection.sendInFiles(() -> connection.writeInFiles(bb));
+	}
+
+	/* Packet builder */
+
+	/**
+	 * Packets send the manifests of a batch of files, each one fitting in
+	 * {@link Client#BUFSIZ} bytes. The flags offer compressed chunks if
+	 * compression is enabled.
+	 *
+	 * <pre>
+	 * +--------+-------+-------+-----------------------------------------+
+	 * | opcode | flags | count |  count * (ID | name size | name | size) |
+	 * +--------+-------+-------+-----------------------------------------+
+	 * |   14   | byte  |  int  |  long | int | bytes | long               |
+	 * +--------+-------+-------+-----------------------------------------+
+	 * </pre>
+	 *
+	 * @param batch
+	 *            the files to be sent
+	 * @return the {@code ByteBuffer}s containing the packets
+	 */
+	public List<ByteBuffer> packetsFileTransferRequest(List<OutgoingTransfer> batch) {
+		ArrayList<ByteBuffer> packets = new ArrayList<>();
+		ByteBuffer bb = null;
+		int count = 0;
+		for (OutgoingTransfer transfer : batch) {
+			ByteBuffer bbFilename = Client.CS_UTF8.encode(transfer.getFilename());
+			if (null == bb || count == MAX_MANIFEST
+					|| bb.remaining() < MANIFEST_ENTRYSIZ + bbFilename.remaining()) {
+				if (null != bb) {
+					bb.putInt(Byte.BYTES + Byte.BYTES, count);
+				}
+				bb = ByteBuffer.allocate(Client.BUFSIZ);
+				bb.put((byte) 14);
+				bb.put(compression ? FLAG_COMPRESSION : 0);
+				bb.putInt(0); // count, set when the packet is full
+				packets.add(bb);
+				count = 0;
+			}
+			bb.putLong(transfer.getId());
+			bb.putInt(bbFilename.remaining());
+			bb.put(bbFilename);
+			bb.putLong(transfer.getFilesize());
+			count++;
+		}
+		if (null != bb) {
+			bb.putInt(Byte.BYTES + Byte.BYTES, count);
+		}
+		return packets;
+	}
+
+	/**
+	 * Packet answer a manifest, filled with
+	 * {@link #putFileTransferReply(ByteBuffer, long, boolean, long)} and then
+	 * the port where extra connections may be opened. The flags are the ones
+	 * of the manifest which the receiver accepts.
+	 *
+	 * <pre>
+	 * +--------+-------+-------+-------------------------------+------+
+	 * | opcode | flags | count | count * (ID | accept | offset) | port |
+	 * +--------+-------+-------+-------------------------------+------+
+	 * |   15   | byte  |  int  |   long | byte | long          | int  |
+	 * +--------+-------+-------+-------------------------------+------+
+	 * </pre>
+	 */
+	private static ByteBuffer packetFileTransferReply(byte flags, int count) {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Byte.BYTES + Integer.BYTES
+				+ count * (Long.BYTES + Byte.BYTES + Long.BYTES) + Integer.BYTES);
+		bb.put((byte) 15);
+		bb.put(flags);
+		bb.putInt(count);
+		return bb;
+	}
+
+	/**
+	 * Answer one file of a manifest. If accepted, the sender will start from
+	 * the given offset.
+	 */
+	private static void putFileTransferReply(ByteBuffer bb, long id, boolean accept, long offset) {
+		bb.putLong(id);
+		bb.put(accept ? (byte) 0 : (byte) 1);
+		bb.putLong(offset);
+	}
+
+	/**
+	 * Packet notify the sender that the whole file was received.
+	 */
+	private static ByteBuffer packetTransferComplete(long id) {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Long.BYTES);
+		bb.put((byte) 17);
+		bb.putLong(id);
+		return bb;
+	}
+
+	/**
+	 * Packet authenticate an extra connection opened to send a file.
+	 */
+	private ByteBuffer packetStreamAuthentication(long id) {
+		ByteBuffer bbNickname = Client.CS_NICKNAME.encode(nickname);
+		ByteBuffer bb = ByteBuffer.allocate(
+				Byte.BYTES + Integer.BYTES + bbNickname.remaining() + Long.BYTES);
+		bb.put((byte) 22);
+		bb.putInt(bbNickname.remaining());
+		bb.put(bbNickname);
+		bb.putLong(id);
+		return bb;
+	}
+
+	/**
+	 * Packet ask again for a chunk whose checksum was wrong.
+	 */
+	private static ByteBuffer packetChunkRequest(long id, long offset) {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Long.BYTES);
+		bb.put((byte) 21);
+		bb.putLong(id);
+		bb.putLong(offset);
+		return bb;
+	}
+}
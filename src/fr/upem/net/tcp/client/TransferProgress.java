@@ -0,0 +1,140 @@
+package fr.upem.net.tcp.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a file transfer since it was started or resumed. The bytes are
+ * counted by the threads moving the chunks, and the throughput is sampled
+ * periodically by a single reporting thread.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class TransferProgress {
+	/** Weight of the last sample in the smoothed throughput. */
+	private static final double SMOOTHING = 0.3;
+	private final long filesize;
+	/** Bytes already transferred before this session. */
+	private final long initial;
+	private final long start = System.nanoTime();
+	private final LongAdder done = new LongAdder();
+	/* only used by the reporting thread */
+	private long lastDone;
+	private long lastTime = start;
+	private long lastProgress = start;
+	private boolean stalledReported;
+	private double rate = -1;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param filesize
+	 *            size of the file
+	 * @param initial
+	 *            bytes already transferred when the transfer is resumed
+	 */
+	TransferProgress(long filesize, long initial) {
+		this.filesize = filesize;
+		this.initial = initial;
+	}
+
+	/**
+	 * Count bytes of the file which have been transferred.
+	 *
+	 * @param bytes
+	 *            number of bytes of the file, before compression
+	 */
+	void advance(long bytes) {
+		done.add(bytes);
+	}
+
+	/**
+	 * Bytes of the file transferred, including the ones of previous sessions.
+	 *
+	 * @return number of bytes
+	 */
+	long transferred() {
+		return Math.min(filesize, initial + done.sum());
+	}
+
+	/**
+	 * Average throughput since the transfer was started or resumed.
+	 *
+	 * @return bytes per second
+	 */
+	double averageRate() {
+		long elapsed = System.nanoTime() - start;
+		return elapsed <= 0 ? 0 : done.sum() * 1e9 / elapsed;
+	}
+
+	/**
+	 * Time since the transfer was started or resumed.
+	 *
+	 * @return nanoseconds
+	 */
+	long elapsed() {
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Sample the throughput. Only called by the reporting thread.
+	 *
+	 * @param stallTimeout
+	 *            nanoseconds without progress after which the transfer is
+	 *            reported as stalled
+	 * @return a line describing the progress, or {@code null} if there is
+	 *         nothing new to report
+	 */
+	String sample(long stallTimeout) {
+		long now = System.nanoTime();
+		long current = done.sum();
+		long delta = current - lastDone;
+		double instant = delta * 1e9 / Math.max(1, now - lastTime);
+		lastDone = current;
+		lastTime = now;
+		if (delta == 0) {
+			if (!stalledReported && now - lastProgress >= stallTimeout) {
+				stalledReported = true;
+				return "stalled for " + (now - lastProgress) / 1_000_000_000 + " s";
+			}
+			return null;
+		}
+		lastProgress = now;
+		stalledReported = false;
+		rate = rate < 0 ? instant : SMOOTHING * instant + (1 - SMOOTHING) * rate;
+		long transferred = transferred();
+		String eta = rate <= 0 ? "?"
+				: formatDuration((long) ((filesize - transferred) / rate * 1e9));
+		return (filesize == 0 ? 100 : transferred * 100 / filesize) + "% "
+				+ formatRate(rate) + " ETA " + eta;
+	}
+
+	/**
+	 * Format a throughput in a human readable way.
+	 *
+	 * @param rate
+	 *            bytes per second
+	 * @return the formatted throughput
+	 */
+	static String formatRate(double rate) {
+		if (rate >= 1024 * 1024) {
+			return String.format("%.1f MB/s", rate / (1024 * 1024));
+		}
+		if (rate >= 1024) {
+			return String.format("%.1f KB/s", rate / 1024);
+		}
+		return String.format("%.0f B/s", rate);
+	}
+
+	/**
+	 * Format a duration as hours, minutes and seconds.
+	 *
+	 * @param nanos
+	 *            duration in nanoseconds
+	 * @return the formatted duration
+	 */
+	static String formatDuration(long nanos) {
+		long seconds = nanos / 1_000_000_000;
+		return String.format("%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+}
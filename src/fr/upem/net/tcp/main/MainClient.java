@@ -2,16 +2,34 @@ package fr.upem.net.tcp.main;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 
 import fr.upem.net.tcp.client.Client;
+import fr.upem.net.tcp.client.ConsoleUI;
 
 public class MainClient {
+	/** Prefix of a host given as the path of a Unix domain socket. */
+	private static final String UNIX_PREFIX = "unix:";
+
 	public static void main(String[] args) throws IOException {
 
-		if (args.length != 4) {
+		if (args.length < 4) {
 			Client.usage();
 			return;
 		}
+		boolean headless = false;
+		boolean watch = false;
+		for (int i = 4; i < args.length; i++) {
+			if (args[i].equals("--headless")) {
+				headless = true;
+			} else if (args[i].equals("--watch")) {
+				watch = true;
+			} else {
+				Client.usage();
+				return;
+			}
+		}
 		if (args[2].length() > Client.MAX_NICKLEN) {
 			System.out.println("Nickname must be " + Client.MAX_NICKLEN + " or less.");
 			return;
@@ -19,14 +37,24 @@ public class MainClient {
 
 		Client client;
 		try {
-			client = Client.create(new InetSocketAddress(args[0], Integer.parseInt(args[1])),
-					args[2], Integer.parseInt(args[3]));
+			SocketAddress host;
+			if (args[0].startsWith(UNIX_PREFIX)) {
+				host = UnixDomainSocketAddress.of(args[0].substring(UNIX_PREFIX.length()));
+			} else {
+				host = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+			}
+			if (headless) {
+				client = Client.create(host, args[2], Integer.parseInt(args[3]), ConsoleUI::new);
+			} else {
+				client = Client.create(host, args[2], Integer.parseInt(args[3]));
+			}
 		} catch (NumberFormatException nfe) {
 			System.err.println("Port: "+nfe);
 			Client.usage();
 			return;
 		}
 
+		client.setPresenceOnInterest(watch);
 		if (!client.logMeIn()) {
 			return;
 		}
@@ -4,24 +4,25 @@ import java.io.IOException;
 import java.util.Scanner;
 
 import fr.upem.net.tcp.nonblocking.Server;
+import fr.upem.net.tcp.nonblocking.ServerConfig;
 
 public class MainServer {
 	public static void main(String[] args) throws NumberFormatException {
-		if (args.length != 1) {
+		ServerConfig config;
+		try {
+			config = ServerConfig.parse(args);
+		} catch (IllegalArgumentException iae) {
 			Server.usage();
 			return;
 		}
-		Thread threadServer = new Thread(() -> {
-			try {
-				Server server = new Server(Integer.parseInt(args[0]));
-				server.launch();
-			} catch (NumberFormatException nfe) {
-				Server.usage();
-			} catch (IOException ioe) {
-				System.err.println(ioe);
-			}
+		Server server;
+		try {
+			server = new Server(config);
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println(e);
 			return;
-		});
+		}
+		Thread threadServer = new Thread(server::launch);
 		threadServer.start();
 
 		Scanner scanner = new Scanner(System.in);
@@ -30,6 +31,22 @@ public class MainServer {
 			if(command.equals("quit")){
 				break;
 			}
+			if (command.equals("latency")) {
+				System.out.print(server.getTracer().report());
+			}
+			if (command.equals("loop")) {
+				System.out.print(server.getProfiler().summary());
+			}
+			if (command.equals("limits")) {
+				System.out.print(server.getLimits());
+			}
+			if (command.equals("reload")) {
+				try {
+					System.out.println("reloaded: " + server.reloadLimits());
+				} catch (IOException | IllegalArgumentException e) {
+					System.out.println("limits kept: " + e);
+				}
+			}
 		}
 		threadServer.interrupt();
 		scanner.close();
@@ -0,0 +1,103 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+/**
+ * Caps the connections of each address, checked as soon as they are accepted
+ * so that a refused connection costs no {@link Context}: the number of open
+ * connections, and the rate of new ones with a token bucket. Only used by the
+ * thread of the selector.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class AdmissionControl {
+	private final int maxPerIp;
+	/** Tokens added per millisecond. */
+	private final double rate;
+	private final int burst;
+	private final HashMap<InetAddress, Entry> entries = new HashMap<>();
+
+	/**
+	 * Connections of an address.
+	 */
+	private static final class Entry {
+		private int connections;
+		private double tokens;
+		private long lastRefill;
+
+		private Entry(double tokens, long lastRefill) {
+			this.tokens = tokens;
+			this.lastRefill = lastRefill;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param config
+	 *            {@link ServerConfig} giving the caps
+	 */
+	AdmissionControl(ServerConfig config) {
+		maxPerIp = config.getMaxPerIp();
+		rate = config.getLoginRate() / 1000.0;
+		burst = config.getLoginBurst();
+	}
+
+	/**
+	 * Count a new connection if its address is under the caps.
+	 *
+	 * @param address
+	 *            of the client
+	 * @param time
+	 *            current time
+	 * @return {@code true} if the connection is admitted, and must be
+	 *         {@link #release(InetAddress) released} once closed,
+	 *         {@code false} if it must be closed
+	 */
+	boolean admit(InetAddress address, long time) {
+		Entry entry = entries.computeIfAbsent(address, a -> new Entry(burst, time));
+		refill(entry, time);
+		if (entry.connections >= maxPerIp || entry.tokens < 1) {
+			return false;
+		}
+		entry.tokens--;
+		entry.connections++;
+		return true;
+	}
+
+	/**
+	 * Count a connection admitted by {@link #admit(InetAddress, long)} as
+	 * closed.
+	 *
+	 * @param address
+	 *            of the client
+	 */
+	void release(InetAddress address) {
+		Entry entry = entries.get(address);
+		if (entry != null && entry.connections > 0) {
+			entry.connections--;
+		}
+	}
+
+	/**
+	 * Forget the addresses without connections whose bucket is full again.
+	 * They are kept until then so that closing and opening connections does
+	 * not reset the rate.
+	 *
+	 * @param time
+	 *            current time
+	 */
+	void purge(long time) {
+		entries.values().removeIf(entry -> {
+			refill(entry, time);
+			return entry.connections == 0 && entry.tokens >= burst;
+		});
+	}
+
+	private void refill(Entry entry, long time) {
+		entry.tokens = Math.min(burst, entry.tokens + (time - entry.lastRefill) * rate);
+		entry.lastRefill = time;
+	}
+}
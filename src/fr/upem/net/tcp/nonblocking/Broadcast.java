@@ -0,0 +1,174 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Public messages of a client, received in a packet 4 or 24, to send to all
+ * the connected clients. Each packet is built for the first recipient which
+ * needs it and shared by the following ones, so that a server without
+ * clients of the version 2 never builds their packet, and one without clients
+ * which accept compression never compresses. Only used by the thread of the
+ * selector.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class Broadcast {
+	private final Server server;
+	private final Nickname sender;
+	/** Number of messages, {@code 0} for a single message not in a batch. */
+	private final int count;
+	/** Messages in read mode, each one prefixed by its size in a batch. */
+	private final ByteBuffer bbmsgs;
+	private ByteBuffer packet;
+	private ByteBuffer packetV2;
+	private ByteBuffer packetCompressed;
+	private boolean compressed;
+
+	private Broadcast(Server server, Nickname sender, int count, ByteBuffer bbmsgs) {
+		this.server = server;
+		this.sender = sender;
+		this.count = count;
+		this.bbmsgs = bbmsgs;
+	}
+
+	/**
+	 * Create a broadcast of a single message.
+	 *
+	 * @param server
+	 *            which compresses the messages
+	 * @param sender
+	 *            interned nickname of the sender
+	 * @param bbmsg
+	 *            {@link ByteBuffer} in read mode containing the message
+	 * @return an instance of {@code Broadcast}
+	 */
+	static Broadcast ofMessage(Server server, Nickname sender, ByteBuffer bbmsg) {
+		return new Broadcast(server, sender, 0, bbmsg);
+	}
+
+	/**
+	 * Create a broadcast of a batch of messages.
+	 *
+	 * @param server
+	 *            which compresses the messages
+	 * @param sender
+	 *            interned nickname of the sender
+	 * @param count
+	 *            number of messages
+	 * @param bbmsgs
+	 *            {@link ByteBuffer} in read mode containing the messages, each
+	 *            one prefixed by its size
+	 * @return an instance of {@code Broadcast}
+	 */
+	static Broadcast ofBatch(Server server, Nickname sender, int count, ByteBuffer bbmsgs) {
+		return new Broadcast(server, sender, count, bbmsgs);
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return interned nickname of the sender
+	 */
+	Nickname sender() {
+		return sender;
+	}
+
+	/**
+	 * Packet of the protocol version 1, 5 for a single message or 25 for a
+	 * batch.
+	 *
+	 * <pre>
+	 * +--------+---------------+----------+--------------+---------+
+	 * | opcode | nickname size | nickname | size / count | message |
+	 * +--------+---------------+----------+--------------+---------+
+	 * |  5/25  |      int      |  bytes   |     int      |  bytes  |
+	 * +--------+---------------+----------+--------------+---------+
+	 * </pre>
+	 *
+	 * @return {@link ByteBuffer} in write mode, shared by the recipients
+	 */
+	ByteBuffer packet() {
+		if (null == packet) {
+			packet = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + sender.size()
+					+ Integer.BYTES + bbmsgs.remaining());
+			packet.put(0 == count ? (byte) 5 : (byte) 25);
+			sender.putIn(packet);
+			packet.putInt(0 == count ? bbmsgs.remaining() : count);
+			packet.put(bbmsgs.duplicate());
+		}
+		return packet;
+	}
+
+	/**
+	 * Packet of the protocol version 2, 29 for a single message or 30 for a
+	 * batch.
+	 *
+	 * <pre>
+	 * +--------+-----------+--------+---------+
+	 * | opcode | sender ID |  size  | message |
+	 * +--------+-----------+--------+---------+
+	 * |   29   |  varint   | varint |  bytes  |
+	 * +--------+-----------+--------+---------+
+	 *
+	 * +--------+-----------+--------+--------------------------+
+	 * | opcode | sender ID | count  | count * (size | message) |
+	 * +--------+-----------+--------+--------------------------+
+	 * |   30   |  varint   | varint |     varint |  bytes      |
+	 * +--------+-----------+--------+--------------------------+
+	 * </pre>
+	 *
+	 * @return {@link ByteBuffer} in write mode, shared by the recipients
+	 */
+	ByteBuffer packetV2() {
+		if (null != packetV2) {
+			return packetV2;
+		}
+		ByteBuffer bb = bbmsgs.duplicate();
+		if (0 == count) {
+			packetV2 = ByteBuffer.allocate(Byte.BYTES + Varints.size(sender.getId())
+					+ Varints.size(bb.remaining()) + bb.remaining());
+			packetV2.put((byte) 29);
+			Varints.put(packetV2, sender.getId());
+			Varints.put(packetV2, bb.remaining());
+			packetV2.put(bb);
+			return packetV2;
+		}
+		// varint sizes are never longer than the int ones
+		packetV2 = ByteBuffer.allocate(Byte.BYTES + Varints.size(sender.getId())
+				+ Varints.size(count) + bb.remaining());
+		packetV2.put((byte) 30);
+		Varints.put(packetV2, sender.getId());
+		Varints.put(packetV2, count);
+		while (bb.hasRemaining()) {
+			int size = bb.getInt();
+			Varints.put(packetV2, size);
+			int limit = bb.limit();
+			bb.limit(bb.position() + size);
+			packetV2.put(bb);
+			bb.limit(limit);
+		}
+		return packetV2;
+	}
+
+	/**
+	 * Packet 31 of the protocol version 2, compressed once by the
+	 * {@link Server}.
+	 *
+	 * @return {@link ByteBuffer} in write mode, shared by the recipients, or
+	 *         {@code null} if the messages are too small or do not compress
+	 *         well
+	 */
+	ByteBuffer packetCompressed() {
+		if (!compressed) {
+			compressed = true;
+			ByteBuffer bb = packetV2().duplicate();
+			bb.flip();
+			// skip opcode, sender ID and count, which is not in packet 29
+			bb.position(Byte.BYTES + Varints.size(sender.getId())
+					+ (0 == count ? 0 : Varints.size(count)));
+			packetCompressed = server.compressMessages(sender, Math.max(1, count), bb);
+		}
+		return packetCompressed;
+	}
+}
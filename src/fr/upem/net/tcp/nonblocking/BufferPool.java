@@ -0,0 +1,105 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Buffers lent to the {@link Context}s only while they hold bytes, so that a
+ * connected but idle client holds none: its {@link CommandInput} while a
+ * command is partly received, its output buffer while bytes are pending. A
+ * connection otherwise costs both buffers and the buffers of every reader,
+ * about 18 KiB with the default limits. The buffers can be allocated
+ * off-heap, which also saves the copy of the socket I/O through a temporary
+ * direct buffer. The ones allocated with limits since reloaded are neither
+ * lent again nor kept. Only used by the thread of the selector.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class BufferPool {
+	/** Maximum number of buffers of each kind kept for reuse. */
+	private static final int MAX_POOLED = 1024;
+	private final boolean direct;
+	private final ArrayDeque<CommandInput> inputs = new ArrayDeque<>();
+	private final ArrayDeque<ByteBuffer> outputs = new ArrayDeque<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param direct
+	 *            {@code true} to allocate the buffers off-heap
+	 */
+	BufferPool(boolean direct) {
+		this.direct = direct;
+	}
+
+	/**
+	 * Lend a {@link CommandInput}, empty and between commands.
+	 *
+	 * @param context
+	 *            which borrows it
+	 * @param limits
+	 *            current limits
+	 * @return an instance of {@code CommandInput}
+	 */
+	CommandInput borrowInput(Context context, Limits limits) {
+		CommandInput input = inputs.poll();
+		while (null != input && input.limits != limits) { // limits since reloaded
+			input = inputs.poll();
+		}
+		if (null == input) {
+			input = new CommandInput(limits, direct);
+		}
+		input.lendTo(context);
+		return input;
+	}
+
+	/**
+	 * Take back a {@link CommandInput}, which must be empty and between
+	 * commands.
+	 *
+	 * @param input
+	 *            lent by this pool
+	 * @param limits
+	 *            current limits
+	 */
+	void releaseInput(CommandInput input, Limits limits) {
+		input.lendTo(null);
+		if (input.limits == limits && inputs.size() < MAX_POOLED) {
+			inputs.add(input);
+		}
+	}
+
+	/**
+	 * Lend an output buffer.
+	 *
+	 * @param limits
+	 *            current limits
+	 * @return {@link ByteBuffer} empty, in write mode
+	 */
+	ByteBuffer borrowOutput(Limits limits) {
+		int bufferSize = limits.getBufferSize();
+		ByteBuffer bb;
+		while (null != (bb = outputs.poll())) {
+			if (bb.capacity() == bufferSize) {
+				return bb;
+			}
+		}
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Take back an output buffer, whose bytes are dropped.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} lent by this pool
+	 * @param limits
+	 *            current limits
+	 */
+	void releaseOutput(ByteBuffer bb, Limits limits) {
+		bb.clear();
+		if (bb.capacity() == limits.getBufferSize() && outputs.size() < MAX_POOLED) {
+			outputs.add(bb);
+		}
+	}
+}
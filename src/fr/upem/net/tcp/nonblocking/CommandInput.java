@@ -0,0 +1,54 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+
+import fr.upem.net.tcp.reader.CommandReader;
+
+/**
+ * Input buffer with the {@link CommandReader} which reads the commands from
+ * it, and its readers with their own buffers. Lent by the {@link BufferPool}
+ * to a {@link Context} while a command is partly received, and the commands
+ * are run on that {@code Context}.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class CommandInput {
+	/** Limits of the buffer and of the readers. */
+	final Limits limits;
+	final ByteBuffer bb;
+	final CommandReader reader;
+	private Context context;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param limits
+	 *            size of the buffer and maximum sizes of the readers
+	 * @param direct
+	 *            {@code true} to allocate the buffer off-heap
+	 */
+	CommandInput(Limits limits, boolean direct) {
+		this.limits = limits;
+		int bufferSize = limits.getBufferSize();
+		bb = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		HashMap<Byte, Runnable> commands = new HashMap<>();
+		for (byte opcode : Context.opcodes()) {
+			commands.put(opcode, () -> context.runCommand(opcode));
+		}
+		reader = new CommandReader(bb, Collections.unmodifiableMap(commands),
+				limits.getMaxNickSize(), limits.getMaxMsgSize());
+	}
+
+	/**
+	 * Setter.
+	 *
+	 * @param context
+	 *            which borrows this input
+	 */
+	void lendTo(Context context) {
+		this.context = context;
+	}
+}
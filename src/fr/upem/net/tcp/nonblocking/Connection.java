@@ -0,0 +1,83 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Transport of a {@link Context}: a {@link SocketConnection} registered on
+ * the selector of the server, or a {@link MemoryConnection} driven by a
+ * {@link MemoryHarness}. Interest operations are those of
+ * {@link SelectionKey}.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+interface Connection {
+
+	/**
+	 * Read as many bytes as available and as fit in the buffer.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} in write mode
+	 * @return number of bytes read, or -1 at the end of stream
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	int read(ByteBuffer bb) throws IOException;
+
+	/**
+	 * Write as many bytes as the transport takes.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} in read mode
+	 * @return number of bytes written
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	int write(ByteBuffer bb) throws IOException;
+
+	/**
+	 * Whether the connection is still open, like a valid
+	 * {@link SelectionKey}.
+	 *
+	 * @return {@code true} if open, {@code false} once closed
+	 */
+	boolean isOpen();
+
+	/**
+	 * Getter.
+	 *
+	 * @return interest operations
+	 */
+	int interestOps();
+
+	/**
+	 * Setter.
+	 *
+	 * @param ops
+	 *            interest operations
+	 */
+	void interestOps(int ops);
+
+	/**
+	 * Hand the connection over to the {@link Context} of a resumed session,
+	 * which is called back from now on.
+	 *
+	 * @param context
+	 *            of the session
+	 */
+	void attach(Context context);
+
+	/**
+	 * Close the connection without throwing any exception.
+	 */
+	void close();
+
+	/**
+	 * Return {@code String} representation of the remote end, for logs.
+	 *
+	 * @return address of the client
+	 */
+	String remoteAddressToString();
+}
@@ -5,75 +5,126 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import fr.upem.net.tcp.reader.CommandReader;
+import fr.upem.net.tcp.reader.Reader;
 
 /**
- * Identifies a client. Read/writes from/to the client's {@code SocketChannel}.
+ * Identifies a client. Read/writes from/to the client's {@link Connection}.
+ * The input and output buffers are borrowed from the {@link BufferPool} of
+ * the server only while they hold bytes, so that an idle client costs little
+ * more than this object and its queue.
  * 
  * @author Cheneau and Lee
  *
  */
 public class Context {
 	private static final Logger LOGGER = Logger.getLogger("ServerLogger");
-	private static final int BUFSIZ = 4096;
 	private final Server server;
-	private final SocketChannel sc;
-	private SelectionKey key;
-	private final ByteBuffer bbin;
-	private final ByteBuffer bbout;
+	/** Replaced by the one of the client when it resumes its session. **/
+	private Connection connection;
+	/**
+	 * Address of the client, counted by the server until closed, or
+	 * {@code null} through the Unix domain socket.
+	 **/
+	private InetAddress address;
+	/** Method to call for each opcode, shared by all the contexts. **/
+	private static final Map<Byte, Consumer<Context>> COMMANDS = initCommands();
+	/** Borrowed while a command is partly received, {@code null} otherwise. **/
+	private CommandInput input;
+	/** Buffer of {@code input}, {@code null} without it. **/
+	private ByteBuffer bbin;
+	/** Borrowed while bytes are pending, {@code null} otherwise. **/
+	private ByteBuffer bbout;
 	/** {@code boolean}: connection with server is closed or not. **/
 	private boolean isClosed;
 	/** {@link Queue} containing messages not yet sent. **/
 	private final Queue<ByteBuffer> queue;
-	/** {@link CommandReader} process ridden data from client. **/
-	private CommandReader commandReader;
 	/**
-	 * {@link HashMap} that associate an opcode ({@code byte}) with the right
-	 * method to call.
+	 * Message larger than the room in the output buffer, partly moved to it,
+	 * in read mode.
+	 **/
+	private ByteBuffer sending;
+	/**
+	 * {@link CommandReader} of {@code input}, process ridden data from
+	 * client.
 	 **/
-	private final HashMap<Byte, Runnable> commands = new HashMap<>();
-	private String nickname;
-	/** {@link ByteBuffer} with client nickname. **/
-	private ByteBuffer bbNickname;
+	private CommandReader commandReader;
+	/** Interned nickname of the client once registered. **/
+	private Nickname nickname;
 	/** Private port where client listen for private communication. **/
 	private int privatePort;
 	/** {@code boolean}: is registered to server or not. **/
 	private boolean isRegistered = false;
 	private int inactivityCounter;
+	/** Version of the protocol used with the client. **/
+	private int version = 1;
+	/** {@code boolean}: client accepts compressed public messages. **/
+	private boolean compression;
+	/** {@code boolean}: client only wants the presence of the watched. **/
+	private boolean presenceOnInterest;
+	/** Nicknames whose presence the client watches, {@code null} if none. **/
+	private HashSet<Nickname> watched;
+	/**
+	 * Nickname the client knows for each ID, only if it only wants the
+	 * presence of the watched, {@code null} until it knows one.
+	 **/
+	private HashMap<Integer, Nickname> named;
+	/** {@code boolean}: waiting for the other half of a relayed channel. **/
+	private boolean relayPending;
+	/** {@code boolean}: relayed, the key is attached to the relay. **/
+	private boolean relayed;
+	/** {@code boolean}: waiting to be flushed by the server. **/
+	private boolean dirty;
+	/** {@code boolean}: closed and counted as such by the server. **/
+	private boolean released;
+	/** Reception of the frame being read if traced, 0 otherwise. **/
+	private long frameReceivedAt;
+	/** Messages of traced frames, {@code null} until the first one. **/
+	private DeliveryTrace deliveries;
+	/** Token to resume the session, 0 if the client did not ask for it. **/
+	private long resumeToken;
+	/** Messages kept to resume the session, {@code null} if not resumable. **/
+	private ResumeLog resumeLog;
+	/**
+	 * When the connection was lost, while the session waits to be resumed,
+	 * 0 otherwise.
+	 **/
+	private long detachedAt;
+	/** {@code boolean}: the connection was handed over to a resumed session. **/
+	private boolean resumed;
 
 	/* Core */
 
 	/**
 	 * Constructor.
 	 * 
-	 * @param bbin
-	 *            {@link ByteBuffer} for input
-	 * @param bbout
-	 *            {@link ByteBuffer} for output
 	 * @param queue
 	 *            {@link Queue} for messages to send
 	 * @param server
 	 *            {@link Server} where {@code Context} will be attached
-	 * @param sc
-	 *            {@link SocketChannel} where will communicate with client.
+	 * @param connection
+	 *            {@link Connection} where will communicate with client.
+	 * @param address
+	 *            {@link InetAddress} of the client
 	 */
-	private Context(ByteBuffer bbin, ByteBuffer bbout, Queue<ByteBuffer> queue, Server server,
-			SocketChannel sc) {
-		this.bbin = bbin;
-		this.bbout = bbout;
+	private Context(Queue<ByteBuffer> queue, Server server, Connection connection,
+			InetAddress address) {
 		this.queue = queue;
-		this.sc = sc;
+		this.connection = connection;
+		this.address = address;
 		this.server = server;
-		initCommands();
-		commandReader = new CommandReader(bbin, Collections.unmodifiableMap(commands));
 	}
 
 	/**
@@ -81,57 +132,144 @@ public class Context {
 	 * 
 	 * @param server
 	 *            where context is set
-	 * @param sc
-	 *            {@link SocketChannel} associated to context
+	 * @param connection
+	 *            {@link Connection} associated to context
+	 * @param address
+	 *            {@link InetAddress} of the client, admitted by the server
 	 * @return an instance of {@code Context}
 	 */
-	public static Context create(Server server, SocketChannel sc) {
-		ByteBuffer bbin = ByteBuffer.allocate(BUFSIZ);
-		ByteBuffer bbout = ByteBuffer.allocate(BUFSIZ);
+	static Context create(Server server, Connection connection, InetAddress address) {
 		Queue<ByteBuffer> queue = new LinkedList<>();
-		return new Context(bbin, bbout, queue, server, sc);
+		return new Context(queue, server, connection, address);
 	}
 
 	/**
-	 * Setter for {@link SelectionKey}.
+	 * Getter for client's nickname.
 	 * 
-	 * @param key
-	 *            {@link SelectionKey} to set.
+	 * @return {@link Nickname} of client.
 	 */
-	public void setSelectionKey(SelectionKey key) {
-		this.key = key;
+	public Nickname getNickname() {
+		return nickname;
 	}
 
 	/**
-	 * Getter for {@link ByteBuffer} containing client's nickname.
+	 * Getter for the version of the protocol used with the client.
 	 * 
-	 * @return {@link ByteBuffer} of client's nickname.
+	 * @return 1 or 2
 	 */
-	public ByteBuffer getBbNickname() {
-		return bbNickname.asReadOnlyBuffer();
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Whether the client accepts compressed public messages.
+	 * 
+	 * @return {@code true} if it does, {@code false} otherwise
+	 */
+	public boolean acceptsCompression() {
+		return compression;
+	}
+
+	/**
+	 * Whether the client only wants the presence of the nicknames it watches.
+	 * 
+	 * @return {@code true} if it does, {@code false} if it wants everyone's
+	 */
+	public boolean hasPresenceOnInterest() {
+		return presenceOnInterest;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return token to resume the session, 0 if not resumable
+	 */
+	long getResumeToken() {
+		return resumeToken;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return nicknames whose presence the client watches
+	 */
+	Set<Nickname> getWatched() {
+		return null == watched ? Collections.emptySet() : watched;
 	}
 
 	/**
 	 * Associate to an opcode the right method to call.
 	 */
-	private void initCommands() {
-		commands.put((byte) 0, () -> registerNickname());
-		commands.put((byte) 4, () -> receivedMessage());
-		commands.put((byte) 6, () -> privateCommunicationRequest());
-		commands.put((byte) 8, () -> privateCommunicationAnswer());
-		commands.put((byte) 18, () -> disconnect());
-		commands.put((byte) 20, () -> keepAlive());
+	private static Map<Byte, Consumer<Context>> initCommands() {
+		HashMap<Byte, Consumer<Context>> commands = new HashMap<>();
+		commands.put((byte) 0, Context::registerNickname);
+		commands.put((byte) 4, Context::receivedMessage);
+		commands.put((byte) 6, Context::privateCommunicationRequest);
+		commands.put((byte) 8, Context::privateCommunicationAnswer);
+		commands.put((byte) 18, Context::disconnect);
+		commands.put((byte) 20, Context::keepAlive);
+		commands.put((byte) 24, Context::receivedMessages);
+		commands.put((byte) 32, Context::openRelay);
+		commands.put((byte) 34, Context::joinRelay);
+		commands.put((byte) 36, Context::receivedDirectMessage);
+		commands.put((byte) 40, Context::watch);
+		commands.put((byte) 41, Context::unwatch);
+		commands.put((byte) 43, Context::resume);
+		return Collections.unmodifiableMap(commands);
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return opcodes of the commands a client can send
+	 */
+	static Set<Byte> opcodes() {
+		return COMMANDS.keySet();
+	}
+
+	/**
+	 * Run the method of an opcode, traced when the frame is sampled by the
+	 * {@link LatencyTracer}.
+	 * 
+	 * @param opcode
+	 *            of the command read
+	 */
+	void runCommand(byte opcode) {
+		LoopProfiler profiler = server.getProfiler();
+		profiler.opcode(opcode & 0xFF);
+		try {
+			traceCommand(opcode, COMMANDS.get(opcode));
+		} finally {
+			profiler.opcode(-1);
+		}
+	}
+
+	private void traceCommand(byte opcode, Consumer<Context> command) {
+		if (0 == frameReceivedAt) {
+			command.accept(this);
+			return;
+		}
+		LatencyTracer tracer = server.getTracer();
+		long start = System.nanoTime();
+		tracer.record(opcode, LatencyTracer.Stage.DECODE, start - frameReceivedAt);
+		tracer.begin(opcode, frameReceivedAt, start);
+		try {
+			command.accept(this);
+		} finally {
+			tracer.end();
+			frameReceivedAt = 0;
+		}
+		tracer.record(opcode, LatencyTracer.Stage.DISPATCH, System.nanoTime() - start);
 	}
 
 	public String remoteAddressToString() {
-		return Server.remoteAddressToString(sc);
+		return connection.remoteAddressToString();
 	}
 
 	public void checkForTimeout() {
-		if (inactivityCounter >= Server.MAX_INACTIVITY_COUNTER) {
+		if (inactivityCounter >= server.getLimits().getMaxInactivity()) {
 			LOGGER.warning(remoteAddressToString() + " (" + nickname + ") has been timeout");
-			isClosed = true;
-			unregister();
+			lost();
 		} else {
 			inactivityCounter++;
 		}
@@ -145,24 +283,40 @@ public class Context {
 	 */
 	public void doRead() throws IOException {
 		inactivityCounter = 0;
-		if (-1 == sc.read(bbin) || isClosed) {
-			Server.silentlyClose(sc);
-			unregister();
+		if (null == input) {
+			input = server.borrowInput(this);
+			bbin = input.bb;
+			commandReader = input.reader;
+		}
+		if (-1 == connection.read(bbin) || isClosed) {
+			lost();
 			return;
 		}
-		switch (commandReader.process()) {
-		case ERROR:
-			LOGGER.warning(
-					remoteAddressToString() + " (" + nickname + ") did not respect protocol");
-			Server.silentlyClose(sc);
-			unregister();
+		// process every command already received
+		Reader.Status status;
+		do {
+			if (commandReader.isBetweenCommands() && bbin.position() > 0) {
+				frameReceivedAt = server.getTracer().sample() ? System.nanoTime() : 0;
+			}
+			status = commandReader.process();
+			if (status == Reader.Status.ERROR) {
+				LOGGER.warning(
+						remoteAddressToString() + " (" + nickname + ") did not respect protocol");
+				unregister();
+				return;
+			}
+		} while (status == Reader.Status.DONE && bbin.position() > 0 && !isClosed
+				&& !relayPending && !relayed && !resumed); // the rest is for the other client
+		if (relayed) {
+			return;
+		}
+		releaseBuffers();
+		if (resumed) {
+			return;
+		}
+		if (isClosed && !dirty && !hasPendingOutput()) {
+			unregister(); // nothing left to send
 			return;
-		case DONE:
-			break;
-		case REFILL:
-			break;
-		default:
-			throw new IllegalStateException("this case should never happen");
 		}
 		updateInterestOps();
 	}
@@ -174,22 +328,171 @@ public class Context {
 	 *             if disconnected from client.
 	 */
 	public void doWrite() throws IOException {
-		if (!queue.isEmpty()) {
-			int size = queue.peek().position();
-			if (bbout.remaining() >= size) {
-				ByteBuffer bb = queue.poll();
-				bb.flip();
-				bbout.put(bb);
+		do {
+			fillOutput();
+			bbout.flip();
+			int written = connection.write(bbout);
+			if (-1 == written || isClosed) {
+				unregister();
+				return;
+			}
+			bbout.compact();
+			if (null != deliveries) {
+				deliveries.written(written);
 			}
+		} while (bbout.position() == 0 && hasQueued()); // while the connection takes it all
+		fillOutput(); // room may have been made for the next messages
+		releaseOutput();
+		updateInterestOps();
+	}
+
+	/**
+	 * Move the queued messages to the output buffer. A message which does not
+	 * fit, such as the list of connected clients of a large server, is moved
+	 * in several parts.
+	 */
+	private void fillOutput() {
+		if (null == bbout) {
+			bbout = server.borrowOutput();
 		}
-		bbout.flip();
-		if (-1 == sc.write(bbout) || isClosed) {
-			Server.silentlyClose(sc);
-			unregister();
+		while (bbout.hasRemaining()) {
+			if (null == sending) {
+				sending = queue.poll();
+				if (null == sending) {
+					return;
+				}
+				sending.flip();
+				if (null != deliveries) {
+					deliveries.moving(sending);
+				}
+				if (null != resumeLog) {
+					resumeLog.moving(sending);
+				}
+			}
+			if (sending.remaining() <= bbout.remaining()) {
+				bbout.put(sending);
+				sending = null;
+				if (null != deliveries) {
+					deliveries.moved(bbout.position());
+				}
+			} else {
+				int limit = sending.limit();
+				sending.limit(sending.position() + bbout.remaining());
+				bbout.put(sending);
+				sending.limit(limit);
+			}
+		}
+	}
+
+	/**
+	 * Write what the connection takes right away, without unregistering this
+	 * {@code Context}, which may be done while iterating over the clients.
+	 */
+	private void writeQueued() {
+		try {
+			int written;
+			do {
+				fillOutput();
+				bbout.flip();
+				written = connection.write(bbout);
+				bbout.compact();
+				if (null != deliveries) {
+					deliveries.written(written);
+				}
+			} while (written > 0 && bbout.position() == 0 && hasQueued());
+		} catch (IOException ioe) {
+			isClosed = true; // unregistered when flushed
+		}
+		releaseOutput();
+	}
+
+	/**
+	 * Whether messages are waiting to be moved to the output buffer.
+	 */
+	private boolean hasQueued() {
+		return null != sending || !queue.isEmpty();
+	}
+
+	/**
+	 * Whether bytes are waiting to be written, in the output buffer or not.
+	 */
+	private boolean hasPendingOutput() {
+		return (null != bbout && bbout.position() > 0) || hasQueued();
+	}
+
+	/**
+	 * Output buffer, borrowed if needed to put a packet in it.
+	 */
+	private ByteBuffer output() {
+		if (null == bbout) {
+			bbout = server.borrowOutput();
+		}
+		return bbout;
+	}
+
+	/**
+	 * Give the output buffer back to the server once nothing is pending.
+	 */
+	private void releaseOutput() {
+		if (null != bbout && bbout.position() == 0 && !hasQueued()) {
+			server.releaseOutput(bbout);
+			bbout = null;
+		}
+	}
+
+	/**
+	 * Give the buffers back to the server once nothing is pending in them,
+	 * only once the commands received are processed. The input is not given
+	 * back while it is the one of a relayed channel.
+	 */
+	private void releaseBuffers() {
+		releaseOutput();
+		if (null != input && bbin.position() == 0 && commandReader.isBetweenCommands()
+				&& !relayPending && !relayed) {
+			releaseInput();
+		}
+	}
+
+	private void releaseInput() {
+		server.releaseInput(input);
+		input = null;
+		bbin = null;
+		commandReader = null;
+	}
+
+	/**
+	 * Write what is pending as soon as the server has processed the selected
+	 * keys. Only {@link SelectionKey#OP_WRITE} is registered if the socket
+	 * cannot take everything, so that a broadcast does not cost a selector
+	 * update and an extra select round per recipient.
+	 */
+	void flush() {
+		dirty = false;
+		if (!connection.isOpen()) {
 			return;
 		}
-		bbout.clear();
-		updateInterestOps();
+		if (!hasPendingOutput() && !isClosed) {
+			releaseOutput();
+			updateInterestOps(); // already written by doWrite
+			return;
+		}
+		try {
+			doWrite();
+		} catch (IOException ioe) {
+			LOGGER.warning(remoteAddressToString() + ": " + ioe.toString());
+			lost();
+		}
+	}
+
+	/**
+	 * Ask the server to flush this {@code Context} at the end of the current
+	 * iteration, once.
+	 */
+	private void markDirty() {
+		if (!dirty) {
+			dirty = true;
+			server.markDirty(this);
+		}
 	}
 
 	/**
@@ -197,56 +500,170 @@ public class Context {
 	 * performs.
 	 */
 	private void updateInterestOps() {
-		if (!key.isValid()) {
+		if (!connection.isOpen()) {
 			return;
 		}
 		int newInterestOps = 0;
-		if (bbout.position() > 0 || !queue.isEmpty()) {
+		// a dirty context is flushed before registering OP_WRITE
+		if (!dirty && hasPendingOutput()) {
 			newInterestOps |= SelectionKey.OP_WRITE;
 		}
-		if (!isClosed && bbin.hasRemaining()) {
+		if (!isClosed && !relayPending && (null == bbin || bbin.hasRemaining())) {
 			newInterestOps |= SelectionKey.OP_READ;
 		}
-		key.interestOps(newInterestOps);
+		if (newInterestOps != connection.interestOps()) {
+			connection.interestOps(newInterestOps);
+		}
 	}
 
 	/**
-	 * Register a message to send to client.
+	 * Register a message to send to client. A client whose queue is full is
+	 * only dropped if its connection does not take what is pending.
 	 * 
 	 * @param bbmsg
 	 *            {@link ByteBuffer} containing the message.
 	 */
 	public void registerMessage(ByteBuffer bbmsg) {
-		if (queue.size() > Server.MAX_MSG) {
+		int maxQueue = server.getLimits().getMaxQueue();
+		if (queue.size() > maxQueue && !isClosed && 0 == detachedAt) {
+			writeQueued();
+		}
+		if (queue.size() > maxQueue) {
 			isClosed = true;
 			return;
 		}
 		queue.offer(Objects.requireNonNull(bbmsg));
-		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		LatencyTracer.Frame frame = server.getTracer().current();
+		if (null != frame) {
+			if (null == deliveries) {
+				deliveries = new DeliveryTrace(server.getTracer());
+			}
+			deliveries.queued(frame, bbmsg);
+		}
+		markDirty();
+	}
+
+	/**
+	 * Close the connection after an I/O error.
+	 */
+	void close() {
+		lost();
+	}
+
+	/**
+	 * The connection was lost without the client leaving: the session of a
+	 * resumable client is detached until it is resumed or it expires, any
+	 * other client is unregistered.
+	 */
+	private void lost() {
+		if (null == resumeLog || !isRegistered || isClosed || 0 != detachedAt) {
+			isClosed = true;
+			unregister();
+			return;
+		}
+		detach();
+	}
+
+	/**
+	 * Close the connection but keep the session registered, with its
+	 * nickname, its watches and its queue, which keeps growing. No leave is
+	 * broadcast unless the session expires.
+	 */
+	private void detach() {
+		detachedAt = System.currentTimeMillis();
+		connection.close();
+		if (!released) {
+			released = true;
+			server.connectionClosed(address);
+		}
+		if (null != input && bbin.position() == 0 && commandReader.isBetweenCommands()) {
+			releaseInput();
+		}
+		input = null; // a partly received command is dropped
+		bbin = null;
+		commandReader = null;
+		if (null != bbout) { // sent again from the resume log
+			server.releaseOutput(bbout);
+			bbout = null;
+		}
+		LOGGER.info(nickname + " detached, resumable for " + server.getResumeGrace() + " ms");
+	}
+
+	/**
+	 * Whether the session was detached for longer than the grace period, or
+	 * its queue overflowed meanwhile.
+	 * 
+	 * @param time
+	 *            current time
+	 * @param grace
+	 *            milliseconds a detached session can be resumed
+	 * @return {@code true} if it must be unregistered
+	 */
+	boolean hasExpired(long time, int grace) {
+		return 0 != detachedAt && (isClosed || time - detachedAt > grace);
+	}
+
+	/**
+	 * Unregister a session which was not resumed.
+	 */
+	void expire() {
+		LOGGER.info(nickname + " was not resumed");
+		isClosed = true;
+		unregister();
 	}
 
 	/**
 	 * Unregister {@code Context} to server.
 	 */
 	private void unregister() {
-		Server.silentlyClose(sc);
-		key.cancel();
+		connection.close();
+		if (null != bbout) {
+			server.releaseOutput(bbout);
+			bbout = null;
+		}
+		if (!released) {
+			released = true;
+			server.connectionClosed(address);
+		}
+		if (relayPending) {
+			server.forgetRelay(this);
+		}
 		if (isRegistered) {
 			server.unregisterClient(nickname, this);
 		}
 	}
 
 	/**
-	 * Packet server send to client after a request connection.
+	 * Packet server send to client after a request connection. The version
+	 * and the flags granted are only sent to the clients which requested the
+	 * version 2.
+	 * 
+	 * <pre>
+	 * +--------+--------+-----------+---------+-------+
+	 * | opcode |  code  | connected | version | flags |
+	 * +--------+--------+-----------+---------+-------+
+	 * |   1    |  byte  |    int    |  byte   | byte  |
+	 * +--------+--------+-----------+---------+-------+
+	 * </pre>
 	 * 
 	 * @param accept
 	 *            {@code true} if accept, {@code false} otherwise
+	 * @param requestedVersion
+	 *            of the protocol requested by the client
 	 */
-	private void confirmConnection(boolean accept) {
+	private void confirmConnection(boolean accept, int requestedVersion) {
 		byte confirmationByte = (accept) ? (byte) 0 : 1;
+		ByteBuffer bbout = output();
 		bbout.put((byte) 1);
 		bbout.put((byte) confirmationByte);
 		bbout.putInt(server.getNumberConnected());
+		if (requestedVersion >= 2) { // version 1 clients do not expect it
+			bbout.put((byte) version);
+			bbout.put((byte) ((compression ? Server.FLAG_COMPRESSION : 0)
+					| (presenceOnInterest ? Server.FLAG_PRESENCE : 0)
+					| (null != resumeLog ? Server.FLAG_RESUME : 0)));
+		}
+		markDirty();
 	}
 
 	/* Commands */
@@ -266,17 +683,37 @@ public class Context {
 	 * </ul>
 	 */
 	private void registerNickname() {
-		nickname = (String) commandReader.get();
+		Nickname login = (Nickname) commandReader.get();
 		privatePort = (int) commandReader.get();
-		if (server.registerClient(nickname, this)) {
-			confirmConnection(true);
-			bbNickname = Server.CHARSET_NICKNAME.encode(nickname);
-			bbNickname.compact(); // always end of data
+		int requestedVersion = (int) commandReader.get();
+		int flags = (int) commandReader.get();
+		version = Math.min(requestedVersion, Server.PROTOCOL_VERSION);
+		compression = version >= 2 && (flags & Server.FLAG_COMPRESSION) != 0;
+		presenceOnInterest = version >= 2 && (flags & Server.FLAG_PRESENCE) != 0;
+		boolean resumable = version >= 2 && (flags & Server.FLAG_RESUME) != 0 && !isRegistered;
+		nickname = server.registerClient(login, this);
+		if (null != nickname) {
+			if (resumable) {
+				resumeLog = new ResumeLog(server.getResumeBuffer());
+			}
+			confirmConnection(true, requestedVersion);
 			isRegistered = true;
-			ByteBuffer bbmsg = server.getConnectedNicknames();
-			registerMessage(bbmsg);
+			if (resumable) {
+				resumeLog.skip(output().position()); // the client always has the response
+				resumeToken = server.newResumeToken(this);
+				registerMessage(packetResumeToken());
+			}
+			if (!presenceOnInterest) {
+				ByteBuffer bbmsg = server.getConnectedNicknames(version);
+				registerMessage(bbmsg);
+			}
+			ByteBuffer bbMailbox = server.drainMailbox(nickname);
+			if (null != bbMailbox) {
+				registerMessage(bbMailbox);
+			}
 		} else {
-			confirmConnection(false);
+			nickname = login; // only for logs
+			confirmConnection(false, requestedVersion);
 			isClosed = true;
 		}
 	}
@@ -292,16 +729,33 @@ public class Context {
 	 */
 	private void receivedMessage() {
 		ByteBuffer bbmsg = (ByteBuffer) commandReader.get();
+		if (!isRegistered) {
+			isClosed = true;
+			return;
+		}
 		bbmsg.flip();
-		bbNickname.flip();
-		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + bbNickname.remaining()
-				+ Integer.BYTES + bbmsg.remaining());
-		bb.put((byte) 5);
-		bb.putInt(bbNickname.remaining());
-		bb.put(bbNickname);
-		bb.putInt(bbmsg.remaining());
-		bb.put(bbmsg);
-		server.sendMessage(bb);
+		server.sendMessage(Broadcast.ofMessage(server, nickname, bbmsg));
+	}
+
+	/**
+	 * <p>
+	 * If received opcode 24, a batch of messages was received from client.
+	 * </p>
+	 * 
+	 * <p>
+	 * Transfer the whole batch to server in a single packet so it can be sent
+	 * to all connected clients.
+	 * </p>
+	 */
+	private void receivedMessages() {
+		int count = (int) commandReader.get();
+		ByteBuffer bbmsgs = (ByteBuffer) commandReader.get();
+		if (!isRegistered) {
+			isClosed = true;
+			return;
+		}
+		bbmsgs.flip();
+		server.sendMessage(Broadcast.ofBatch(server, nickname, count, bbmsgs));
 	}
 
 	/**
@@ -311,7 +765,7 @@ public class Context {
 	private void privateCommunicationRequest() {
 		ByteBuffer bbDestNickname = (ByteBuffer) commandReader.get();
 		bbDestNickname.flip();
-		String destNickname = Server.CHARSET_NICKNAME.decode(bbDestNickname).toString();
+		Nickname destNickname = Nickname.of(bbDestNickname);
 		server.askPermissionPrivateConnection(nickname, destNickname);
 	}
 
@@ -325,18 +779,228 @@ public class Context {
 	 */
 	private void privateCommunicationAnswer() {
 		Byte accept = (Byte) commandReader.get();
-		String withNickname = (String) commandReader.get();
+		Nickname withNickname = (Nickname) commandReader.get();
 		if (accept != (byte) 0) { // refuse
 			server.refusePrivateConnection(nickname, withNickname);
 			return;
 		}
 		long sessionId = (long) commandReader.get();
-		InetAddress inet = sc.socket().getInetAddress();
+		// a client of the Unix domain socket is on the host of the server
+		InetAddress inet = address != null ? address : InetAddress.getLoopbackAddress();
 		server.acceptPrivateConnection(nickname, withNickname, inet, privatePort, sessionId);
 	}
 
 	/**
-	 * If received opcode 17, client has left.
+	 * If received opcode 36, a direct message was received from client, to
+	 * route through the server whether its recipient is online or not.
+	 */
+	private void receivedDirectMessage() {
+		Nickname toNickname = (Nickname) commandReader.get();
+		ByteBuffer bbmsg = (ByteBuffer) commandReader.get();
+		if (!isRegistered) {
+			isClosed = true;
+			return;
+		}
+		bbmsg.flip();
+		server.sendDirectMessage(nickname, toNickname, bbmsg, this);
+	}
+
+	/**
+	 * If received opcode 40, the client watches the presence of a nickname,
+	 * up to {@link Server#MAX_WATCHED}.
+	 */
+	private void watch() {
+		ByteBuffer bbNickname = (ByteBuffer) commandReader.get();
+		bbNickname.flip();
+		Nickname toWatch = Nickname.of(bbNickname);
+		if (!isRegistered || !presenceOnInterest) {
+			return;
+		}
+		if (null == watched) {
+			watched = new HashSet<>();
+		}
+		if (watched.size() >= Server.MAX_WATCHED) {
+			LOGGER.warning(nickname + " cannot watch more than " + Server.MAX_WATCHED);
+			return;
+		}
+		if (watched.add(toWatch)) {
+			server.addWatcher(toWatch, this);
+		}
+	}
+
+	/**
+	 * If received opcode 41, the client stops watching the presence of a
+	 * nickname.
+	 */
+	private void unwatch() {
+		ByteBuffer bbNickname = (ByteBuffer) commandReader.get();
+		bbNickname.flip();
+		Nickname toUnwatch = Nickname.of(bbNickname);
+		if (null != watched && watched.remove(toUnwatch)) {
+			server.removeWatcher(toUnwatch, this);
+		}
+	}
+
+	/**
+	 * Token to resume the session, sent after the response to the login.
+	 * 
+	 * <pre>
+	 * +--------+-------+-------+
+	 * | opcode | token | grace |
+	 * +--------+-------+-------+
+	 * |   42   | long  |  int  |
+	 * +--------+-------+-------+
+	 * </pre>
+	 * 
+	 * The grace is the number of milliseconds the session is kept after the
+	 * connection is lost.
+	 */
+	private ByteBuffer packetResumeToken() {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Integer.BYTES);
+		bb.put((byte) 42);
+		bb.putLong(resumeToken);
+		bb.putInt(server.getResumeGrace());
+		return bb;
+	}
+
+	/**
+	 * If received opcode 43, a client resumes its session on this new
+	 * connection, which is handed over to the {@code Context} of the session
+	 * if the token and the nickname match and the bytes the client did not
+	 * receive are still kept. Otherwise the session is unregistered so that
+	 * the client can log in again.
+	 * 
+	 * <pre>
+	 * +--------+--------+
+	 * | opcode | status |
+	 * +--------+--------+
+	 * |   44   |  byte  |
+	 * +--------+--------+
+	 * </pre>
+	 * 
+	 * The status is 0 if resumed, followed by the bytes the client did not
+	 * receive, 1 otherwise. The client must not send anything else before the
+	 * response.
+	 */
+	private void resume() {
+		Nickname login = (Nickname) commandReader.get();
+		long token = (long) commandReader.get();
+		long offset = (long) commandReader.get();
+		Context session = isRegistered ? null : server.findSession(login, token);
+		if (null == session || !session.resumeWith(this, offset)) {
+			LOGGER.warning(remoteAddressToString() + " could not resume " + login);
+			ByteBuffer bbout = output();
+			bbout.put((byte) 44);
+			bbout.put((byte) 1);
+			markDirty();
+			isClosed = true;
+		}
+	}
+
+	/**
+	 * Resume this session on the connection of another {@code Context}, which
+	 * is not used afterwards. The messages from the offset are queued again
+	 * before the ones which were queued meanwhile.
+	 * 
+	 * @param other
+	 *            {@code Context} of the new connection
+	 * @param offset
+	 *            of the first byte the client did not receive
+	 * @return {@code true} if resumed, {@code false} if the session was
+	 *         unregistered
+	 */
+	private boolean resumeWith(Context other, long offset) {
+		if (0 == detachedAt) { // the server did not notice the loss yet
+			detach();
+		}
+		long moved = resumeLog.end() - (null == sending ? 0 : sending.remaining());
+		ArrayDeque<ByteBuffer> replay = isClosed || offset > moved ? null
+				: resumeLog.rewind(offset);
+		if (null == replay) {
+			expire();
+			return false;
+		}
+		connection = other.connection;
+		address = other.address;
+		released = false;
+		other.released = true; // counted until this session is closed
+		other.resumed = true;
+		connection.attach(this);
+		detachedAt = 0;
+		inactivityCounter = 0;
+		sending = null;
+		deliveries = null;
+		ByteBuffer bbout = output();
+		bbout.put((byte) 44);
+		bbout.put((byte) 0);
+		replay.addAll(queue);
+		queue.clear();
+		queue.addAll(replay);
+		markDirty();
+		LOGGER.info(remoteAddressToString() + " resumed " + nickname + " from " + offset + ", "
+				+ queue.size() + " messages pending");
+		return true;
+	}
+
+	/**
+	 * If received opcode 32, a client opened a connection to relay a channel of
+	 * a private connection. Ask the other client to open the other half.
+	 */
+	private void openRelay() {
+		long id = (long) commandReader.get();
+		byte role = (byte) commandReader.get();
+		int channel = (int) commandReader.get();
+		if (isRegistered || !(connection instanceof SocketConnection)
+				|| !server.openRelay(this, id, role, channel)) {
+			LOGGER.warning(remoteAddressToString() + " could not open relayed channel");
+			isClosed = true;
+			return;
+		}
+		relayPending = true;
+	}
+
+	/**
+	 * If received opcode 34, a client opened the other half of a relayed
+	 * channel.
+	 */
+	private void joinRelay() {
+		long id = (long) commandReader.get();
+		byte role = (byte) commandReader.get();
+		int channel = (int) commandReader.get();
+		if (isRegistered || !(connection instanceof SocketConnection)
+				|| !server.joinRelay(this, id, role, channel)) {
+			LOGGER.warning(remoteAddressToString() + " could not join relayed channel");
+			isClosed = true;
+		}
+	}
+
+	/**
+	 * Relay the bytes between this {@code Context}, waiting for the other half
+	 * of its channel, and the {@code Context} of the other half. Both have a
+	 * {@link SocketConnection}. Neither of them is used afterwards.
+	 * 
+	 * @param other
+	 *            {@code Context} of the other half
+	 */
+	void relayWith(Context other) {
+		relayPending = false;
+		relayed = true;
+		other.relayed = true;
+		bbin.flip();
+		other.bbin.flip();
+		released = true; // counted until the relay is closed
+		other.released = true;
+		SocketConnection mine = (SocketConnection) connection;
+		SocketConnection others = (SocketConnection) other.connection;
+		Relay.create(mine.socketChannel(), mine.key(), bbin, others.socketChannel(), others.key(),
+				other.bbin, () -> {
+					server.connectionClosed(address);
+					server.connectionClosed(other.address);
+				});
+	}
+
+	/**
+	 * If received opcode 18, client has left, and its session is not kept.
 	 */
 	private void disconnect() {
 		unregister();
@@ -354,28 +1018,64 @@ public class Context {
 	 * @param nickname
 	 *            of client who joined
 	 */
-	public void clientHasJoined(String nickname) {
-		ByteBuffer bbNickname = Server.CHARSET_NICKNAME.encode(nickname);
-		ByteBuffer bbmsg = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + bbNickname.remaining());
-		bbmsg.put((byte) 2);
-		bbmsg.putInt(bbNickname.remaining());
-		bbmsg.put(bbNickname);
-		registerMessage(bbmsg);
+	public void clientHasJoined(Nickname nickname) {
+		if (version < 2) {
+			registerMessage(packetNickname((byte) 2, nickname));
+			return;
+		}
+		if (presenceOnInterest) {
+			named(nickname);
+		}
+		registerMessage(packetNicknameV2((byte) 27, nickname));
+	}
+
+	/**
+	 * Server notify {@code Context} of the sender of public messages. A
+	 * client which only wants the presence of the watched receives neither
+	 * the list of the connected clients nor every join, so the ID of a sender
+	 * it does not know yet is given in a packet 45 before its messages.
+	 * 
+	 * @param sender
+	 *            interned nickname of the sender
+	 */
+	void clientSends(Nickname sender) {
+		if (presenceOnInterest && !sender.equals(named(sender))) {
+			registerMessage(packetNicknameV2((byte) 45, sender));
+		}
+	}
+
+	/**
+	 * The client learns the ID of a nickname.
+	 * 
+	 * @param nickname
+	 *            interned nickname
+	 * @return the nickname the client knew for that ID, or {@code null}
+	 */
+	private Nickname named(Nickname nickname) {
+		if (null == named) {
+			named = new HashMap<>();
+		}
+		return named.put(nickname.getId(), nickname);
 	}
 
 	/**
 	 * Server notify {@code Context} a client has left.
 	 * 
-	 * @param bbNickname
-	 *            containing nickname of client who left
+	 * @param nickname
+	 *            of client who left
 	 */
-	public void clientHasLeft(ByteBuffer bbNickname) {
-		bbNickname.flip();
-		int size = bbNickname.remaining();
-		ByteBuffer bbmsg = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + size);
-		bbmsg.put((byte) 19);
-		bbmsg.putInt(size);
-		bbmsg.put(bbNickname);
+	public void clientHasLeft(Nickname nickname) {
+		if (version < 2) {
+			registerMessage(packetNickname((byte) 19, nickname));
+			return;
+		}
+		if (null != named) {
+			named.remove(nickname.getId(), nickname);
+		}
+		// opcode 28 | ID varint
+		ByteBuffer bbmsg = ByteBuffer.allocate(Byte.BYTES + Varints.size(nickname.getId()));
+		bbmsg.put((byte) 28);
+		Varints.put(bbmsg, nickname.getId());
 		registerMessage(bbmsg);
 	}
 
@@ -386,16 +1086,127 @@ public class Context {
 	 * @param fromNickname
 	 *            of client who requested the private connection
 	 */
-	public void askPrivateCommunication(String fromNickname) {
-		ByteBuffer bbNickname = Server.CHARSET_NICKNAME.encode(fromNickname);
-		int size = bbNickname.remaining();
-		ByteBuffer bbmsg = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + size);
-		bbmsg.put((byte) 7);
-		bbmsg.putInt(size);
-		bbmsg.put(bbNickname);
+	public void askPrivateCommunication(Nickname fromNickname) {
+		registerMessage(packetNickname((byte) 7, fromNickname));
+	}
+
+	/**
+	 * Server gives {@code Context} a direct message.
+	 * 
+	 * <pre>
+	 * +--------+-------+-------------+--------+------+------+---------+
+	 * | opcode | flags | sender size | sender | time | size | message |
+	 * +--------+-------+-------------+--------+------+------+---------+
+	 * |   37   | byte  |     int     | bytes  | long | int  |  bytes  |
+	 * +--------+-------+-------------+--------+------+------+---------+
+	 * </pre>
+	 * 
+	 * The flags are 1 for a message kept while the client was offline, and
+	 * the time is when the server received it, in milliseconds since the
+	 * epoch.
+	 * 
+	 * @param flags
+	 *            of the message
+	 * @param fromNickname
+	 *            nickname of the sender
+	 * @param time
+	 *            when the message was sent
+	 * @param bbmsg
+	 *            {@link ByteBuffer} of the message, in read mode
+	 */
+	public void directMessage(byte flags, Nickname fromNickname, long time, ByteBuffer bbmsg) {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Byte.BYTES + Integer.BYTES
+				+ fromNickname.size() + Long.BYTES + Integer.BYTES + bbmsg.remaining());
+		bb.put((byte) 37);
+		bb.put(flags);
+		fromNickname.putIn(bb);
+		bb.putLong(time);
+		bb.putInt(bbmsg.remaining());
+		bb.put(bbmsg.duplicate());
+		registerMessage(bb);
+	}
+
+	/**
+	 * Server tells {@code Context} what became of a direct message whose
+	 * recipient is offline.
+	 * 
+	 * <pre>
+	 * +--------+--------+----------------+-----------+
+	 * | opcode | status | recipient size | recipient |
+	 * +--------+--------+----------------+-----------+
+	 * |   38   |  byte  |      int       |   bytes   |
+	 * +--------+--------+----------------+-----------+
+	 * </pre>
+	 * 
+	 * The status is 1 if the message was kept in the mailbox of the
+	 * recipient, 2 if it was lost because the mailbox is full or the
+	 * recipient unknown.
+	 * 
+	 * @param status
+	 *            of the message
+	 * @param toNickname
+	 *            nickname of the recipient
+	 */
+	public void directMessageStatus(byte status, Nickname toNickname) {
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Byte.BYTES + Integer.BYTES
+				+ toNickname.size());
+		bb.put((byte) 38);
+		bb.put(status);
+		toNickname.putIn(bb);
+		registerMessage(bb);
+	}
+
+	/**
+	 * Server ask {@code Context} to open the other half of a relayed channel
+	 * of a private connection.
+	 * 
+	 * <pre>
+	 * +--------+------------+------+---------+
+	 * | opcode | session ID | role | channel |
+	 * +--------+------------+------+---------+
+	 * |   33   |    long    | byte |   int   |
+	 * +--------+------------+------+---------+
+	 * </pre>
+	 * 
+	 * @param id
+	 *            session ID of the private connection
+	 * @param role
+	 *            of the client who opened the channel
+	 * @param channel
+	 *            number of the channel
+	 */
+	public void askRelay(long id, byte role, int channel) {
+		ByteBuffer bbmsg = ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Byte.BYTES + Integer.BYTES);
+		bbmsg.put((byte) 33);
+		bbmsg.putLong(id);
+		bbmsg.put(role);
+		bbmsg.putInt(channel);
 		registerMessage(bbmsg);
 	}
 
+	/**
+	 * Packet made of an opcode and a nickname prefixed by its size.
+	 */
+	private static ByteBuffer packetNickname(byte opcode, Nickname nickname) {
+		ByteBuffer bbmsg = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + nickname.size());
+		bbmsg.put(opcode);
+		nickname.putIn(bbmsg);
+		return bbmsg;
+	}
+
+	/**
+	 * Packet made of an opcode, the ID of a nickname and the nickname prefixed
+	 * by its size, as varints.
+	 */
+	private static ByteBuffer packetNicknameV2(byte opcode, Nickname nickname) {
+		ByteBuffer bbmsg = ByteBuffer.allocate(
+				Byte.BYTES + Varints.size(nickname.getId()) + nickname.compactSize());
+		bbmsg.put(opcode);
+		Varints.put(bbmsg, nickname.getId());
+		nickname.putCompactIn(bbmsg);
+		return bbmsg;
+	}
+
 	/**
 	 * Accept private connection with client A.
 	 * 
@@ -408,11 +1219,10 @@ public class Context {
 	 * @param id
 	 *            that client A will need to provide to authenticate to client B
 	 */
-	public void acceptPrivateCommunication(String fromNickName, InetAddress inet, int port,
+	public void acceptPrivateCommunication(Nickname fromNickName, InetAddress inet, int port,
 			long id) {
-		ByteBuffer bbNickname = Server.CHARSET_NICKNAME.encode(fromNickName);
 		byte[] addr = inet.getAddress();
-		int nicknameSize = bbNickname.remaining();
+		int nicknameSize = fromNickName.size();
 		int addrSize = addr.length;
 		Byte ipVersion = 4;
 		if (inet instanceof Inet6Address) {
@@ -422,8 +1232,7 @@ public class Context {
 				+ Byte.BYTES + addrSize + Integer.BYTES + Long.BYTES);
 		bb.put((byte) 9);
 		bb.put((byte) 0);
-		bb.putInt(nicknameSize);
-		bb.put(bbNickname);
+		fromNickName.putIn(bb);
 		bb.put(ipVersion);
 		bb.put(addr);
 		bb.putInt(port);
@@ -437,14 +1246,12 @@ public class Context {
 	 * @param fromNickName
 	 *            of client A
 	 */
-	public void refusePrivateCommunication(String fromNickName) {
-		ByteBuffer bbNickname = Server.CHARSET_NICKNAME.encode(fromNickName);
-		int nicknameSize = bbNickname.remaining();
+	public void refusePrivateCommunication(Nickname fromNickName) {
+		int nicknameSize = fromNickName.size();
 		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Byte.BYTES + Integer.BYTES + nicknameSize);
 		bb.put((byte) 9);
 		bb.put((byte) 1);
-		bb.putInt(nicknameSize);
-		bb.put(bbNickname);
+		fromNickName.putIn(bb);
 		registerMessage(bb);
 	}
 }
@@ -0,0 +1,102 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import fr.upem.net.tcp.nonblocking.LatencyTracer.Frame;
+import fr.upem.net.tcp.nonblocking.LatencyTracer.Stage;
+
+/**
+ * Messages of traced frames registered for a {@link Context}, followed from
+ * its queue to its output buffer, then until their last byte is written.
+ * Created on the first traced message of the context.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class DeliveryTrace {
+	private final LatencyTracer tracer;
+	/** In the queue, in the order of the queue. */
+	private final ArrayDeque<Delivery> queued = new ArrayDeque<>();
+	/** Partly moved to the output buffer. */
+	private Delivery moving;
+	/** In the output buffer, in the order of the buffer. */
+	private final ArrayDeque<Delivery> writing = new ArrayDeque<>();
+
+	private static final class Delivery {
+		private final Frame frame;
+		private final ByteBuffer message;
+		private long movedAt;
+		/** Bytes to write until the last byte of the message. */
+		private long remaining;
+
+		private Delivery(Frame frame, ByteBuffer message) {
+			this.frame = frame;
+			this.message = message;
+		}
+	}
+
+	DeliveryTrace(LatencyTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * A message of a traced frame was queued.
+	 */
+	void queued(Frame frame, ByteBuffer message) {
+		queued.add(new Delivery(frame, message));
+	}
+
+	/**
+	 * A message is being moved from the queue to the output buffer.
+	 */
+	void moving(ByteBuffer message) {
+		Delivery delivery = queued.peek();
+		if (null == delivery || delivery.message != message) {
+			return;
+		}
+		queued.poll();
+		delivery.movedAt = System.nanoTime();
+		tracer.record(delivery.frame.opcode, Stage.QUEUE,
+				delivery.movedAt - delivery.frame.dispatchedAt);
+		moving = delivery;
+	}
+
+	/**
+	 * The message being moved has its last byte at the given position of the
+	 * output buffer.
+	 */
+	void moved(int position) {
+		if (null == moving) {
+			return;
+		}
+		moving.remaining = position;
+		writing.add(moving);
+		moving = null;
+	}
+
+	/**
+	 * Bytes of the output buffer were written.
+	 */
+	void written(int bytes) {
+		if (writing.isEmpty() || bytes <= 0) {
+			return;
+		}
+		for (Delivery delivery : writing) {
+			delivery.remaining -= bytes;
+		}
+		long now = System.nanoTime();
+		while (!writing.isEmpty() && writing.peek().remaining <= 0) {
+			Delivery delivery = writing.poll();
+			tracer.record(delivery.frame.opcode, Stage.WRITE, now - delivery.movedAt);
+			tracer.record(delivery.frame.opcode, Stage.TOTAL, now - delivery.frame.receivedAt);
+		}
+	}
+
+	/**
+	 * Whether nothing is followed anymore.
+	 */
+	boolean isEmpty() {
+		return queued.isEmpty() && null == moving && writing.isEmpty();
+	}
+}
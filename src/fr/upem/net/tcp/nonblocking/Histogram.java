@@ -0,0 +1,87 @@
+package fr.upem.net.tcp.nonblocking;
+
+/**
+ * Histogram of positive durations with a constant relative precision: values
+ * under 32 have their own bucket, larger ones share a bucket with the values
+ * having the same 6 most significant bits, so that the error is under 1/32.
+ * Recording a value is an array increment. Not thread-safe.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class Histogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private final long[] counts = new long[SUB + (Long.SIZE - 1 - SUB_BITS) * SUB];
+	private long count;
+	private long max;
+
+	/**
+	 * Record a value.
+	 *
+	 * @param value
+	 *            negative values are recorded as 0
+	 */
+	void record(long value) {
+		value = Math.max(0, value);
+		counts[index(value)]++;
+		count++;
+		max = Math.max(max, value);
+	}
+
+	private static int index(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		return SUB + shift * SUB + (int) ((value >>> shift) & (SUB - 1));
+	}
+
+	private static long highestValue(int index) {
+		if (index < SUB) {
+			return index;
+		}
+		int shift = (index - SUB) / SUB;
+		long lowest = (1L << (shift + SUB_BITS)) | ((long) ((index - SUB) % SUB) << shift);
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return number of recorded values
+	 */
+	long count() {
+		return count;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return highest recorded value
+	 */
+	long max() {
+		return max;
+	}
+
+	/**
+	 * Value under which a given percentage of the recorded values are.
+	 *
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return highest value of the bucket of the percentile, or 0 if nothing
+	 *         was recorded
+	 */
+	long percentile(double percentile) {
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max);
+			}
+		}
+		return 0;
+	}
+}
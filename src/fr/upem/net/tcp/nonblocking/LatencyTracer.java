@@ -0,0 +1,160 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.Locale;
+
+/**
+ * Latencies of the frames received by the server, per opcode and per
+ * {@link Stage}. Only one frame out of {@code sampleRate} is traced: its time
+ * of reception is carried while its command runs, so that every message the
+ * command registers for a recipient is followed until its last byte is
+ * written. Frames are only traced by the thread of the selector; the
+ * histograms may be read by any thread.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class LatencyTracer {
+	/** Stages of a traced frame. */
+	public enum Stage {
+		/** From the reception of the first byte to the end of decoding. */
+		DECODE,
+		/** Run of the command, such as the broadcast to every recipient. */
+		DISPATCH,
+		/** In the queue of a recipient, until moved to its output buffer. */
+		QUEUE,
+		/** From the output buffer of a recipient to its last byte written. */
+		WRITE,
+		/** From the reception of the frame to its last byte written. */
+		TOTAL
+	}
+
+	private final int sampleRate;
+	private int untilSample = 1;
+	private final Histogram[][] histograms = new Histogram[256][];
+	/** Traced frame whose command is running, {@code null} if none. */
+	private Frame current;
+
+	/**
+	 * Traced frame.
+	 */
+	static final class Frame {
+		final byte opcode;
+		/** {@link System#nanoTime()} when the frame was received. */
+		final long receivedAt;
+		/** {@link System#nanoTime()} when its command started. */
+		final long dispatchedAt;
+
+		private Frame(byte opcode, long receivedAt, long dispatchedAt) {
+			this.opcode = opcode;
+			this.receivedAt = receivedAt;
+			this.dispatchedAt = dispatchedAt;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sampleRate
+	 *            one frame out of {@code sampleRate} is traced
+	 */
+	LatencyTracer(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Whether to trace the next frame.
+	 */
+	boolean sample() {
+		if (--untilSample > 0) {
+			return false;
+		}
+		untilSample = sampleRate;
+		return true;
+	}
+
+	/**
+	 * Start the command of a traced frame.
+	 */
+	void begin(byte opcode, long receivedAt, long dispatchedAt) {
+		current = new Frame(opcode, receivedAt, dispatchedAt);
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return traced frame whose command is running, or {@code null}
+	 */
+	Frame current() {
+		return current;
+	}
+
+	/**
+	 * End the command of the traced frame.
+	 */
+	void end() {
+		current = null;
+	}
+
+	/**
+	 * Record a duration.
+	 */
+	synchronized void record(byte opcode, Stage stage, long nanos) {
+		Histogram[] stages = histograms[opcode & 0xFF];
+		if (null == stages) {
+			stages = new Histogram[Stage.values().length];
+			histograms[opcode & 0xFF] = stages;
+		}
+		if (null == stages[stage.ordinal()]) {
+			stages[stage.ordinal()] = new Histogram();
+		}
+		stages[stage.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Duration under which a given percentage of the traced frames of an
+	 * opcode spent in a stage.
+	 *
+	 * @param opcode
+	 *            of the frames
+	 * @param stage
+	 *            {@link Stage}
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return duration in nanoseconds, or 0 if nothing was traced
+	 */
+	public synchronized long percentile(byte opcode, Stage stage, double percentile) {
+		Histogram[] stages = histograms[opcode & 0xFF];
+		if (null == stages || null == stages[stage.ordinal()]) {
+			return 0;
+		}
+		return stages[stage.ordinal()].percentile(percentile);
+	}
+
+	/**
+	 * Table of the percentiles of every stage of every traced opcode, in
+	 * microseconds.
+	 *
+	 * @return the report, one line per opcode and stage
+	 */
+	public synchronized String report() {
+		StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+				"%6s %-8s %9s %9s %9s %9s %9s%n", "opcode", "stage", "count", "p50 us",
+				"p90 us", "p99 us", "max us"));
+		for (int opcode = 0; opcode < histograms.length; opcode++) {
+			if (null == histograms[opcode]) {
+				continue;
+			}
+			for (Stage stage : Stage.values()) {
+				Histogram histogram = histograms[opcode][stage.ordinal()];
+				if (null == histogram) {
+					continue;
+				}
+				sb.append(String.format(Locale.ROOT, "%6d %-8s %9d %9.1f %9.1f %9.1f %9.1f%n",
+						opcode, stage.name().toLowerCase(Locale.ROOT), histogram.count(),
+						histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3,
+						histogram.percentile(99) / 1e3, histogram.max() / 1e3));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,330 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Limits of the clients of a {@link Server} and options of their sockets,
+ * named as in the configuration file and on the command line:
+ *
+ * <pre>
+ * max-nick-size   maximum nickname size in bytes          next command
+ * max-msg-size    maximum message size in bytes           next command
+ * max-queue       maximum messages queued per client      immediately
+ * timeout-ms      period of the inactivity check          immediately
+ * max-inactivity  checks a client can stay inactive       immediately
+ * buffer-size     input and output buffers of a client    next command
+ * tcp-nodelay     true to disable Nagle's algorithm       new connections
+ * send-buffer     SO_SNDBUF in bytes, 0 for the system's  new connections
+ * receive-buffer  SO_RCVBUF in bytes, 0 for the system's  new connections
+ * </pre>
+ *
+ * Instances are immutable, so that the limits can be reloaded from the
+ * console while the thread of the selector reads them: the last column tells
+ * when a reloaded limit takes effect, a client never sees its buffers nor its
+ * readers change in the middle of a command, since it only borrows them
+ * while bytes are pending.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class Limits {
+	/** Default period in milliseconds of the inactivity check. */
+	public static final int DEFAULT_TIMEOUT = 5000;
+	/** Default checks a client can stay inactive before timeout. */
+	public static final int DEFAULT_MAX_INACTIVITY = 1;
+	/** Default size of the input and output buffers of a client. */
+	public static final int DEFAULT_BUFSIZ = 4096;
+	private static final String[] NAMES = { "max-nick-size", "max-msg-size", "max-queue",
+			"timeout-ms", "max-inactivity", "buffer-size", "tcp-nodelay", "send-buffer",
+			"receive-buffer" };
+	private int maxNickSize = Server.MAX_NICKSIZ;
+	private int maxMsgSize = Server.MAX_MSGSIZ;
+	private int maxQueue = Server.MAX_MSG;
+	private int timeout = DEFAULT_TIMEOUT;
+	private int maxInactivity = DEFAULT_MAX_INACTIVITY;
+	private int bufferSize = DEFAULT_BUFSIZ;
+	private boolean tcpNoDelay;
+	private int sendBuffer;
+	private int receiveBuffer;
+
+	private Limits() {
+	}
+
+	private Limits(Limits limits) {
+		maxNickSize = limits.maxNickSize;
+		maxMsgSize = limits.maxMsgSize;
+		maxQueue = limits.maxQueue;
+		timeout = limits.timeout;
+		maxInactivity = limits.maxInactivity;
+		bufferSize = limits.bufferSize;
+		tcpNoDelay = limits.tcpNoDelay;
+		sendBuffer = limits.sendBuffer;
+		receiveBuffer = limits.receiveBuffer;
+	}
+
+	/**
+	 * Static factory method to create the default {@code Limits}.
+	 *
+	 * @return an instance of {@code Limits}
+	 */
+	public static Limits defaults() {
+		return new Limits();
+	}
+
+	/**
+	 * Whether a name is the one of a limit.
+	 *
+	 * @param name
+	 *            without the leading {@code --} of the command line
+	 * @return {@code true} if {@link #with(String, String)} accepts it
+	 */
+	static boolean isLimit(String name) {
+		for (String limit : NAMES) {
+			if (limit.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copy of these limits with one of them changed.
+	 *
+	 * @param name
+	 *            of the limit
+	 * @param value
+	 *            {@code true} or {@code false} for {@code tcp-nodelay}, a
+	 *            number otherwise
+	 * @return an instance of {@code Limits}
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown or the value invalid
+	 */
+	public Limits with(String name, String value) {
+		Limits limits = new Limits(this);
+		if (name.equals("tcp-nodelay")) {
+			if (!value.equals("true") && !value.equals("false")) {
+				throw new IllegalArgumentException(name + "=" + value);
+			}
+			limits.tcpNoDelay = Boolean.parseBoolean(value);
+			return limits;
+		}
+		int number = Integer.parseInt(value.trim());
+		boolean socketBuffer = name.equals("send-buffer") || name.equals("receive-buffer");
+		if (number < 0 || (number == 0 && !socketBuffer)) {
+			throw new IllegalArgumentException(name + "=" + value);
+		}
+		switch (name) {
+		case "max-nick-size":
+			limits.maxNickSize = number;
+			break;
+		case "max-msg-size":
+			limits.maxMsgSize = number;
+			break;
+		case "max-queue":
+			limits.maxQueue = number;
+			break;
+		case "timeout-ms":
+			limits.timeout = number;
+			break;
+		case "max-inactivity":
+			limits.maxInactivity = number;
+			break;
+		case "buffer-size":
+			limits.bufferSize = number;
+			break;
+		case "send-buffer":
+			limits.sendBuffer = number;
+			break;
+		case "receive-buffer":
+			limits.receiveBuffer = number;
+			break;
+		default:
+			throw new IllegalArgumentException(name);
+		}
+		return limits;
+	}
+
+	/**
+	 * Copy of these limits with the ones of a configuration file, in the
+	 * {@link Properties} format with one {@code name=value} per line.
+	 *
+	 * @param file
+	 *            path of the configuration file
+	 * @return an instance of {@code Limits}
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if a name is unknown or a value invalid
+	 */
+	public Limits load(Path file) throws IOException {
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		}
+		Limits limits = this;
+		for (String name : properties.stringPropertyNames()) {
+			limits = limits.with(name, properties.getProperty(name).trim());
+		}
+		return limits;
+	}
+
+	/**
+	 * Check that the limits are consistent: a message with its size must fit
+	 * in the input buffer, where it is read at once, and a nickname must be
+	 * shorter than a message.
+	 *
+	 * @return these limits
+	 * @throws IllegalArgumentException
+	 *             if they are not consistent
+	 */
+	public Limits check() {
+		if (bufferSize < Integer.BYTES + maxMsgSize) {
+			throw new IllegalArgumentException("buffer-size must hold max-msg-size and its size");
+		}
+		if (maxNickSize > maxMsgSize) {
+			throw new IllegalArgumentException("max-nick-size must not exceed max-msg-size");
+		}
+		return this;
+	}
+
+	private String value(String name) {
+		switch (name) {
+		case "max-nick-size":
+			return Integer.toString(maxNickSize);
+		case "max-msg-size":
+			return Integer.toString(maxMsgSize);
+		case "max-queue":
+			return Integer.toString(maxQueue);
+		case "timeout-ms":
+			return Integer.toString(timeout);
+		case "max-inactivity":
+			return Integer.toString(maxInactivity);
+		case "buffer-size":
+			return Integer.toString(bufferSize);
+		case "tcp-nodelay":
+			return Boolean.toString(tcpNoDelay);
+		case "send-buffer":
+			return Integer.toString(sendBuffer);
+		case "receive-buffer":
+			return Integer.toString(receiveBuffer);
+		default:
+			throw new IllegalArgumentException(name);
+		}
+	}
+
+	/**
+	 * Limits which differ from other ones.
+	 *
+	 * @param limits
+	 *            new limits
+	 * @return one {@code name old -> new} per changed limit
+	 */
+	public List<String> changes(Limits limits) {
+		List<String> changes = new ArrayList<>();
+		for (String name : NAMES) {
+			String before = value(name);
+			String after = limits.value(name);
+			if (!before.equals(after)) {
+				changes.add(name + " " + before + " -> " + after);
+			}
+		}
+		return changes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (String name : NAMES) {
+			sb.append(name).append('=').append(value(name)).append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return maximum nickname size in bytes
+	 */
+	public int getMaxNickSize() {
+		return maxNickSize;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return maximum message size in bytes
+	 */
+	public int getMaxMsgSize() {
+		return maxMsgSize;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return maximum messages queued for a client before it is dropped
+	 */
+	public int getMaxQueue() {
+		return maxQueue;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return period in milliseconds of the inactivity check
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return checks a client can stay inactive before timeout
+	 */
+	public int getMaxInactivity() {
+		return maxInactivity;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return size of the input and output buffers of a client
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return {@code true} to disable Nagle's algorithm
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return SO_SNDBUF in bytes, 0 to keep the one of the system
+	 */
+	public int getSendBuffer() {
+		return sendBuffer;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return SO_RCVBUF in bytes, 0 to keep the one of the system
+	 */
+	public int getReceiveBuffer() {
+		return receiveBuffer;
+	}
+}
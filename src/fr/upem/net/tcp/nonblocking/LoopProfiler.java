@@ -0,0 +1,252 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Time spent by the selector loop of the server in each {@link Phase} of its
+ * iterations, summed over windows of a minute, and watchdog catching the
+ * iterations which stall: once an iteration has been busy for longer than the
+ * threshold, the stack of the thread of the selector is captured with the
+ * {@link Context} and the opcode being processed.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class LoopProfiler {
+	private static final Logger LOGGER = Logger.getLogger("ServerLogger");
+	private static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+	/** Number of stalls kept for the summary. */
+	private static final int MAX_STALLS = 5;
+	/** Number of frames of the stack kept for a stall. */
+	private static final int MAX_FRAMES = 12;
+
+	/** Phases of an iteration. */
+	public enum Phase {
+		SELECT, TIMEOUTS, ACCEPT, READ, WRITE, OTHER
+	}
+
+	private final long threshold;
+	/* Only used by the thread of the selector */
+	private Phase phase = Phase.OTHER;
+	private long phaseStart = System.nanoTime();
+	private final long[] phaseNanos = new long[Phase.values().length];
+	/* Read by the watchdog */
+	private volatile long busySince = System.nanoTime();
+	private volatile Phase busyPhase = Phase.OTHER;
+	private volatile Context busyContext;
+	private volatile int busyOpcode = -1;
+	private Thread loopThread;
+	private Thread watchdog;
+	/* Guarded by this */
+	private Window current = new Window(System.nanoTime());
+	private Window previous;
+	private final ArrayDeque<String> stalls = new ArrayDeque<>();
+
+	/**
+	 * Iterations of a window.
+	 */
+	private static final class Window {
+		private final long start;
+		private long iterations;
+		private long stalls;
+		private final long[] phaseNanos = new long[Phase.values().length];
+		private final long[] phaseMax = new long[Phase.values().length];
+		/** Time of the iterations out of select. */
+		private final Histogram busy = new Histogram();
+
+		private Window(long start) {
+			this.start = start;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param thresholdMillis
+	 *            time in milliseconds after which a busy iteration is a stall
+	 */
+	LoopProfiler(long thresholdMillis) {
+		threshold = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+	}
+
+	/**
+	 * Start the watchdog of the selector loop run by the current thread.
+	 */
+	void start() {
+		loopThread = Thread.currentThread();
+		watchdog = new Thread(this::watch, "loop-watchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+	}
+
+	/**
+	 * Stop the watchdog.
+	 */
+	void stop() {
+		if (null != watchdog) {
+			watchdog.interrupt();
+		}
+	}
+
+	/**
+	 * Enter a phase of the current iteration.
+	 *
+	 * @param next
+	 *            {@link Phase} entered
+	 */
+	void phase(Phase next) {
+		if (next == phase) {
+			return;
+		}
+		long now = System.nanoTime();
+		phaseNanos[phase.ordinal()] += now - phaseStart;
+		if (next == Phase.SELECT) {
+			busySince = 0;
+		} else if (phase == Phase.SELECT) {
+			busySince = now;
+		}
+		phase = next;
+		phaseStart = now;
+		busyPhase = next;
+		busyContext = null;
+	}
+
+	/**
+	 * Set the {@link Context} being processed.
+	 *
+	 * @param context
+	 *            {@link Context}, or {@code null} once processed
+	 */
+	void context(Context context) {
+		busyContext = context;
+	}
+
+	/**
+	 * Set the opcode of the command being run.
+	 *
+	 * @param opcode
+	 *            of the command, or -1 once run
+	 */
+	void opcode(int opcode) {
+		busyOpcode = opcode;
+	}
+
+	/**
+	 * End the current iteration and start the next one.
+	 */
+	void endIteration() {
+		long now = System.nanoTime();
+		phaseNanos[phase.ordinal()] += now - phaseStart;
+		phaseStart = now;
+		long busyNanos = 0;
+		for (Phase p : Phase.values()) {
+			if (p != Phase.SELECT) {
+				busyNanos += phaseNanos[p.ordinal()];
+			}
+		}
+		synchronized (this) {
+			if (now - current.start > WINDOW) {
+				previous = current;
+				current = new Window(now);
+			}
+			current.iterations++;
+			current.busy.record(busyNanos);
+			for (int i = 0; i < phaseNanos.length; i++) {
+				current.phaseNanos[i] += phaseNanos[i];
+				current.phaseMax[i] = Math.max(current.phaseMax[i], phaseNanos[i]);
+			}
+		}
+		for (int i = 0; i < phaseNanos.length; i++) {
+			phaseNanos[i] = 0;
+		}
+		if (phase != Phase.SELECT) {
+			busySince = now;
+		}
+	}
+
+	private void watch() {
+		long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(threshold) / 4);
+		long reported = 0;
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(period);
+				long since = busySince;
+				if (0 != since && since != reported && System.nanoTime() - since > threshold) {
+					reported = since;
+					stall(since);
+				}
+			}
+		} catch (InterruptedException ie) {
+			// server shutdown
+		}
+	}
+
+	/**
+	 * Capture the state of the thread of the selector during a stall.
+	 */
+	private void stall(long since) {
+		StackTraceElement[] stack = loopThread.getStackTrace();
+		Context context = busyContext;
+		int opcode = busyOpcode;
+		StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+				"Selector loop busy for %d ms in phase %s",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since), busyPhase));
+		if (null != context) {
+			sb.append(", context ").append(context.remoteAddressToString()).append(" (")
+					.append(context.getNickname()).append(')');
+		}
+		if (-1 != opcode) {
+			sb.append(", opcode ").append(opcode);
+		}
+		for (int i = 0; i < Math.min(stack.length, MAX_FRAMES); i++) {
+			sb.append("\n\tat ").append(stack[i]);
+		}
+		String report = sb.toString();
+		LOGGER.warning(report);
+		synchronized (this) {
+			current.stalls++;
+			if (stalls.size() == MAX_STALLS) {
+				stalls.poll();
+			}
+			stalls.add(report);
+		}
+	}
+
+	/**
+	 * Summary of the current and previous windows, with the last stalls.
+	 *
+	 * @return the summary
+	 */
+	public synchronized String summary() {
+		StringBuilder sb = new StringBuilder();
+		if (null != previous) {
+			summary(sb, "previous minute", previous);
+		}
+		summary(sb, "last " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - current.start)
+				+ " s", current);
+		for (String stall : stalls) {
+			sb.append(stall).append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+
+	private static void summary(StringBuilder sb, String name, Window window) {
+		long total = 0;
+		for (long nanos : window.phaseNanos) {
+			total += nanos;
+		}
+		sb.append(String.format(Locale.ROOT,
+				"%s: %d iterations, busy p50 %.1f us, p99 %.1f us, max %.1f ms, %d stalls%n", name,
+				window.iterations, window.busy.percentile(50) / 1e3,
+				window.busy.percentile(99) / 1e3, window.busy.max() / 1e6, window.stalls));
+		for (Phase p : Phase.values()) {
+			sb.append(String.format(Locale.ROOT, "  %-8s %10.1f ms %5.1f %%  max %8.1f ms%n",
+					p.name().toLowerCase(Locale.ROOT), window.phaseNanos[p.ordinal()] / 1e6,
+					total == 0 ? 0.0 : 100.0 * window.phaseNanos[p.ordinal()] / total,
+					window.phaseMax[p.ordinal()] / 1e6));
+		}
+	}
+}
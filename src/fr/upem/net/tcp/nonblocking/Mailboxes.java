@@ -0,0 +1,238 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Direct messages kept for offline clients, in one append-only file per
+ * nickname, mapped in memory with a fixed capacity so that appending is a
+ * copy without any system call. The end of the records is written after each
+ * record, so a crash while appending only loses that record:
+ *
+ * <pre>
+ * +------+-------------+--------+------+------+---------+
+ * | end  | sender size | sender | time | size | message |  ...
+ * +------+-------------+--------+------+------+---------+
+ * | int  |     int     | bytes  | long | int  |  bytes  |
+ * +------+-------------+--------+------+------+---------+
+ * </pre>
+ *
+ * The records are the end of a packet 37, which is how they are drained by
+ * the next client who logs in with the nickname, whoever it is. Messages are
+ * only kept for the nicknames which logged in since the server started or
+ * which already have a mailbox, up to {@link #MAX_MAILBOXES} files, so that
+ * messages to made-up nicknames cost neither files nor I/O. The most recently
+ * used files stay mapped. Only used by the thread of the selector.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class Mailboxes {
+	private static final Logger LOGGER = Logger.getLogger("ServerLogger");
+	private static final int HEADER = Integer.BYTES;
+	/** Size of the smallest record, with an empty sender and message. */
+	private static final int MIN_RECORDSIZ = Integer.BYTES + Long.BYTES + Integer.BYTES;
+	/** Flag of a packet 37 drained from a mailbox. */
+	static final byte FLAG_MAILBOX = 1;
+	/** Maximum number of files kept mapped. */
+	private static final int MAX_MAPPED = 64;
+	/** Maximum number of mailbox files. */
+	private static final int MAX_MAILBOXES = 65536;
+	private static final String SUFFIX = ".mbox";
+	private final Path directory;
+	private final int capacity;
+	/** Nicknames which logged in since the server started. */
+	private final HashSet<Nickname> known = new HashSet<>();
+	/** File names of the existing mailboxes, without suffix. */
+	private final HashSet<String> boxes = new HashSet<>();
+	private final LinkedHashMap<Nickname, MappedByteBuffer> mapped = new LinkedHashMap<>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Nickname, MappedByteBuffer> eldest) {
+			if (size() > MAX_MAPPED) {
+				eldest.getValue().force();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *            of the files, created when the first message is kept
+	 * @param capacity
+	 *            size in bytes of a file
+	 * @throws IOException
+	 *             if the existing mailboxes cannot be listed
+	 */
+	Mailboxes(Path directory, int capacity) throws IOException {
+		this.directory = directory;
+		this.capacity = capacity;
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				boxes.add(name.substring(0, name.length() - SUFFIX.length()));
+			}
+		}
+	}
+
+	private Path path(String name) {
+		return directory.resolve(name + SUFFIX);
+	}
+
+	/**
+	 * Map the mailbox of a nickname, created if the nickname is known.
+	 *
+	 * @return the mapped file, or {@code null} if no mailbox is kept
+	 */
+	private MappedByteBuffer map(Nickname nickname) throws IOException {
+		MappedByteBuffer mailbox = mapped.get(nickname);
+		if (null != mailbox) {
+			return mailbox;
+		}
+		String name = nickname.toFileName();
+		if (!boxes.contains(name)) {
+			if (!known.contains(nickname) || boxes.size() >= MAX_MAILBOXES) {
+				return null;
+			}
+			Files.createDirectories(directory);
+		}
+		try (FileChannel fc = FileChannel.open(path(name), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			mailbox = fc.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		}
+		boxes.add(name);
+		mapped.put(nickname, mailbox);
+		return mailbox;
+	}
+
+	private static int end(ByteBuffer mailbox) {
+		int end = mailbox.getInt(0);
+		return end < HEADER || end > mailbox.capacity() ? HEADER : end;
+	}
+
+	/**
+	 * Keep a message for an offline client.
+	 *
+	 * @param recipient
+	 *            nickname of the offline client
+	 * @param sender
+	 *            nickname of the sender
+	 * @param time
+	 *            when the message was sent, in milliseconds since the epoch
+	 * @param message
+	 *            {@link ByteBuffer} of the message, in read mode
+	 * @return {@code false} if the nickname of the recipient is unknown or its
+	 *         mailbox is full
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	boolean append(Nickname recipient, Nickname sender, long time, ByteBuffer message)
+			throws IOException {
+		MappedByteBuffer mailbox = map(recipient);
+		if (null == mailbox) {
+			return false;
+		}
+		int end = end(mailbox);
+		int size = Integer.BYTES + sender.size() + Long.BYTES + Integer.BYTES + message.remaining();
+		if (end + size > capacity) {
+			return false;
+		}
+		mailbox.position(end);
+		sender.putIn(mailbox);
+		mailbox.putLong(time);
+		mailbox.putInt(message.remaining());
+		mailbox.put(message.duplicate());
+		mailbox.putInt(0, end + size);
+		return true;
+	}
+
+	/**
+	 * Take the messages kept for a client who logged in, and delete its
+	 * mailbox. Its nickname is known from then on.
+	 *
+	 * @param recipient
+	 *            nickname of the client
+	 * @return {@link ByteBuffer} of a packet 37 per message, in write mode, or
+	 *         {@code null} if none was kept
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	ByteBuffer drain(Nickname recipient) throws IOException {
+		known.add(recipient);
+		String name = recipient.toFileName();
+		if (!boxes.remove(name)) {
+			return null;
+		}
+		Path path = path(name);
+		ByteBuffer mailbox = mapped.remove(recipient);
+		if (null == mailbox) {
+			if (Files.notExists(path)) {
+				return null;
+			}
+			try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+				if (fc.size() < HEADER) {
+					Files.delete(path);
+					return null;
+				}
+				mailbox = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			}
+		}
+		ByteBuffer records = mailbox.duplicate();
+		records.position(HEADER).limit(end(mailbox));
+		int count = 0;
+		ByteBuffer bb = ByteBuffer.allocate(records.remaining()
+				+ (records.remaining() / MIN_RECORDSIZ) * 2 * Byte.BYTES);
+		while (records.remaining() >= MIN_RECORDSIZ) {
+			int start = records.position();
+			int senderSize = records.getInt(start);
+			if (senderSize < 0 || senderSize > records.remaining() - MIN_RECORDSIZ) {
+				break;
+			}
+			int sizeAt = start + Integer.BYTES + senderSize + Long.BYTES;
+			int size = records.getInt(sizeAt);
+			int recordEnd = sizeAt + Integer.BYTES + size;
+			if (size < 0 || recordEnd > records.limit()) {
+				break;
+			}
+			bb.put((byte) 37);
+			bb.put(FLAG_MAILBOX);
+			bb.put(records.duplicate().position(start).limit(recordEnd));
+			records.position(recordEnd);
+			count++;
+		}
+		if (records.hasRemaining()) {
+			LOGGER.warning("Mailbox of " + recipient + " is corrupted after " + count + " messages");
+		}
+		Files.deleteIfExists(path);
+		return count == 0 ? null : bb;
+	}
+
+	/**
+	 * Write the mapped files to the disk.
+	 */
+	void force() {
+		for (Iterator<MappedByteBuffer> it = mapped.values().iterator(); it.hasNext();) {
+			it.next().force();
+			it.remove();
+		}
+	}
+}
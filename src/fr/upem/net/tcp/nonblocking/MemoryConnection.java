@@ -0,0 +1,250 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * {@link Connection} simulated in memory by a {@link MemoryHarness}. The
+ * methods of the simulated client are public: it sends bytes which the server
+ * may read in fragments of a given size, and it receives what the server
+ * writes either at once or, for a slow consumer, through a bounded buffer
+ * drained at a given rate on each step of the harness.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class MemoryConnection implements Connection {
+	private final MemoryHarness harness;
+	private final int id;
+	/** Bytes sent by the client, not read by the server yet. */
+	private final ArrayDeque<ByteBuffer> input = new ArrayDeque<>();
+	private boolean inputShutdown;
+	private int fragment = Integer.MAX_VALUE;
+	/** Bytes written by the server to a slow consumer, {@code null} if fast. */
+	private ByteBuffer output;
+	private int drainRate;
+	private Consumer<ByteBuffer> sink;
+	private long received;
+	private int ops;
+	private boolean open = true;
+	/** {@code boolean}: in the ready queue of the harness. */
+	boolean queued;
+	Context context;
+
+	MemoryConnection(MemoryHarness harness, int id) {
+		this.harness = harness;
+		this.id = id;
+	}
+
+	/* Simulated client */
+
+	/**
+	 * Send bytes to the server.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} in read mode, whose remaining bytes are
+	 *            copied
+	 */
+	public void send(ByteBuffer bb) {
+		if (!open || inputShutdown || !bb.hasRemaining()) {
+			return;
+		}
+		ByteBuffer copy = ByteBuffer.allocate(bb.remaining());
+		copy.put(bb);
+		copy.flip();
+		input.add(copy);
+		harness.ready(this);
+	}
+
+	/**
+	 * Shut down the output of the client: the server reads the end of stream
+	 * once everything sent has been read.
+	 */
+	public void shutdown() {
+		inputShutdown = true;
+		harness.ready(this);
+	}
+
+	/**
+	 * Let the server read at most {@code fragment} bytes at once, 1 to split
+	 * every packet at every byte boundary.
+	 *
+	 * @param fragment
+	 *            positive number of bytes
+	 */
+	public void setFragment(int fragment) {
+		if (fragment <= 0) {
+			throw new IllegalArgumentException("Fragment must be positive: " + fragment);
+		}
+		this.fragment = fragment;
+	}
+
+	/**
+	 * Make the client a slow consumer: the server can only write into a
+	 * buffer of {@code bufferSize} bytes, of which the client takes at most
+	 * {@code drainRate} bytes on each step of the harness.
+	 *
+	 * @param bufferSize
+	 *            positive size of the buffer, like a socket send buffer
+	 * @param drainRate
+	 *            positive number of bytes taken per step
+	 */
+	public void setSlowConsumer(int bufferSize, int drainRate) {
+		if (bufferSize <= 0 || drainRate <= 0) {
+			throw new IllegalArgumentException("Buffer size and drain rate must be positive");
+		}
+		output = ByteBuffer.allocate(bufferSize);
+		this.drainRate = drainRate;
+		harness.slowConsumer(this);
+	}
+
+	/**
+	 * Set the consumer of the bytes received by the client, given in read
+	 * mode and only valid during the call.
+	 *
+	 * @param sink
+	 *            {@link Consumer} of the received bytes
+	 */
+	public void setSink(Consumer<ByteBuffer> sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return number of bytes received by the client
+	 */
+	public long received() {
+		return received;
+	}
+
+	/**
+	 * Let the client of a slow consumer take bytes from its buffer.
+	 *
+	 * @return {@code true} if bytes were taken
+	 */
+	boolean drain() {
+		if (output.position() == 0) {
+			return false;
+		}
+		output.flip();
+		int limit = output.limit();
+		output.limit(Math.min(limit, drainRate));
+		deliver(output);
+		output.limit(limit);
+		output.compact();
+		harness.ready(this);
+		return true;
+	}
+
+	private void deliver(ByteBuffer bb) {
+		received += bb.remaining();
+		if (null != sink) {
+			sink.accept(bb.duplicate());
+		}
+		bb.position(bb.limit());
+	}
+
+	/**
+	 * Whether the server has something to do with this connection, like a
+	 * key selected by the selector.
+	 */
+	boolean isReady() {
+		return isReadable() || isWritable();
+	}
+
+	boolean isReadable() {
+		return open && (ops & SelectionKey.OP_READ) != 0 && (!input.isEmpty() || inputShutdown);
+	}
+
+	boolean isWritable() {
+		return open && (ops & SelectionKey.OP_WRITE) != 0
+				&& (null == output || output.hasRemaining());
+	}
+
+	/**
+	 * Whether a slow consumer has bytes left to take.
+	 */
+	boolean hasOutput() {
+		return open && null != output && output.position() > 0;
+	}
+
+	/* Connection of the server */
+
+	@Override
+	public int read(ByteBuffer bb) throws IOException {
+		if (!open) {
+			throw new IOException("Connection closed");
+		}
+		if (input.isEmpty()) {
+			return inputShutdown ? -1 : 0;
+		}
+		int read = 0;
+		while (!input.isEmpty() && bb.hasRemaining() && read < fragment) {
+			ByteBuffer chunk = input.peek();
+			int limit = chunk.limit();
+			chunk.limit(chunk.position() + Math.min(chunk.remaining(),
+					Math.min(bb.remaining(), fragment - read)));
+			read += chunk.remaining();
+			bb.put(chunk);
+			chunk.limit(limit);
+			if (!chunk.hasRemaining()) {
+				input.poll();
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer bb) throws IOException {
+		if (!open) {
+			throw new IOException("Connection closed");
+		}
+		int written = bb.remaining();
+		if (null == output) {
+			deliver(bb);
+			return written;
+		}
+		written = Math.min(written, output.remaining());
+		int limit = bb.limit();
+		bb.limit(bb.position() + written);
+		output.put(bb);
+		bb.limit(limit);
+		return written;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public int interestOps() {
+		return ops;
+	}
+
+	@Override
+	public void interestOps(int ops) {
+		this.ops = ops;
+		harness.ready(this);
+	}
+
+	@Override
+	public void attach(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		input.clear();
+	}
+
+	@Override
+	public String remoteAddressToString() {
+		return "memory:" + id;
+	}
+}
@@ -0,0 +1,135 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Drive a {@link Server} without sockets: its clients are
+ * {@link MemoryConnection}s, and each {@link #step()} does what an iteration
+ * of the selector loop does for the connections which are ready. There is no
+ * timeout of inactive clients, and private channels cannot be relayed.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class MemoryHarness {
+	private final Server server;
+	/** Connections which are ready, like the selected keys. */
+	private final ArrayDeque<MemoryConnection> ready = new ArrayDeque<>();
+	private final ArrayList<MemoryConnection> slowConsumers = new ArrayList<>();
+	private int nbConnections;
+
+	private MemoryHarness(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Static factory method to create a {@code MemoryHarness} with a
+	 * {@link Server} which does not listen.
+	 *
+	 * @return an instance of {@code MemoryHarness}
+	 * @throws IOException
+	 *             if the selector of the server cannot be opened
+	 */
+	public static MemoryHarness create() throws IOException {
+		return new MemoryHarness(new Server(ServerConfig.withoutListeners()));
+	}
+
+	/**
+	 * Connect a new client, like an accepted connection.
+	 *
+	 * @return the {@link MemoryConnection} of the client
+	 */
+	public MemoryConnection connect() {
+		MemoryConnection connection = new MemoryConnection(this, ++nbConnections);
+		connection.context = Context.create(server, connection, null);
+		connection.interestOps(SelectionKey.OP_READ);
+		return connection;
+	}
+
+	/**
+	 * Perform one iteration: read from and write to the connections which are
+	 * ready, flush the contexts with data to send, then let the slow
+	 * consumers take bytes.
+	 *
+	 * @return number of connections which were ready
+	 */
+	public int step() {
+		int nbReady = ready.size();
+		for (int i = 0; i < nbReady; i++) {
+			MemoryConnection connection = ready.poll();
+			connection.queued = false;
+			process(connection);
+		}
+		server.flushDirtyContexts();
+		for (MemoryConnection connection : slowConsumers) {
+			connection.drain();
+		}
+		slowConsumers.removeIf(connection -> !connection.isOpen());
+		return nbReady;
+	}
+
+	/**
+	 * Step until no connection is ready anymore and the slow consumers have
+	 * taken everything.
+	 *
+	 * @return number of steps
+	 */
+	public int run() {
+		int steps = 0;
+		while (!ready.isEmpty() || slowConsumers.stream().anyMatch(MemoryConnection::hasOutput)) {
+			step();
+			steps++;
+		}
+		return steps;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return number of clients registered with a nickname
+	 */
+	public int getNumberConnected() {
+		return server.getNumberConnected();
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return {@link LatencyTracer} of the server
+	 */
+	public LatencyTracer getTracer() {
+		return server.getTracer();
+	}
+
+	private void process(MemoryConnection connection) {
+		Context context = connection.context;
+		try {
+			if (connection.isWritable()) {
+				context.doWrite();
+			}
+			if (connection.isReadable()) {
+				context.doRead();
+			}
+		} catch (IOException ioe) {
+			context.close();
+		}
+		ready(connection);
+	}
+
+	/**
+	 * Queue a connection if it is ready and not queued yet.
+	 */
+	void ready(MemoryConnection connection) {
+		if (!connection.queued && connection.isReady()) {
+			connection.queued = true;
+			ready.add(connection);
+		}
+	}
+
+	void slowConsumer(MemoryConnection connection) {
+		slowConsumers.add(connection);
+	}
+}
@@ -0,0 +1,133 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Nickname of a client, kept as the bytes sent on the wire so that it is
+ * never encoded nor decoded again. Two nicknames are equal if they have the
+ * same bytes, whatever their ID.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public final class Nickname {
+	/** ID of a nickname not registered in a {@link NicknameTable}. */
+	public static final int NO_ID = -1;
+	private final byte[] bytes;
+	private final int id;
+	private final int hash;
+
+	private Nickname(byte[] bytes, int id) {
+		this.bytes = bytes;
+		this.id = id;
+		hash = Arrays.hashCode(bytes);
+	}
+
+	/**
+	 * Static factory method to create a {@code Nickname} from the bytes
+	 * remaining in a {@link ByteBuffer}, which are consumed.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} in read mode
+	 * @return a {@code Nickname} without ID
+	 */
+	public static Nickname of(ByteBuffer bb) {
+		byte[] bytes = new byte[bb.remaining()];
+		bb.get(bytes);
+		return new Nickname(bytes, NO_ID);
+	}
+
+	/**
+	 * Same nickname with an ID, given by {@link NicknameTable}.
+	 */
+	Nickname withId(int id) {
+		return new Nickname(bytes, id);
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return ID of the nickname, or {@link #NO_ID}
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return size of the nickname in bytes
+	 */
+	public int size() {
+		return bytes.length;
+	}
+
+	/**
+	 * Put the nickname prefixed by its size in a {@link ByteBuffer}.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} in write mode
+	 */
+	public void putIn(ByteBuffer bb) {
+		bb.putInt(bytes.length);
+		bb.put(bytes);
+	}
+
+	/**
+	 * Put the nickname prefixed by its size as a varint, for the protocol
+	 * version 2, in a {@link ByteBuffer}.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} in write mode
+	 */
+	public void putCompactIn(ByteBuffer bb) {
+		Varints.put(bb, bytes.length);
+		bb.put(bytes);
+	}
+
+	/**
+	 * Name of a file for this nickname, whatever its bytes.
+	 * 
+	 * @return the bytes in hexadecimal
+	 */
+	String toFileName() {
+		StringBuilder sb = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return size in bytes of the nickname written by
+	 *         {@link #putCompactIn(ByteBuffer)}
+	 */
+	public int compactSize() {
+		return Varints.size(bytes.length) + bytes.length;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Nickname)) {
+			return false;
+		}
+		Nickname nickname = (Nickname) obj;
+		return hash == nickname.hash && Arrays.equals(bytes, nickname.bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Decode the nickname, only for logs.
+	 */
+	@Override
+	public String toString() {
+		return new String(bytes, Server.CHARSET_NICKNAME);
+	}
+}
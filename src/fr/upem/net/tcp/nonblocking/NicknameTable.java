@@ -0,0 +1,97 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Nicknames of the registered clients. Each one is interned with the smallest
+ * numeric ID not in use, and associated with the {@link Context} of the client.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class NicknameTable {
+	private final HashMap<Nickname, Context> contexts = new HashMap<>();
+	/** IDs in use. */
+	private final BitSet ids = new BitSet();
+
+	/**
+	 * Register a client.
+	 *
+	 * @param nickname
+	 *            of the client, with or without ID
+	 * @param context
+	 *            of the client
+	 * @return the interned nickname, with its ID, or {@code null} if the
+	 *         nickname is already taken
+	 */
+	Nickname register(Nickname nickname, Context context) {
+		if (contexts.containsKey(nickname)) {
+			return null;
+		}
+		int id = ids.nextClearBit(0);
+		ids.set(id);
+		Nickname interned = nickname.withId(id);
+		contexts.put(interned, context);
+		return interned;
+	}
+
+	/**
+	 * Unregister a client.
+	 *
+	 * @param nickname
+	 *            interned nickname of the client
+	 * @param context
+	 *            of the client
+	 * @return {@code true} if the client was registered, {@code false}
+	 *         otherwise
+	 */
+	boolean unregister(Nickname nickname, Context context) {
+		if (!contexts.remove(nickname, context)) {
+			return false;
+		}
+		ids.clear(nickname.getId());
+		return true;
+	}
+
+	/**
+	 * Look up a client.
+	 *
+	 * @param nickname
+	 *            of the client, with or without ID
+	 * @return the {@link Context} of the client, or {@code null} if not
+	 *         registered
+	 */
+	Context get(Nickname nickname) {
+		return contexts.get(nickname);
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return number of registered clients
+	 */
+	int size() {
+		return contexts.size();
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return {@link Context}s of the registered clients
+	 */
+	Collection<Context> contexts() {
+		return Collections.unmodifiableCollection(contexts.values());
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return interned nicknames of the registered clients
+	 */
+	Collection<Nickname> nicknames() {
+		return Collections.unmodifiableSet(contexts.keySet());
+	}
+}
@@ -0,0 +1,180 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+/**
+ * Private channel relayed by the server between two clients which cannot
+ * connect to each other. The bytes are forwarded as they are, without being
+ * decoded, through a direct buffer per direction: an end is only read while
+ * its buffer has room, and only written while the buffer of the other end has
+ * data.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class Relay {
+	private static final Logger LOGGER = Logger.getLogger("ServerLogger");
+	private static final int BUFSIZ = 64 * 1024;
+	/** Buffers of closed relays, only used by the thread of the selector. */
+	private static final ArrayDeque<ByteBuffer> POOL = new ArrayDeque<>();
+	private final End first;
+	private final End second;
+	/** Run once, when the relay is closed. */
+	private final Runnable onClose;
+
+	/**
+	 * One of the clients of a relay, attached to its {@link SelectionKey}.
+	 */
+	class End {
+		private final SocketChannel sc;
+		private final SelectionKey key;
+		/** Data read from this end, to write to the other one. */
+		private final ByteBuffer bb;
+		private boolean eof;
+		private End other;
+
+		private End(SocketChannel sc, SelectionKey key, ByteBuffer pending) {
+			this.sc = sc;
+			this.key = key;
+			bb = allocate();
+			bb.put(pending);
+			key.attach(this);
+		}
+
+		/**
+		 * Performs a read operation.
+		 */
+		void doRead() {
+			try {
+				if (-1 == sc.read(bb)) {
+					eof = true;
+				}
+			} catch (IOException ioe) {
+				LOGGER.warning("Relay closed: " + ioe);
+				close();
+				return;
+			}
+			updateInterestOps();
+		}
+
+		/**
+		 * Performs a write operation.
+		 */
+		void doWrite() {
+			other.bb.flip();
+			try {
+				sc.write(other.bb);
+			} catch (IOException ioe) {
+				LOGGER.warning("Relay closed: " + ioe);
+				close();
+				return;
+			} finally {
+				other.bb.compact();
+			}
+			updateInterestOps();
+		}
+
+		/**
+		 * Interest operations of this end.
+		 */
+		private int interestOps() {
+			int ops = 0;
+			if (!eof && bb.hasRemaining()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (other.bb.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			return ops;
+		}
+	}
+
+	private Relay(SocketChannel sc1, SelectionKey key1, ByteBuffer pending1, SocketChannel sc2,
+			SelectionKey key2, ByteBuffer pending2, Runnable onClose) {
+		this.onClose = onClose;
+		first = new End(sc1, key1, pending1);
+		second = new End(sc2, key2, pending2);
+		first.other = second;
+		second.other = first;
+	}
+
+	/**
+	 * Relay two clients. Their keys are attached to the ends of the relay.
+	 *
+	 * @param sc1
+	 *            {@link SocketChannel} of the first client
+	 * @param key1
+	 *            {@link SelectionKey} of the first client
+	 * @param pending1
+	 *            {@link ByteBuffer} in read mode containing data already
+	 *            received from the first client
+	 * @param sc2
+	 *            {@link SocketChannel} of the second client
+	 * @param key2
+	 *            {@link SelectionKey} of the second client
+	 * @param pending2
+	 *            {@link ByteBuffer} in read mode containing data already
+	 *            received from the second client
+	 * @param onClose
+	 *            run once the relay is closed
+	 */
+	static void create(SocketChannel sc1, SelectionKey key1, ByteBuffer pending1,
+			SocketChannel sc2, SelectionKey key2, ByteBuffer pending2, Runnable onClose) {
+		new Relay(sc1, key1, pending1, sc2, key2, pending2, onClose).updateInterestOps();
+	}
+
+	private static ByteBuffer allocate() {
+		ByteBuffer bb = POOL.poll();
+		return null == bb ? ByteBuffer.allocateDirect(BUFSIZ) : bb;
+	}
+
+	/**
+	 * Update the interest operations of both ends, shut down the output of an
+	 * end once everything the other one sent has been written, and close the
+	 * relay when both directions are done.
+	 */
+	private void updateInterestOps() {
+		if (!first.key.isValid() || !second.key.isValid()) {
+			return;
+		}
+		try {
+			shutdownIfDone(first);
+			shutdownIfDone(second);
+		} catch (IOException ioe) {
+			close();
+			return;
+		}
+		if (first.eof && second.eof && first.bb.position() == 0 && second.bb.position() == 0) {
+			close();
+			return;
+		}
+		first.key.interestOps(first.interestOps());
+		second.key.interestOps(second.interestOps());
+	}
+
+	private static void shutdownIfDone(End end) throws IOException {
+		if (end.other.eof && end.other.bb.position() == 0) {
+			end.sc.shutdownOutput();
+		}
+	}
+
+	private void close() {
+		if (!first.key.isValid() && !second.key.isValid()) {
+			return;
+		}
+		first.key.cancel();
+		second.key.cancel();
+		Server.silentlyClose(first.sc);
+		Server.silentlyClose(second.sc);
+		first.bb.clear();
+		second.bb.clear();
+		POOL.add(first.bb);
+		POOL.add(second.bb);
+		onClose.run();
+	}
+}
@@ -0,0 +1,108 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Last messages moved to the output buffer of a resumable {@link Context},
+ * at their offset in the stream of bytes sent to the client since it logged
+ * in. They are kept whole and without copy, since they are the buffers of the
+ * queue, which the broadcasts share between the clients, until more than the
+ * retention follows them. A client which reconnects gives the offset of the
+ * first byte it did not receive, and the messages are queued again from
+ * there.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class ResumeLog {
+	private final int retention;
+	/** Moved messages, in read mode from their first byte. */
+	private final ArrayDeque<ByteBuffer> messages = new ArrayDeque<>();
+	/** Offset of the first byte of the oldest message. */
+	private long start;
+	/** Offset after the last byte of the newest message. */
+	private long end;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param retention
+	 *            bytes kept behind the newest message
+	 */
+	ResumeLog(int retention) {
+		this.retention = retention;
+	}
+
+	/**
+	 * Bytes put in the output buffer without a message, such as the response
+	 * to the login, which the client always has. Only before the first
+	 * message.
+	 *
+	 * @param bytes
+	 *            number of bytes
+	 */
+	void skip(int bytes) {
+		start += bytes;
+		end += bytes;
+	}
+
+	/**
+	 * A message starts being moved to the output buffer.
+	 *
+	 * @param message
+	 *            {@link ByteBuffer} in read mode
+	 */
+	void moving(ByteBuffer message) {
+		messages.add(message.duplicate());
+		end += message.remaining();
+		ByteBuffer oldest;
+		while (null != (oldest = messages.peek())
+				&& end - start - oldest.remaining() >= retention) {
+			messages.poll();
+			start += oldest.remaining();
+		}
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return offset after the last byte of the newest message
+	 */
+	long end() {
+		return end;
+	}
+
+	/**
+	 * Take back the messages from an offset, which are forgotten until they
+	 * are moved again.
+	 *
+	 * @param offset
+	 *            of the first byte the client did not receive
+	 * @return the messages from the offset, in write mode like the ones of the
+	 *         queue, or {@code null} if the offset is not kept
+	 */
+	ArrayDeque<ByteBuffer> rewind(long offset) {
+		if (offset < start || offset > end) {
+			return null;
+		}
+		ArrayDeque<ByteBuffer> replay = new ArrayDeque<>();
+		while (end > offset) {
+			ByteBuffer message = messages.pollLast();
+			end -= message.remaining();
+			if (end < offset) { // received in part
+				int received = (int) (offset - end);
+				ByteBuffer head = message.duplicate();
+				head.limit(received);
+				messages.add(head.slice());
+				message = message.duplicate();
+				message.position(received);
+				end = offset;
+			}
+			ByteBuffer bb = message.slice();
+			bb.position(bb.limit());
+			replay.addFirst(bb);
+		}
+		return replay;
+	}
+}
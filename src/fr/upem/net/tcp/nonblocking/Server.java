@@ -3,6 +3,10 @@ package fr.upem.net.tcp.nonblocking;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
@@ -10,14 +14,23 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import java.util.zip.Deflater;
+
+import fr.upem.net.tcp.nonblocking.LoopProfiler.Phase;
 
 /**
  * Server for the cat in non-blocking mode.
@@ -28,28 +41,122 @@ import java.util.logging.SimpleFormatter;
 public class Server {
 	private static final Logger LOGGER = Logger.getLogger("ServerLogger");
 	private FileHandler fh;
-	/** Maximum nickname size in bytes (or length in ASCII). */
+	/** Default maximum nickname size in bytes (or length in ASCII). */
 	public static final int MAX_NICKSIZ = 15;
-	/** Maximum message size in bytes. */
+	/** Default maximum message size in bytes. */
 	public static final int MAX_MSGSIZ = 2048;
-	/** Maximum messages that a context can hold. */
+	/**
+	 * Highest version of the protocol. Clients of the version 2 receive the
+	 * ID of each nickname, and the public messages with the ID of their
+	 * sender and varints instead of sizes. They request it with their flags in
+	 * the highest bytes of the port sent at login, and the response to the
+	 * login then ends with the version and the flags granted. Servers of the
+	 * version 1 refuse such a port, so these clients need a server of the
+	 * version 2.
+	 */
+	public static final int PROTOCOL_VERSION = 2;
+	/**
+	 * Flag requested at login by clients of the version 2 which accept
+	 * compressed public messages.
+	 */
+	public static final int FLAG_COMPRESSION = 1;
+	/**
+	 * Flag requested at login by clients of the version 2 which only want
+	 * the presence of the nicknames they watch, instead of the list of the
+	 * connected clients and every join and leave.
+	 */
+	public static final int FLAG_PRESENCE = 2;
+	/**
+	 * Flag requested at login by clients of the version 2 which resume their
+	 * session after a dropped connection instead of logging in again.
+	 */
+	public static final int FLAG_RESUME = 4;
+	/** Maximum number of nicknames a client can watch. */
+	public static final int MAX_WATCHED = 1024;
+	/** Minimum size of the messages of a broadcast worth compressing. */
+	private static final int MIN_COMPRESSSIZ = 128;
+	/** Maximum number of messages in a batch. */
+	public static final int MAX_BATCH = 64;
+	/**
+	 * Maximum size in bytes of the messages of a batch, with their sizes, so
+	 * that the relayed batch fits in the buffer of a context.
+	 */
+	public static final int MAX_BATCHSIZ = 4000;
+	/** Default maximum messages that a context can hold. */
 	public static final int MAX_MSG = 100;
 	/** {@link Charset} used for encoding nicknames. */
 	public static final Charset CHARSET_NICKNAME = Charset.forName("ASCII");
 	/** {@link Charset} used for encoding messages. */
 	public static final Charset CHARSET_MSG = Charset.forName("UTF-8");
-	/** TIMEOUT client inactivity */
-	private static final int TIMEOUT = 5000;
-	/** Max time a client can be inactive before timeout */
-	public static final int MAX_INACTIVITY_COUNTER = 1;
-	private final ServerSocketChannel serverSocketChannel;
+	/**
+	 * Listeners bound to the port, more than one with SO_REUSEPORT, and to
+	 * the Unix domain socket if any.
+	 */
+	private final List<ServerSocketChannel> serverSocketChannels = new ArrayList<>();
+	private final ServerConfig config;
+	private final AdmissionControl admission;
+	/** Direct messages kept for offline clients. */
+	private final Mailboxes mailboxes;
+	private final LatencyTracer tracer;
+	private final LoopProfiler profiler;
+	private final BufferPool buffers;
+	/** Replaced as a whole when reloaded from the console. */
+	private volatile Limits limits;
 	private final Selector selector;
 	private final Set<SelectionKey> selectedKeys;
-	/** {@link HashMap} associating a client's nickname with its context. **/
-	private final HashMap<String, Context> clients = new HashMap<>();
-	private int numberConnected;
+	/** {@link NicknameTable} associating a client's nickname with its context. **/
+	private final NicknameTable clients = new NicknameTable();
+	/** Clients which want the presence of everyone, as before the flag. */
+	private final HashSet<Context> everyoneWatchers = new HashSet<>();
+	/** Clients watching the presence of a nickname, online or not. */
+	private final HashMap<Nickname, HashSet<Context>> watchers = new HashMap<>();
+	/** Sessions of the resumable clients, connected or not, by resume token. */
+	private final HashMap<Long, Context> sessions = new HashMap<>();
+	private final SecureRandom randomToken = new SecureRandom();
 	/** Last time timeout check was run */
 	private long lastTimeoutCheck;
+	/** {@link Context}s with data to write since the last flush. */
+	private final ArrayDeque<Context> dirtyContexts = new ArrayDeque<>();
+	/**
+	 * Clients of the private connections which can be relayed, by session ID:
+	 * the one who requested it, then the one who accepted it.
+	 */
+	private final HashMap<Long, Nickname[]> relaySessions = new HashMap<>();
+	/** Halves of relayed channels waiting for the other client. */
+	private final HashMap<RelayHalf, Context> pendingRelays = new HashMap<>();
+	/** Compress the broadcasts, only used by the thread of the selector. */
+	private final Deflater deflater = new Deflater();
+	private final byte[] deflaterInput = new byte[MAX_BATCHSIZ];
+	private final byte[] deflaterOutput = new byte[MAX_BATCHSIZ];
+
+	/**
+	 * Identifies the half of a relayed channel.
+	 */
+	private static final class RelayHalf {
+		private final long id;
+		private final byte role;
+		private final int channel;
+
+		private RelayHalf(long id, byte role, int channel) {
+			this.id = id;
+			this.role = role;
+			this.channel = channel;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RelayHalf)) {
+				return false;
+			}
+			RelayHalf half = (RelayHalf) obj;
+			return id == half.id && role == half.role && channel == half.channel;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(id, role, channel);
+		}
+	}
 
 	/* Server core */
 
@@ -62,8 +169,49 @@ public class Server {
 	 *             if some I/O errors occurs
 	 */
 	public Server(int port) throws IOException {
-		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(new InetSocketAddress(port));
+		this(ServerConfig.of(port));
+	}
+
+	/**
+	 * Constructor. The listeners are bound with {@code SO_REUSEPORT} if more
+	 * than one is requested, or only one is bound if the option is not
+	 * supported. A Unix domain socket is bound too if the configuration gives
+	 * its path, replacing any file left there.
+	 * 
+	 * @param config
+	 *            {@link ServerConfig} of the listening side
+	 * @throws IOException
+	 *             if some I/O errors occurs
+	 */
+	public Server(ServerConfig config) throws IOException {
+		this.config = config;
+		admission = new AdmissionControl(config);
+		mailboxes = new Mailboxes(config.getMailboxDirectory(), config.getMailboxSize());
+		tracer = new LatencyTracer(config.getTraceSample());
+		profiler = new LoopProfiler(config.getStallThreshold());
+		buffers = new BufferPool(config.isDirectBuffers());
+		limits = config.loadLimits();
+		int listeners = config.getListeners();
+		for (int i = 0; i < listeners; i++) {
+			ServerSocketChannel ssc = ServerSocketChannel.open();
+			serverSocketChannels.add(ssc);
+			if (listeners > 1) {
+				if (!ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					LOGGER.warning("SO_REUSEPORT not supported, only one listener");
+					listeners = 1;
+				} else {
+					ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+			}
+			ssc.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+		}
+		Path unixPath = config.getUnixPath();
+		if (unixPath != null) {
+			Files.deleteIfExists(unixPath);
+			ServerSocketChannel ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			serverSocketChannels.add(ssc);
+			ssc.bind(UnixDomainSocketAddress.of(unixPath), config.getBacklog());
+		}
 		selector = Selector.open();
 		selectedKeys = selector.selectedKeys();
 	}
@@ -79,14 +227,20 @@ public class Server {
 			SimpleFormatter formatter = new SimpleFormatter();
 			fh.setFormatter(formatter);
 
-			serverSocketChannel.configureBlocking(false);
-			serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+			for (ServerSocketChannel ssc : serverSocketChannels) {
+				ssc.configureBlocking(false);
+				ssc.register(selector, SelectionKey.OP_ACCEPT);
+			}
 			Set<SelectionKey> selectedKeys = selector.selectedKeys();
 			LOGGER.info("Server launched");
+			profiler.start();
 			while (!Thread.interrupted()) {
+				profiler.phase(Phase.OTHER);
 				printKeys();
 				LOGGER.fine("Starting select");
-				selector.select(TIMEOUT);
+				profiler.phase(Phase.SELECT);
+				selector.select(limits.getTimeout());
+				profiler.phase(Phase.OTHER);
 				long time = System.currentTimeMillis();
 				if (Thread.interrupted()) {
 					LOGGER.info("Shutdown");
@@ -96,14 +250,18 @@ public class Server {
 				LOGGER.fine("Select finished");
 				printSelectedKey();
 				try {
+					profiler.phase(Phase.TIMEOUTS);
 					processNonSelectedKeys(time);
 					processSelectedKeys();
+					profiler.phase(Phase.WRITE);
+					flushDirtyContexts();
 				} catch (IOException e) {
 					LOGGER.info("Shutdown");
 					shutdown();
 					return;
 				}
 				selectedKeys.clear();
+				profiler.endIteration();
 			}
 		} catch (IOException ioe) {
 			LOGGER.log(Level.SEVERE, ioe.toString(), ioe);
@@ -120,19 +278,26 @@ public class Server {
 	private void processSelectedKeys() throws IOException {
 		for (SelectionKey key : selectedKeys) {
 			if (key.isValid() && key.isAcceptable()) {
+				profiler.phase(Phase.ACCEPT);
 				doAccept(key);
 			}
 			try {
 				if (key.isValid() && key.isWritable()) {
+					profiler.phase(Phase.WRITE);
 					doWrite(key);
 				}
 				if (key.isValid() && key.isReadable()) {
+					profiler.phase(Phase.READ);
 					doRead(key);
 				}
 			} catch (IOException ioe) {
 				SocketChannel sc = (SocketChannel) key.channel();
 				LOGGER.warning(remoteAddressToString(sc) + ": " + ioe.toString());
-				silentlyClose(sc);
+				if (key.attachment() instanceof Context) {
+					((Context) key.attachment()).close();
+				} else {
+					silentlyClose(sc);
+				}
 			}
 		}
 	}
@@ -144,39 +309,205 @@ public class Server {
 	 *            current time
 	 */
 	private void processNonSelectedKeys(long time) {
-		if (time - lastTimeoutCheck > TIMEOUT) {
+		if (time - lastTimeoutCheck > limits.getTimeout()) {
 			lastTimeoutCheck = time;
+			admission.purge(time);
+			expireSessions(time);
 			Set<SelectionKey> tmp = new HashSet<>(selector.keys());
 			tmp.removeAll(selectedKeys);
 			for (SelectionKey key : selector.keys()) {
-				Context context = (Context) key.attachment();
-				if (null != context) { // not server key
-					context.checkForTimeout();
+				if (key.attachment() instanceof Context) { // not server key nor relay
+					((Context) key.attachment()).checkForTimeout();
 				}
 			}
 		}
 	}
 
 	/**
-	 * Accept a new client connection.
+	 * Unregister the sessions whose connection was lost for longer than the
+	 * grace period, or whose queue overflowed meanwhile: their leave is only
+	 * broadcast now.
+	 * 
+	 * @param time
+	 *            current time
+	 */
+	private void expireSessions(long time) {
+		List<Context> expired = new ArrayList<>();
+		for (Context session : sessions.values()) {
+			if (session.hasExpired(time, config.getResumeGrace())) {
+				expired.add(session);
+			}
+		}
+		for (Context session : expired) {
+			session.expire();
+		}
+	}
+
+	/**
+	 * Write to every {@link Context} which has received data to send during
+	 * this iteration. Contexts made dirty while flushing, for instance when a
+	 * client leaves, are flushed too.
+	 */
+	void flushDirtyContexts() {
+		Context context;
+		while (null != (context = dirtyContexts.poll())) {
+			profiler.context(context);
+			context.flush();
+		}
+		profiler.context(null);
+	}
+
+	/**
+	 * Accept the pending client connections of a listener, up to the accept
+	 * budget so that a reconnection storm does not starve the connected
+	 * clients. A connection which fails is closed alone, and a failure of the
+	 * listener, such as too many open files, ends the accepts until the next
+	 * selection: the listener stays open.
 	 * 
 	 * @param key
-	 *            {@link SelectionKey} associated to new client.
+	 *            {@link SelectionKey} of the listener.
+	 */
+	private void doAccept(SelectionKey key) {
+		ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < config.getAcceptBudget(); i++) {
+			SocketChannel sc;
+			try {
+				sc = ssc.accept();
+			} catch (IOException ioe) {
+				LOGGER.warning("Cannot accept: " + ioe);
+				return;
+			}
+			if (sc == null) {
+				return;
+			}
+			try {
+				accept(sc, time);
+			} catch (IOException ioe) {
+				LOGGER.warning(remoteAddressToString(sc) + ": " + ioe);
+				silentlyClose(sc);
+			}
+		}
+	}
+
+	/**
+	 * Register an accepted connection with a new {@link Context}. The
+	 * connections of an address over its caps are closed before any
+	 * {@code Context} is allocated. Connections through the Unix domain
+	 * socket come from the host itself and are not capped.
+	 * 
+	 * @param sc
+	 *            {@link SocketChannel} of the connection
+	 * @param time
+	 *            of the accepts, in milliseconds since the epoch
 	 * @throws IOException
-	 *             if some I/O error occurs on server's side.
+	 *             if some I/O error occurs on the connection
 	 */
-	private void doAccept(SelectionKey key) throws IOException {
-		SocketChannel sc = serverSocketChannel.accept();
-		if (sc == null) {
+	private void accept(SocketChannel sc, long time) throws IOException {
+		SocketAddress remote = sc.getRemoteAddress();
+		InetAddress address = null;
+		if (remote instanceof InetSocketAddress) {
+			address = ((InetSocketAddress) remote).getAddress();
+		} else if (!(remote instanceof UnixDomainSocketAddress)) {
+			silentlyClose(sc); // not connected anymore
 			return;
 		}
-		sc.configureBlocking(false);
-		Context context = Context.create(this, sc);
-		SelectionKey clientKey = sc.register(selector, SelectionKey.OP_READ, context);
-		context.setSelectionKey(clientKey);
+		if (address != null && !admission.admit(address, time)) {
+			LOGGER.fine(remoteAddressToString(sc) + " refused");
+			silentlyClose(sc);
+			return;
+		}
+		try {
+			sc.configureBlocking(false);
+			if (address != null) {
+				setSocketOptions(sc);
+			}
+			SelectionKey clientKey = sc.register(selector, SelectionKey.OP_READ);
+			clientKey.attach(Context.create(this, SocketConnection.of(sc, clientKey), address));
+		} catch (IOException ioe) {
+			connectionClosed(address);
+			throw ioe;
+		}
 		LOGGER.info(remoteAddressToString(sc) + " connected");
 	}
 
+	/**
+	 * Apply the socket options of the {@link Limits} to a TCP connection.
+	 * 
+	 * @param sc
+	 *            {@link SocketChannel} of the connection
+	 * @throws IOException
+	 *             if some I/O error occurs
+	 */
+	private void setSocketOptions(SocketChannel sc) throws IOException {
+		Limits limits = this.limits;
+		sc.setOption(StandardSocketOptions.TCP_NODELAY, limits.isTcpNoDelay());
+		if (limits.getSendBuffer() > 0) {
+			sc.setOption(StandardSocketOptions.SO_SNDBUF, limits.getSendBuffer());
+		}
+		if (limits.getReceiveBuffer() > 0) {
+			sc.setOption(StandardSocketOptions.SO_RCVBUF, limits.getReceiveBuffer());
+		}
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return current {@link Limits} of the clients
+	 */
+	public Limits getLimits() {
+		return limits;
+	}
+
+	/**
+	 * Reload the {@link Limits} from the configuration file, keeping the ones
+	 * given on the command line. Called from any thread: the connected
+	 * clients are kept, each limit takes effect as told by {@link Limits}.
+	 * 
+	 * @return the changed limits
+	 * @throws IOException
+	 *             if the configuration file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the new limits are invalid, the current ones are kept
+	 */
+	public List<String> reloadLimits() throws IOException {
+		Limits reloaded = config.loadLimits();
+		List<String> changes = limits.changes(reloaded);
+		limits = reloaded;
+		LOGGER.info("Limits reloaded: " + changes);
+		return changes;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return {@link LatencyTracer} of the frames received by the server
+	 */
+	public LatencyTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return {@link LoopProfiler} of the selector loop
+	 */
+	public LoopProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Count a connection accepted from an address as closed.
+	 * 
+	 * @param address
+	 *            of the client, {@code null} for the Unix domain socket
+	 */
+	void connectionClosed(InetAddress address) {
+		if (address != null) {
+			admission.release(address);
+		}
+	}
+
 	/**
 	 * Perform a read operation on {@link SelectionKey}.
 	 * 
@@ -186,8 +517,14 @@ public class Server {
 	 *             if disconnected from client
 	 */
 	private void doRead(SelectionKey key) throws IOException {
+		if (key.attachment() instanceof Relay.End) {
+			((Relay.End) key.attachment()).doRead();
+			return;
+		}
 		Context context = (Context) key.attachment();
+		profiler.context(context);
 		context.doRead();
+		profiler.context(null);
 	}
 
 	/**
@@ -199,8 +536,14 @@ public class Server {
 	 *             if disconnected from client
 	 */
 	private void doWrite(SelectionKey key) throws IOException {
+		if (key.attachment() instanceof Relay.End) {
+			((Relay.End) key.attachment()).doWrite();
+			return;
+		}
 		Context context = (Context) key.attachment();
+		profiler.context(context);
 		context.doWrite();
+		profiler.context(null);
 	}
 
 	/**
@@ -226,50 +569,66 @@ public class Server {
 	 *             if some I/O error occurs
 	 */
 	public void shutdown() throws IOException {
-		serverSocketChannel.close();
+		profiler.stop();
+		mailboxes.force();
+		for (ServerSocketChannel ssc : serverSocketChannels) {
+			ssc.close();
+		}
+		if (config.getUnixPath() != null) {
+			Files.deleteIfExists(config.getUnixPath());
+		}
 	}
 
 	/**
 	 * Print server's usage.
 	 */
 	public static void usage() {
-		System.out.println("Usage server: port");
+		System.out.println("Usage server: port [--backlog=n] [--listeners=n] [--accept-budget=n]"
+				+ " [--max-per-ip=n] [--login-rate=n] [--login-burst=n] [--trace-sample=n]"
+				+ " [--stall-ms=n] [--unix=path] [--mailbox-dir=path] [--mailbox-size=n]"
+				+ " [--resume-grace=ms] [--resume-buffer=n] [--direct-buffers=true|false]"
+				+ " [--config=path] [--max-nick-size=n]"
+				+ " [--max-msg-size=n] [--max-queue=n] [--timeout-ms=n] [--max-inactivity=n]"
+				+ " [--buffer-size=n] [--tcp-nodelay=true|false] [--send-buffer=n]"
+				+ " [--receive-buffer=n]");
 	}
 
 	/* Trigger */
 
 	/**
-	 * Notify all connected clients that a new client has joined.
+	 * Notify the watchers of a nickname that its client has joined: the
+	 * clients which want the presence of everyone, and the ones which watch
+	 * this nickname.
 	 * 
 	 * @param nickname
 	 *            of client who joined
 	 */
-	private void notifyClientHasJoined(String nickname) {
-		for (SelectionKey key : selector.keys()) {
-			Context context = (Context) key.attachment();
-			if (context == null) {
-				// server key
-				continue;
-			}
+	private void notifyClientHasJoined(Nickname nickname) {
+		for (Context context : everyoneWatchers) {
 			context.clientHasJoined(nickname);
 		}
+		HashSet<Context> contexts = watchers.get(nickname);
+		if (null != contexts) {
+			for (Context context : contexts) {
+				context.clientHasJoined(nickname);
+			}
+		}
 	}
 
 	/**
-	 * Notify all connected clients that a new client has left.
+	 * Notify the watchers of a nickname that its client has left.
 	 * 
-	 * @param bbNickname
-	 *            {@link ByteBuffer} containing client's nickname who left
+	 * @param nickname
+	 *            of client who left
 	 */
-	private void notifyClientHasLeft(ByteBuffer bbNickname) {
-		for (SelectionKey key : selector.keys()) {
-			if (key.isValid()) {
-				Context context = (Context) key.attachment();
-				if (context == null) {
-					// server key
-					continue;
-				}
-				context.clientHasLeft(bbNickname.duplicate());
+	private void notifyClientHasLeft(Nickname nickname) {
+		for (Context context : everyoneWatchers) {
+			context.clientHasLeft(nickname);
+		}
+		HashSet<Context> contexts = watchers.get(nickname);
+		if (null != contexts) {
+			for (Context context : contexts) {
+				context.clientHasLeft(nickname);
 			}
 		}
 	}
@@ -277,20 +636,88 @@ public class Server {
 	/* Request from Context */
 
 	/**
-	 * Send a message to all connected clients.
+	 * Flush a {@link Context} at the end of the current iteration.
 	 * 
-	 * @param bbmsg
-	 *            {@link ByteBuffer} containing message to send.
+	 * @param context
+	 *            with data to write
 	 */
-	public void sendMessage(ByteBuffer bbmsg) {
-		for (SelectionKey key : selector.keys()) {
-			Context context = (Context) key.attachment();
-			if (context == null) {
-				// server key
+	void markDirty(Context context) {
+		dirtyContexts.add(context);
+	}
+
+	/**
+	 * Send public messages to all connected clients, in the packet of their
+	 * protocol. The messages are only compressed if a recipient accepts it.
+	 * 
+	 * @param broadcast
+	 *            messages to send
+	 */
+	void sendMessage(Broadcast broadcast) {
+		for (Context context : clients.contexts()) {
+			if (context.getVersion() < 2) {
+				context.registerMessage(broadcast.packet().duplicate());
 				continue;
 			}
-			context.registerMessage(bbmsg.duplicate());
+			context.clientSends(broadcast.sender());
+			ByteBuffer bbCompressed = context.acceptsCompression()
+					? broadcast.packetCompressed() : null;
+			if (null != bbCompressed) {
+				context.registerMessage(bbCompressed.duplicate());
+			} else {
+				context.registerMessage(broadcast.packetV2().duplicate());
+			}
+		}
+	}
+
+	/**
+	 * Compress public messages once for all the clients which accept it.
+	 * 
+	 * <pre>
+	 * +--------+-----------+--------+--------+-------------------+-------------------------------+
+	 * | opcode | sender ID | count  | length | compressed length | deflate(count * (size | msg)) |
+	 * +--------+-----------+--------+--------+-------------------+-------------------------------+
+	 * |   31   |  varint   | varint | varint |      varint       |             bytes             |
+	 * +--------+-----------+--------+--------+-------------------+-------------------------------+
+	 * </pre>
+	 * 
+	 * @param sender
+	 *            of the messages
+	 * @param count
+	 *            number of messages
+	 * @param bbmsgs
+	 *            {@link ByteBuffer} in read mode containing the messages, each
+	 *            one prefixed by its size as a varint
+	 * @return the packet, or {@code null} if the messages are too small or do
+	 *         not compress well
+	 */
+	ByteBuffer compressMessages(Nickname sender, int count, ByteBuffer bbmsgs) {
+		int length = bbmsgs.remaining();
+		if (length < MIN_COMPRESSSIZ || length > deflaterInput.length) {
+			return null;
+		}
+		bbmsgs.get(deflaterInput, 0, length);
+		deflater.reset();
+		deflater.setInput(deflaterInput, 0, length);
+		deflater.finish();
+		int compressedLength = 0;
+		int limit = length - length / 8; // saves at least an eighth
+		while (!deflater.finished() && compressedLength < limit) {
+			compressedLength += deflater.deflate(deflaterOutput, compressedLength,
+					limit - compressedLength);
 		}
+		if (!deflater.finished()) {
+			return null;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(Byte.BYTES + Varints.size(sender.getId())
+				+ Varints.size(count) + Varints.size(length) + Varints.size(compressedLength)
+				+ compressedLength);
+		bb.put((byte) 31);
+		Varints.put(bb, sender.getId());
+		Varints.put(bb, count);
+		Varints.put(bb, length);
+		Varints.put(bb, compressedLength);
+		bb.put(deflaterOutput, 0, compressedLength);
+		return bb;
 	}
 
 	/**
@@ -300,75 +727,225 @@ public class Server {
 	 *            of registered client
 	 * @param context
 	 *            associated with this client
-	 * @return {@code true} if client has been registered, {@code false}
-	 *         otherwise.
+	 * @return the interned nickname of the client if it has been registered,
+	 *         {@code null} otherwise.
 	 */
-	public boolean registerClient(String nickname, Context context) {
-		if (null != clients.putIfAbsent(nickname, context)) {
-			return false;
+	public Nickname registerClient(Nickname nickname, Context context) {
+		Nickname interned = clients.register(nickname, context);
+		if (null == interned) {
+			return null;
 		}
-		numberConnected++;
-		notifyClientHasJoined(nickname);
-		LOGGER.info(context.remoteAddressToString() + " has joined as " + nickname);
-		return true;
+		if (!context.hasPresenceOnInterest()) {
+			everyoneWatchers.add(context);
+		}
+		notifyClientHasJoined(interned);
+		LOGGER.info(context.remoteAddressToString() + " has joined as " + interned);
+		return interned;
 	}
 
 	/**
 	 * Unregister a client on server.
 	 * 
 	 * @param nickname
-	 *            of unregistered client
+	 *            interned nickname of unregistered client
 	 * @param context
 	 *            associated with this client
 	 */
-
-	public void unregisterClient(String nickname, Context context) {
-		if (null != clients.remove(nickname)) {
-			numberConnected--;
-			notifyClientHasLeft(context.getBbNickname().duplicate());
+	public void unregisterClient(Nickname nickname, Context context) {
+		if (clients.unregister(nickname, context)) {
+			everyoneWatchers.remove(context);
+			sessions.remove(context.getResumeToken(), context);
+			for (Nickname watched : context.getWatched()) {
+				removeWatcher(watched, context);
+			}
+			relaySessions.values()
+					.removeIf(peers -> peers[0].equals(nickname) || peers[1].equals(nickname));
+			notifyClientHasLeft(nickname);
 			LOGGER.info(nickname + " has left");
 		}
 	}
 
+	/**
+	 * Issue the resume token of a client which asked to resume its session
+	 * after a dropped connection.
+	 * 
+	 * @param context
+	 *            of the registered client
+	 * @return the token, never 0
+	 */
+	long newResumeToken(Context context) {
+		long token;
+		do {
+			token = randomToken.nextLong();
+		} while (token == 0 || sessions.containsKey(token));
+		sessions.put(token, context);
+		return token;
+	}
+
+	/**
+	 * Find the session a client resumes with its token. The nickname must be
+	 * the one of the session, so that a token alone is not enough.
+	 * 
+	 * @param nickname
+	 *            of the session
+	 * @param token
+	 *            resume token of the session
+	 * @return {@link Context} of the session, connected or not, or
+	 *         {@code null} if unknown or expired
+	 */
+	Context findSession(Nickname nickname, long token) {
+		Context session = sessions.get(token);
+		if (null == session || !session.getNickname().equals(nickname)) {
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return milliseconds a session stays resumable after its connection was
+	 *         lost
+	 */
+	int getResumeGrace() {
+		return config.getResumeGrace();
+	}
+
+	/**
+	 * Getter.
+	 * 
+	 * @return bytes of the last messages sent to a resumable client, kept to
+	 *         send them again
+	 */
+	int getResumeBuffer() {
+		return config.getResumeBuffer();
+	}
+
+	/**
+	 * Lend an input buffer with its readers, sized by the current limits.
+	 * 
+	 * @param context
+	 *            on which the commands read are run
+	 * @return an instance of {@link CommandInput}
+	 */
+	CommandInput borrowInput(Context context) {
+		return buffers.borrowInput(context, limits);
+	}
+
+	/**
+	 * Take back an input buffer, empty and between commands.
+	 * 
+	 * @param input
+	 *            lent by {@link #borrowInput(Context)}
+	 */
+	void releaseInput(CommandInput input) {
+		buffers.releaseInput(input, limits);
+	}
+
+	/**
+	 * Lend an output buffer, sized by the current limits.
+	 * 
+	 * @return {@link ByteBuffer} empty, in write mode
+	 */
+	ByteBuffer borrowOutput() {
+		return buffers.borrowOutput(limits);
+	}
+
+	/**
+	 * Take back an output buffer, whose bytes are dropped.
+	 * 
+	 * @param bb
+	 *            lent by {@link #borrowOutput()}
+	 */
+	void releaseOutput(ByteBuffer bb) {
+		buffers.releaseOutput(bb, limits);
+	}
+
+	/**
+	 * Watch the presence of a nickname for a client, which is told right away
+	 * if the nickname is online.
+	 * 
+	 * @param nickname
+	 *            watched, online or not
+	 * @param context
+	 *            of the client
+	 */
+	void addWatcher(Nickname nickname, Context context) {
+		watchers.computeIfAbsent(nickname, n -> new HashSet<>()).add(context);
+		Context watched = clients.get(nickname);
+		if (null != watched) {
+			context.clientHasJoined(watched.getNickname());
+		}
+	}
+
+	/**
+	 * Stop watching the presence of a nickname for a client.
+	 * 
+	 * @param nickname
+	 *            watched
+	 * @param context
+	 *            of the client
+	 */
+	void removeWatcher(Nickname nickname, Context context) {
+		HashSet<Context> contexts = watchers.get(nickname);
+		if (null != contexts && contexts.remove(context) && contexts.isEmpty()) {
+			watchers.remove(nickname);
+		}
+	}
+
 	/**
 	 * Getter.
 	 * 
 	 * @return number of connected clients
 	 */
 	public int getNumberConnected() {
-		return numberConnected;
+		return clients.size();
 	}
 
 	/**
 	 * Give nicknames of all connected clients.
 	 * 
+	 * @param version
+	 *            of the protocol used by the client
 	 * @return {@link ByteBuffer} containing each connected client's nickname
-	 *         prefixed by its size.
+	 *         prefixed by its size, and by its ID in the protocol version 2.
 	 */
-	public ByteBuffer getConnectedNicknames() {
-		ArrayList<ByteBuffer> list = new ArrayList<>();
+	public ByteBuffer getConnectedNicknames(int version) {
+		if (version >= 2) {
+			return getConnectedNicknamesV2();
+		}
 		int totalSize = 0;
-		for (SelectionKey key : selector.keys()) {
-			Context context = (Context) key.attachment();
-			if (context == null) {
-				// server key
-				continue;
-			}
-			ByteBuffer bbNickname = context.getBbNickname();
-			if (null == bbNickname) {
-				continue;
-			}
-			bbNickname.flip();
-			totalSize += bbNickname.remaining();
-			list.add(bbNickname);
+		for (Nickname nickname : clients.nicknames()) {
+			totalSize += Integer.BYTES + nickname.size();
 		}
-		ByteBuffer bbmsg = ByteBuffer
-				.allocate(Byte.BYTES + Integer.BYTES + Integer.BYTES * list.size() + totalSize);
+		ByteBuffer bbmsg = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + totalSize);
 		bbmsg.put((byte) 3);
-		bbmsg.putInt(list.size());
-		list.forEach(bb -> {
-			bbmsg.putInt(bb.remaining());
-			bbmsg.put(bb);
+		bbmsg.putInt(clients.size());
+		clients.nicknames().forEach(nickname -> nickname.putIn(bbmsg));
+		return bbmsg;
+	}
+
+	/**
+	 * <pre>
+	 * +--------+--------+-------------------------------+
+	 * | opcode | count  | count * (ID | size | nickname) |
+	 * +--------+--------+-------------------------------+
+	 * |   26   | varint |  varint | varint |   bytes    |
+	 * +--------+--------+-------------------------------+
+	 * </pre>
+	 */
+	private ByteBuffer getConnectedNicknamesV2() {
+		int totalSize = 0;
+		for (Nickname nickname : clients.nicknames()) {
+			totalSize += Varints.size(nickname.getId()) + nickname.compactSize();
+		}
+		ByteBuffer bbmsg = ByteBuffer
+				.allocate(Byte.BYTES + Varints.size(clients.size()) + totalSize);
+		bbmsg.put((byte) 26);
+		Varints.put(bbmsg, clients.size());
+		clients.nicknames().forEach(nickname -> {
+			Varints.put(bbmsg, nickname.getId());
+			nickname.putCompactIn(bbmsg);
 		});
 		return bbmsg;
 	}
@@ -381,16 +958,66 @@ public class Server {
 	 * @param toNickname
 	 *            nickname of client B
 	 */
-	public void askPermissionPrivateConnection(String fromNickname, String toNickname) {
+	public void askPermissionPrivateConnection(Nickname fromNickname, Nickname toNickname) {
 		Context context = clients.get(toNickname);
 		if (null == context) {
 			LOGGER.warning("Asking for private connection from " + fromNickname
-					+ "with unknown client " + toNickname);
+					+ " with unknown client " + toNickname);
 			return;
 		}
 		context.askPrivateCommunication(fromNickname);
 	}
 
+	/**
+	 * Route a direct message to its recipient through the registry of the
+	 * clients, without any private connection. The message of an offline
+	 * recipient is kept in its mailbox until it logs in, if its nickname is
+	 * known, and the sender is told whether it was kept.
+	 * 
+	 * @param fromNickname
+	 *            interned nickname of the sender
+	 * @param toNickname
+	 *            nickname of the recipient, online or not
+	 * @param bbmsg
+	 *            {@link ByteBuffer} of the message, in read mode
+	 * @param sender
+	 *            {@link Context} of the sender
+	 */
+	public void sendDirectMessage(Nickname fromNickname, Nickname toNickname, ByteBuffer bbmsg,
+			Context sender) {
+		long time = System.currentTimeMillis();
+		Context context = clients.get(toNickname);
+		if (null != context) {
+			context.directMessage((byte) 0, fromNickname, time, bbmsg);
+			return;
+		}
+		boolean kept;
+		try {
+			kept = mailboxes.append(toNickname, fromNickname, time, bbmsg);
+		} catch (IOException ioe) {
+			LOGGER.log(Level.WARNING, "Mailbox of " + toNickname + ": " + ioe, ioe);
+			kept = false;
+		}
+		sender.directMessageStatus(kept ? (byte) 1 : (byte) 2, toNickname);
+	}
+
+	/**
+	 * Take the direct messages kept for a client who logged in.
+	 * 
+	 * @param nickname
+	 *            of the client
+	 * @return {@link ByteBuffer} of a packet 37 per message, in write mode, or
+	 *         {@code null} if none was kept
+	 */
+	public ByteBuffer drainMailbox(Nickname nickname) {
+		try {
+			return mailboxes.drain(nickname);
+		} catch (IOException ioe) {
+			LOGGER.log(Level.WARNING, "Mailbox of " + nickname + ": " + ioe, ioe);
+			return null;
+		}
+	}
+
 	/**
 	 * Transmit accept private connection request from client B to client A.
 	 * 
@@ -405,15 +1032,85 @@ public class Server {
 	 * @param id
 	 *            that client A will need to provide to authenticate
 	 */
-	public void acceptPrivateConnection(String fromNickname, String toNickname, InetAddress inet,
+	public void acceptPrivateConnection(Nickname fromNickname, Nickname toNickname, InetAddress inet,
 			int port, long id) {
 		Context context = clients.get(toNickname);
 		if (null == context) {
 			LOGGER.warning("Accept for private connection from " + fromNickname
-					+ "with unknown client " + toNickname);
+					+ " with unknown client " + toNickname);
 			return;
 		}
 		context.acceptPrivateCommunication(fromNickname, inet, port, id);
+		relaySessions.put(id, new Nickname[] { context.getNickname(), fromNickname });
+	}
+
+	/**
+	 * Open the half of a private channel to relay, and ask the other client of
+	 * the private connection to open the other half.
+	 * 
+	 * @param context
+	 *            of the connection opened by a client to be relayed
+	 * @param id
+	 *            session ID of the private connection
+	 * @param role
+	 *            0 if opened by the client who requested the private
+	 *            connection, 1 if opened by the client who accepted it
+	 * @param channel
+	 *            number of the channel, chosen by the client who opened it
+	 * @return {@code true} if the other client has been asked, {@code false}
+	 *         if the private connection is unknown or the channel already
+	 *         opened
+	 */
+	public boolean openRelay(Context context, long id, byte role, int channel) {
+		Nickname[] peers = relaySessions.get(id);
+		if (null == peers) {
+			return false;
+		}
+		Context other = clients.get(peers[1 - role]);
+		if (null == other) {
+			return false;
+		}
+		if (null != pendingRelays.putIfAbsent(new RelayHalf(id, role, channel), context)) {
+			return false;
+		}
+		other.askRelay(id, role, channel);
+		return true;
+	}
+
+	/**
+	 * Join the half of a private channel opened by the other client, and start
+	 * relaying.
+	 * 
+	 * @param context
+	 *            of the connection opened by the client asked to join
+	 * @param id
+	 *            session ID of the private connection
+	 * @param role
+	 *            of the client who opened the channel
+	 * @param channel
+	 *            number of the channel
+	 * @return {@code true} if the channel is relayed, {@code false} if no such
+	 *         half was waiting
+	 */
+	public boolean joinRelay(Context context, long id, byte role, int channel) {
+		Context opener = pendingRelays.remove(new RelayHalf(id, role, channel));
+		if (null == opener) {
+			return false;
+		}
+		opener.relayWith(context);
+		LOGGER.info("Relaying channel " + channel + " of session " + id);
+		return true;
+	}
+
+	/**
+	 * Forget the half of a private channel which was waiting for the other
+	 * client.
+	 * 
+	 * @param context
+	 *            of the closed connection
+	 */
+	public void forgetRelay(Context context) {
+		pendingRelays.values().remove(context);
 	}
 
 	/**
@@ -424,11 +1121,11 @@ public class Server {
 	 * @param toNickname
 	 *            nickname of client A
 	 */
-	public void refusePrivateConnection(String fromNickname, String toNickname) {
+	public void refusePrivateConnection(Nickname fromNickname, Nickname toNickname) {
 		Context context = clients.get(toNickname);
 		if (null == context) {
 			LOGGER.warning("Refuse for private connection from " + fromNickname
-					+ "with unknown client " + toNickname);
+					+ " with unknown client " + toNickname);
 			return;
 		}
 		context.refusePrivateCommunication(fromNickname);
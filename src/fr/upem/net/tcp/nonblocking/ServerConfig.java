@@ -0,0 +1,351 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings of the listening side of a {@link Server}, given on the command
+ * line after the port as {@code --name=value}, and where its {@link Limits}
+ * come from: a configuration file, overridden by the command line.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class ServerConfig {
+	/** Default length of the queue of pending connections of a listener. */
+	public static final int DEFAULT_BACKLOG = 1024;
+	/** Default maximum connections accepted per wakeup of the selector. */
+	public static final int DEFAULT_ACCEPT_BUDGET = 64;
+	/** Default maximum simultaneous connections from one address. */
+	public static final int DEFAULT_MAX_PER_IP = 64;
+	/** Default connections per second allowed from one address. */
+	public static final int DEFAULT_LOGIN_RATE = 20;
+	/** Default connections allowed at once from one address. */
+	public static final int DEFAULT_LOGIN_BURST = 40;
+	/** Default number of received frames per traced frame. */
+	public static final int DEFAULT_TRACE_SAMPLE = 64;
+	/** Default milliseconds after which a busy iteration of the selector stalls. */
+	public static final int DEFAULT_STALL_THRESHOLD = 100;
+	/** Default size in bytes of the mailbox of an offline client. */
+	public static final int DEFAULT_MAILBOX_SIZE = 64 * 1024;
+	/** Default milliseconds a dropped session can be resumed. */
+	public static final int DEFAULT_RESUME_GRACE = 30000;
+	/** Default bytes of sent messages kept to resume a session. */
+	public static final int DEFAULT_RESUME_BUFFER = 64 * 1024;
+	private final int port;
+	private int backlog = DEFAULT_BACKLOG;
+	private int listeners = 1;
+	private int acceptBudget = DEFAULT_ACCEPT_BUDGET;
+	private int maxPerIp = DEFAULT_MAX_PER_IP;
+	private int loginRate = DEFAULT_LOGIN_RATE;
+	private int loginBurst = DEFAULT_LOGIN_BURST;
+	private Path unixPath;
+	private int traceSample = DEFAULT_TRACE_SAMPLE;
+	private int stallThreshold = DEFAULT_STALL_THRESHOLD;
+	private Path mailboxDirectory = Paths.get("mailboxes");
+	private int mailboxSize = DEFAULT_MAILBOX_SIZE;
+	private int resumeGrace = DEFAULT_RESUME_GRACE;
+	private int resumeBuffer = DEFAULT_RESUME_BUFFER;
+	private boolean directBuffers;
+	private Path limitsFile;
+	/** Limits given on the command line, by name. */
+	private final Map<String, String> limitOverrides = new LinkedHashMap<>();
+
+	private ServerConfig(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Static factory method to create a {@code ServerConfig} with the default
+	 * settings.
+	 *
+	 * @param port
+	 *            where the {@link Server} will listen
+	 * @return an instance of {@code ServerConfig}
+	 */
+	public static ServerConfig of(int port) {
+		return new ServerConfig(port);
+	}
+
+	/**
+	 * Static factory method to create a {@code ServerConfig} which binds no
+	 * listener, for a {@link MemoryHarness}.
+	 *
+	 * @return an instance of {@code ServerConfig}
+	 */
+	static ServerConfig withoutListeners() {
+		ServerConfig config = new ServerConfig(0);
+		config.listeners = 0;
+		return config;
+	}
+
+	/**
+	 * Static factory method to create a {@code ServerConfig} from the
+	 * arguments of the command line: the port, then the options
+	 * {@code --backlog}, {@code --listeners}, {@code --accept-budget},
+	 * {@code --max-per-ip}, {@code --login-rate}, {@code --login-burst},
+	 * {@code --trace-sample}, {@code --stall-ms}, {@code --unix}, the path of
+	 * a Unix domain socket, {@code --mailbox-dir}, the directory of the
+	 * mailboxes of the offline clients, {@code --mailbox-size},
+	 * {@code --resume-grace}, {@code --resume-buffer},
+	 * {@code --direct-buffers}, {@code true} to allocate the buffers of the
+	 * clients off-heap, {@code --config}, the path of the configuration file
+	 * of the {@link Limits}, and the limits themselves.
+	 *
+	 * @param args
+	 *            arguments of the command line
+	 * @return an instance of {@code ServerConfig}
+	 * @throws IllegalArgumentException
+	 *             if an argument is missing, unknown or not a positive number
+	 */
+	public static ServerConfig parse(String[] args) {
+		if (args.length < 1) {
+			throw new IllegalArgumentException("missing port");
+		}
+		ServerConfig config = new ServerConfig(Integer.parseInt(args[0]));
+		for (int i = 1; i < args.length; i++) {
+			String[] option = args[i].split("=", 2);
+			if (option.length != 2) {
+				throw new IllegalArgumentException(args[i]);
+			}
+			if (option[0].equals("--unix")) {
+				config.unixPath = Paths.get(option[1]);
+				continue;
+			}
+			if (option[0].equals("--mailbox-dir")) {
+				config.mailboxDirectory = Paths.get(option[1]);
+				continue;
+			}
+			if (option[0].equals("--config")) {
+				config.limitsFile = Paths.get(option[1]);
+				continue;
+			}
+			if (option[0].equals("--direct-buffers")) {
+				if (!option[1].equals("true") && !option[1].equals("false")) {
+					throw new IllegalArgumentException(args[i]);
+				}
+				config.directBuffers = Boolean.parseBoolean(option[1]);
+				continue;
+			}
+			String name = option[0].substring(Math.min(2, option[0].length()));
+			if (option[0].startsWith("--") && Limits.isLimit(name)) {
+				Limits.defaults().with(name, option[1]); // fail now if invalid
+				config.limitOverrides.put(name, option[1]);
+				continue;
+			}
+			int value = Integer.parseInt(option[1]);
+			if (value <= 0) {
+				throw new IllegalArgumentException(args[i]);
+			}
+			switch (option[0]) {
+			case "--backlog":
+				config.backlog = value;
+				break;
+			case "--listeners":
+				config.listeners = value;
+				break;
+			case "--accept-budget":
+				config.acceptBudget = value;
+				break;
+			case "--max-per-ip":
+				config.maxPerIp = value;
+				break;
+			case "--login-rate":
+				config.loginRate = value;
+				break;
+			case "--login-burst":
+				config.loginBurst = value;
+				break;
+			case "--trace-sample":
+				config.traceSample = value;
+				break;
+			case "--stall-ms":
+				config.stallThreshold = value;
+				break;
+			case "--mailbox-size":
+				config.mailboxSize = value;
+				break;
+			case "--resume-grace":
+				config.resumeGrace = value;
+				break;
+			case "--resume-buffer":
+				config.resumeBuffer = value;
+				break;
+			default:
+				throw new IllegalArgumentException(args[i]);
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return port where the {@link Server} listens
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return length of the queue of pending connections of each listener
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return number of listeners bound to the port with
+	 *         {@code SO_REUSEPORT}, so that the kernel spreads the new
+	 *         connections between their queues
+	 */
+	public int getListeners() {
+		return listeners;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return maximum connections accepted on a listener per wakeup of the
+	 *         selector
+	 */
+	public int getAcceptBudget() {
+		return acceptBudget;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return maximum simultaneous connections from one address
+	 */
+	public int getMaxPerIp() {
+		return maxPerIp;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return connections per second allowed from one address
+	 */
+	public int getLoginRate() {
+		return loginRate;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return connections allowed at once from one address
+	 */
+	public int getLoginBurst() {
+		return loginBurst;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return path of the Unix domain socket where the {@link Server} also
+	 *         listens, or {@code null}
+	 */
+	public Path getUnixPath() {
+		return unixPath;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return number of received frames per frame traced by the
+	 *         {@link LatencyTracer}
+	 */
+	public int getTraceSample() {
+		return traceSample;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return milliseconds after which an iteration of the selector loop
+	 *         busy out of select is reported as a stall by the
+	 *         {@link LoopProfiler}
+	 */
+	public int getStallThreshold() {
+		return stallThreshold;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return directory of the mailboxes of the offline clients
+	 */
+	public Path getMailboxDirectory() {
+		return mailboxDirectory;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return size in bytes of the mailbox of an offline client
+	 */
+	public int getMailboxSize() {
+		return mailboxSize;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return milliseconds a session stays resumable after its connection
+	 *         was lost
+	 */
+	public int getResumeGrace() {
+		return resumeGrace;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return bytes of the last messages sent to a resumable client, kept to
+	 *         send them again
+	 */
+	public int getResumeBuffer() {
+		return resumeBuffer;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return {@code true} if the buffers lent to the clients are allocated
+	 *         off-heap
+	 */
+	public boolean isDirectBuffers() {
+		return directBuffers;
+	}
+
+	/**
+	 * Load the {@link Limits}: the defaults, then the ones of the
+	 * configuration file if any, then the ones of the command line. Called
+	 * again to reload the file.
+	 *
+	 * @return an instance of {@link Limits}
+	 * @throws IOException
+	 *             if the configuration file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if a limit is unknown or invalid, or the limits are not
+	 *             consistent
+	 */
+	public Limits loadLimits() throws IOException {
+		Limits limits = Limits.defaults();
+		if (limitsFile != null) {
+			limits = limits.load(limitsFile);
+		}
+		for (Map.Entry<String, String> override : limitOverrides.entrySet()) {
+			limits = limits.with(override.getKey(), override.getValue());
+		}
+		return limits.check();
+	}
+}
@@ -0,0 +1,95 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link Connection} of a {@link SocketChannel} registered on the selector of
+ * the server.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+class SocketConnection implements Connection {
+	private final SocketChannel sc;
+	private final SelectionKey key;
+
+	private SocketConnection(SocketChannel sc, SelectionKey key) {
+		this.sc = sc;
+		this.key = key;
+	}
+
+	/**
+	 * Static factory method to create a {@code SocketConnection}.
+	 *
+	 * @param sc
+	 *            {@link SocketChannel} of the client
+	 * @param key
+	 *            {@link SelectionKey} of the channel
+	 * @return an instance of {@code SocketConnection}
+	 */
+	static SocketConnection of(SocketChannel sc, SelectionKey key) {
+		return new SocketConnection(sc, key);
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return {@link SocketChannel} of the client
+	 */
+	SocketChannel socketChannel() {
+		return sc;
+	}
+
+	/**
+	 * Getter.
+	 *
+	 * @return {@link SelectionKey} of the channel
+	 */
+	SelectionKey key() {
+		return key;
+	}
+
+	@Override
+	public int read(ByteBuffer bb) throws IOException {
+		return sc.read(bb);
+	}
+
+	@Override
+	public int write(ByteBuffer bb) throws IOException {
+		return sc.write(bb);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return key.isValid();
+	}
+
+	@Override
+	public int interestOps() {
+		return key.interestOps();
+	}
+
+	@Override
+	public void interestOps(int ops) {
+		key.interestOps(ops);
+	}
+
+	@Override
+	public void attach(Context context) {
+		key.attach(context);
+	}
+
+	@Override
+	public void close() {
+		Server.silentlyClose(sc);
+		key.cancel();
+	}
+
+	@Override
+	public String remoteAddressToString() {
+		return Server.remoteAddressToString(sc);
+	}
+}
@@ -0,0 +1,49 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Utility class for writing the variable length integers of the protocol
+ * version 2: 7 bits per byte, least significant group first, the high bit set
+ * on every byte but the last one.
+ *
+ * @author Cheneau and Lee
+ *
+ */
+public class Varints {
+
+	private Varints() {
+		// Utils class, no constructor
+	}
+
+	/**
+	 * Number of bytes needed to write a value.
+	 *
+	 * @param value
+	 *            positive or zero
+	 * @return number of bytes, between 1 and 5
+	 */
+	public static int size(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Write a value.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} in write mode
+	 * @param value
+	 *            positive or zero
+	 */
+	public static void put(ByteBuffer bb, int value) {
+		while ((value & ~0x7F) != 0) {
+			bb.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		bb.put((byte) value);
+	}
+}
@@ -0,0 +1,110 @@
+package fr.upem.net.tcp.reader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a batch of messages: a number of messages, then each message prefixed
+ * by its size. The messages are gathered, still prefixed by their size, in a
+ * single buffer so that they can be relayed at once.
+ */
+public class BatchReader implements Reader {
+	private enum State {
+		COUNT, MESSAGES;
+	}
+
+	private State state = State.COUNT;
+	private final ByteBuffer bb;
+	private final StringReader stringReader;
+	private final int maxCount;
+	private int count;
+	private int read;
+	/** Messages read, each one prefixed by its size. */
+	private final ByteBuffer bbMessages;
+	private int nbget;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bb
+	 *            {@link ByteBuffer} to read from
+	 * @param maxCount
+	 *            maximum number of messages in a batch
+	 * @param maxMsgSize
+	 *            maximum size of a message
+	 * @param maxBatchSize
+	 *            maximum size of the messages of a batch, with their sizes
+	 */
+	public BatchReader(ByteBuffer bb, int maxCount, int maxMsgSize, int maxBatchSize) {
+		this.bb = bb;
+		this.maxCount = maxCount;
+		stringReader = new StringReader(bb, maxMsgSize);
+		bbMessages = ByteBuffer.allocate(maxBatchSize);
+	}
+
+	private void processInt() {
+		bb.flip();
+		count = bb.getInt();
+		bb.compact();
+	}
+
+	@Override
+	public Status process() {
+		switch (state) {
+		case COUNT:
+			if (bb.position() < Integer.BYTES) {
+				return Status.REFILL;
+			}
+			processInt();
+			if (count <= 0 || count > maxCount) {
+				return Status.ERROR;
+			}
+			bbMessages.clear();
+			read = 0;
+			state = State.MESSAGES;
+			// no break !
+		case MESSAGES:
+			while (read < count) {
+				Status status = stringReader.process();
+				if (status != Status.DONE) {
+					return status;
+				}
+				ByteBuffer bbmsg = (ByteBuffer) stringReader.get();
+				bbmsg.flip();
+				if (bbMessages.remaining() < Integer.BYTES + bbmsg.remaining()) {
+					return Status.ERROR;
+				}
+				bbMessages.putInt(bbmsg.remaining());
+				bbMessages.put(bbmsg);
+				read++;
+			}
+			state = State.COUNT;
+			break;
+		default:
+			throw new IllegalStateException("this case should never happen");
+		}
+		return Status.DONE;
+	}
+
+	/**
+	 * @return {@link Object}:
+	 *         <ul>
+	 *         <li>{@code Integer} number of messages the first time</li>
+	 *         <li>{@link ByteBuffer} of the messages, each one prefixed by its
+	 *         size, the second time</li>
+	 *         </ul>
+	 */
+	@Override
+	public Object get() {
+		if (nbget++ % 2 == 0) {
+			return count;
+		}
+		return bbMessages;
+	}
+
+	@Override
+	public void reset() {
+		state = State.COUNT;
+		stringReader.reset();
+		nbget = 0;
+	}
+}
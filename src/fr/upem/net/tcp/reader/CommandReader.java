@@ -26,21 +26,42 @@ public class CommandReader implements Reader {
 	 **/
 	private final HashMap<Byte, Reader> readers = new HashMap<>();
 
-	public CommandReader(ByteBuffer bb, Map<Byte, Runnable> commands) {
+	/**
+	 * Constructor.
+	 * 
+	 * @param bb
+	 *            {@link ByteBuffer} of the input, in write mode
+	 * @param commands
+	 *            method to call for each opcode
+	 * @param maxNickSize
+	 *            maximum nickname size in bytes
+	 * @param maxMsgSize
+	 *            maximum message size in bytes
+	 */
+	public CommandReader(ByteBuffer bb, Map<Byte, Runnable> commands, int maxNickSize,
+			int maxMsgSize) {
 		state = State.OPCODE;
 		this.bb = Objects.requireNonNull(bb);
 		this.commands = commands;
-		init();
+		init(maxNickSize, maxMsgSize);
 	}
 
 	/**
 	 * Initialize {@code readers} {@link HashMap}.
 	 */
-	private void init() {
-		readers.put((byte) 0, new LoginReader(bb, Server.MAX_NICKSIZ)); // co_req
-		readers.put((byte) 4, new StringReader(bb, Server.MAX_MSGSIZ)); // pub_msg_req
-		readers.put((byte) 6, new StringReader(bb, Server.MAX_NICKSIZ)); // serv_priv_com_req
-		readers.put((byte) 8, new PrivateConnectionReader(bb, Server.MAX_NICKSIZ));
+	private void init(int maxNickSize, int maxMsgSize) {
+		readers.put((byte) 0, new LoginReader(bb, maxNickSize)); // co_req
+		readers.put((byte) 4, new StringReader(bb, maxMsgSize)); // pub_msg_req
+		readers.put((byte) 6, new StringReader(bb, maxNickSize)); // serv_priv_com_req
+		readers.put((byte) 8, new PrivateConnectionReader(bb, maxNickSize));
+		readers.put((byte) 24, new BatchReader(bb, Server.MAX_BATCH, maxMsgSize,
+				Server.MAX_BATCHSIZ)); // pub_batch_req
+		readers.put((byte) 32, new RelayReader(bb)); // relay_open_req
+		readers.put((byte) 34, new RelayReader(bb)); // relay_join_req
+		readers.put((byte) 36, new DirectMessageReader(bb, maxNickSize, maxMsgSize)); // dm_req
+		readers.put((byte) 40, new StringReader(bb, maxNickSize)); // watch_req
+		readers.put((byte) 41, new StringReader(bb, maxNickSize)); // unwatch_req
+		readers.put((byte) 43, new ResumeReader(bb, maxNickSize)); // resume_req
 	}
 
 	@Override
@@ -54,6 +75,11 @@ public class CommandReader implements Reader {
 			opcode = bb.get();
 			bb.compact();
 			state = State.COMMAND;
+			Reader reader = readers.get(opcode);
+			if (null != reader) { // start reading a new command
+				reader.reset();
+			}
+			// no break !
 		case COMMAND:
 			return processCommand();
 		default:
@@ -61,6 +87,15 @@ public class CommandReader implements Reader {
 		}
 	}
 
+	/**
+	 * Whether the next byte is the opcode of a new command.
+	 * 
+	 * @return {@code true} if no command is being read
+	 */
+	public boolean isBetweenCommands() {
+		return state == State.OPCODE;
+	}
+
 	@Override
 	public void reset() {
 		// state = State.OPCODE;
@@ -70,7 +105,6 @@ public class CommandReader implements Reader {
 	private Status processCommand() {
 		Reader reader = readers.get(opcode);
 		if (null != reader) { // if need more than opcode
-			reader.reset();
 			Status status = reader.process();
 			if (status != Status.DONE) {
 				return status;
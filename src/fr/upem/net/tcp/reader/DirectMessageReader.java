@@ -0,0 +1,73 @@
+package fr.upem.net.tcp.reader;
+
+import java.nio.ByteBuffer;
+
+import fr.upem.net.tcp.nonblocking.Nickname;
+
+public class DirectMessageReader implements Reader {
+	private enum State {
+		NICKNAME, MESSAGE,
+	}
+
+	private State state;
+	private final StringReader nicknameReader;
+	private final StringReader messageReader;
+	private Nickname toNickname;
+	private int nbget;
+
+	public DirectMessageReader(ByteBuffer bb, int maxLoginSize, int maxMsgSize) {
+		state = State.NICKNAME;
+		nicknameReader = new StringReader(bb, maxLoginSize);
+		messageReader = new StringReader(bb, maxMsgSize);
+	}
+
+	@Override
+	public Status process() {
+		Status status;
+		switch (state) {
+		case NICKNAME:
+			status = nicknameReader.process();
+			if (status != Status.DONE) {
+				return status;
+			}
+			ByteBuffer bbNickname = (ByteBuffer) nicknameReader.get();
+			bbNickname.flip();
+			toNickname = Nickname.of(bbNickname);
+			state = State.MESSAGE;
+			// no break !
+		case MESSAGE:
+			status = messageReader.process();
+			if (status != Status.DONE) {
+				return status;
+			}
+			state = State.NICKNAME;
+			break;
+		default:
+			throw new IllegalStateException("this case should never happen");
+		}
+		return Status.DONE;
+	}
+
+	/**
+	 * @return {@link Object}:
+	 *         <ul>
+	 *         <li>{@link Nickname} of the recipient, without ID, the first
+	 *         time</li>
+	 *         <li>{@link ByteBuffer} of the message, in write mode, the second
+	 *         time</li>
+	 *         </ul>
+	 */
+	@Override
+	public Object get() {
+		if (nbget++ % 2 == 0) {
+			return toNickname;
+		}
+		return messageReader.get();
+	}
+
+	@Override
+	public void reset() {
+		state = State.NICKNAME;
+		nbget = 0;
+	}
+}
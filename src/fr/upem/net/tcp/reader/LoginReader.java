@@ -2,7 +2,7 @@ package fr.upem.net.tcp.reader;
 
 import java.nio.ByteBuffer;
 
-import fr.upem.net.tcp.nonblocking.Server;
+import fr.upem.net.tcp.nonblocking.Nickname;
 
 public class LoginReader implements Reader {
 	private enum State {
@@ -12,8 +12,10 @@ public class LoginReader implements Reader {
 	private State state;
 	private final ByteBuffer bb;
 	private final StringReader stringReader;
-	private String nickname;
+	private Nickname nickname;
 	private int port;
+	private int version;
+	private int flags;
 	private int nbget;
 
 	private void processInt() {
@@ -38,16 +40,17 @@ public class LoginReader implements Reader {
 			}
 			ByteBuffer bbNickname = (ByteBuffer) stringReader.get();
 			bbNickname.flip();
-			nickname = Server.CHARSET_NICKNAME.decode(bbNickname).toString();
+			nickname = Nickname.of(bbNickname);
 			state = State.PORT;
 		case PORT:
 			if (bb.position() < Integer.BYTES) {
 				return Status.REFILL;
 			}
 			processInt();
-			if (port < 0 || port > 65535) {
-				return Status.ERROR;
-			}
+			// the highest bytes of the port are the protocol version and flags
+			version = Math.max(1, port >>> 24);
+			flags = port >>> 16 & 0xFF;
+			port &= 0xFFFF;
 			break;
 		default:
 			throw new IllegalStateException("should not be here");
@@ -58,16 +61,24 @@ public class LoginReader implements Reader {
 	/**
 	 * @return {@link Object}:
 	 * <ul>
-	 * 	<li>{@code String} nickname the first time</li>
+	 * 	<li>{@link Nickname} nickname, without ID, the first time</li>
 	 * 	<li>{@code Integer} port the second time</li>
+	 * 	<li>{@code Integer} protocol version requested the third time</li>
+	 * 	<li>{@code Integer} flags requested the fourth time</li>
 	 * </ul>
 	 */
 	@Override
 	public Object get() {
-		if (nbget++%2 == 0) {
+		switch (nbget++ % 4) {
+		case 0:
 			return nickname;
+		case 1:
+			return port;
+		case 2:
+			return version;
+		default:
+			return flags;
 		}
-		return port;
 	}
 
 	@Override
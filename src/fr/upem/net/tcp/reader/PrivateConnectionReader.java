@@ -2,7 +2,7 @@ package fr.upem.net.tcp.reader;
 
 import java.nio.ByteBuffer;
 
-import fr.upem.net.tcp.nonblocking.Server;
+import fr.upem.net.tcp.nonblocking.Nickname;
 
 public class PrivateConnectionReader implements Reader {
 	private enum State {
@@ -13,7 +13,7 @@ public class PrivateConnectionReader implements Reader {
 	private final ByteBuffer bb;
 	private final StringReader stringReader;
 	private byte accept;
-	private String fromNickname;
+	private Nickname fromNickname;
 	private long sessionId;
 	private int nbget;
 
@@ -51,7 +51,7 @@ public class PrivateConnectionReader implements Reader {
 			}
 			ByteBuffer bbNickname = (ByteBuffer) stringReader.get();
 			bbNickname.flip();
-			fromNickname = Server.CHARSET_NICKNAME.decode(bbNickname).toString();
+			fromNickname = Nickname.of(bbNickname);
 			// Did not accept
 			if (accept != (byte) 0) {
 				return Status.DONE;
@@ -73,7 +73,7 @@ public class PrivateConnectionReader implements Reader {
 	 * @return {@link Object}:
 	 * <ul>
 	 * 	<li>{@code Byte} accept the first time</li>
-	 * 	<li>{@code String} nickname the second time</li>
+	 * 	<li>{@link Nickname} nickname, without ID, the second time</li>
 	 * 	<li>{@code Long} session ID the third time</li>
 	 * </ul>
 	 */
@@ -0,0 +1,62 @@
+package fr.upem.net.tcp.reader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the half of a relayed private channel: the session ID of the private
+ * connection, the role of the client who opened the channel and the number of
+ * the channel.
+ */
+public class RelayReader implements Reader {
+	private static final int SIZE = Long.BYTES + Byte.BYTES + Integer.BYTES;
+	private final ByteBuffer bb;
+	private long sessionId;
+	private byte role;
+	private int channel;
+	private int nbget;
+
+	public RelayReader(ByteBuffer bb) {
+		this.bb = bb;
+	}
+
+	@Override
+	public Status process() {
+		if (bb.position() < SIZE) {
+			return Status.REFILL;
+		}
+		bb.flip();
+		sessionId = bb.getLong();
+		role = bb.get();
+		channel = bb.getInt();
+		bb.compact();
+		if (role != 0 && role != 1) {
+			return Status.ERROR;
+		}
+		return Status.DONE;
+	}
+
+	/**
+	 * @return {@link Object}:
+	 * <ul>
+	 * 	<li>{@code Long} session ID the first time</li>
+	 * 	<li>{@code Byte} role the second time</li>
+	 * 	<li>{@code Integer} channel the third time</li>
+	 * </ul>
+	 */
+	@Override
+	public Object get() {
+		switch (nbget++ % 3) {
+		case 0:
+			return sessionId;
+		case 1:
+			return role;
+		default:
+			return channel;
+		}
+	}
+
+	@Override
+	public void reset() {
+		nbget = 0;
+	}
+}
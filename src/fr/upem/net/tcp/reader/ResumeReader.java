@@ -0,0 +1,92 @@
+package fr.upem.net.tcp.reader;
+
+import java.nio.ByteBuffer;
+
+import fr.upem.net.tcp.nonblocking.Nickname;
+
+/**
+ * Reads a request to resume a session: the nickname of the session, its
+ * resume token and the offset of the first byte the client did not receive.
+ */
+public class ResumeReader implements Reader {
+	private static final int SIZE = Long.BYTES + Long.BYTES;
+
+	private enum State {
+		NICKNAME, TOKEN,
+	}
+
+	private State state;
+	private final ByteBuffer bb;
+	private final StringReader nicknameReader;
+	private Nickname nickname;
+	private long token;
+	private long offset;
+	private int nbget;
+
+	public ResumeReader(ByteBuffer bb, int maxLoginSize) {
+		state = State.NICKNAME;
+		this.bb = bb;
+		nicknameReader = new StringReader(bb, maxLoginSize);
+	}
+
+	@Override
+	public Status process() {
+		switch (state) {
+		case NICKNAME:
+			Status status = nicknameReader.process();
+			if (status != Status.DONE) {
+				return status;
+			}
+			ByteBuffer bbNickname = (ByteBuffer) nicknameReader.get();
+			bbNickname.flip();
+			nickname = Nickname.of(bbNickname);
+			state = State.TOKEN;
+			// no break !
+		case TOKEN:
+			if (bb.position() < SIZE) {
+				return Status.REFILL;
+			}
+			bb.flip();
+			token = bb.getLong();
+			offset = bb.getLong();
+			bb.compact();
+			state = State.NICKNAME;
+			if (offset < 0) {
+				return Status.ERROR;
+			}
+			break;
+		default:
+			throw new IllegalStateException("this case should never happen");
+		}
+		return Status.DONE;
+	}
+
+	/**
+	 * @return {@link Object}:
+	 *         <ul>
+	 *         <li>{@link Nickname} of the session, without ID, the first
+	 *         time</li>
+	 *         <li>{@code Long} resume token of the session, the second
+	 *         time</li>
+	 *         <li>{@code Long} offset of the first byte the client did not
+	 *         receive, the third time</li>
+	 *         </ul>
+	 */
+	@Override
+	public Object get() {
+		switch (nbget++ % 3) {
+		case 0:
+			return nickname;
+		case 1:
+			return token;
+		default:
+			return offset;
+		}
+	}
+
+	@Override
+	public void reset() {
+		state = State.NICKNAME;
+		nbget = 0;
+	}
+}